@@ -0,0 +1,104 @@
+package ru.yandex.money.logging.log4j.appender.count;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.AbstractLifeCycle;
+import org.apache.logging.log4j.core.Appender;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.appender.SocketAppender;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.core.layout.PatternLayout;
+import org.apache.logging.log4j.core.net.Protocol;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Стоимость {@code append} у {@link SocketLogLevelCountAppender} в сравнении с обычным {@link SocketAppender},
+ * который отправляет в сокет каждое событие.
+ * <p>
+ * Число потоков задается вариантами бенчмарка или параметром JMH {@code -t}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AppendBenchmark {
+
+    private static final String HOST = "127.0.0.1";
+    private static final int PORT = 18125;
+    private static final String PATTERN = "bench.%level:%X{count}|c";
+
+    @Param({"count", "lazy", "socket"})
+    public String appenderType;
+
+    private Appender appender;
+    private LogEvent event;
+
+    @Setup
+    public void setUp() {
+        PatternLayout layout = PatternLayout.newBuilder().withPattern(PATTERN).build();
+        if ("count".equals(appenderType) || "lazy".equals(appenderType)) {
+            appender = SocketLogLevelCountAppender.createBuilder()
+                    .withName(appenderType)
+                    .withHost(HOST)
+                    .withPort(PORT)
+                    .withProtocol(Protocol.UDP)
+                    .withSendPeriod(1000)
+                    .withLazyFlush("lazy".equals(appenderType))
+                    .withLayout(layout)
+                    .build();
+        } else {
+            appender = SocketAppender.newBuilder()
+                    .withName("socket")
+                    .withHost(HOST)
+                    .withPort(PORT)
+                    .withProtocol(Protocol.UDP)
+                    .withLayout(layout)
+                    .build();
+        }
+        appender.start();
+        event = Log4jLogEvent.newBuilder()
+                .setLevel(Level.INFO)
+                .setLoggerName(AppendBenchmark.class.getName())
+                .setMessage(new SimpleMessage("benchmark"))
+                .build();
+    }
+
+    @TearDown
+    public void tearDown() {
+        ((AbstractLifeCycle) appender).stop(1, TimeUnit.SECONDS);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void append_1thread() {
+        appender.append(event);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void append_4threads() {
+        appender.append(event);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public void append_maxThreads() {
+        appender.append(event);
+    }
+}
@@ -0,0 +1,125 @@
+package ru.yandex.money.logging.log4j.appender.count;
+
+import org.apache.logging.log4j.Level;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+/**
+ * Сравнение структур для счетчиков по уровням: поиск в {@link Map} или в массиве по {@link Level#intLevel()},
+ * {@link LongAdder} или {@link AtomicLong}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CounterBenchmark {
+
+    private static final Level[] LEVELS = {Level.INFO, Level.WARN, Level.ERROR, Level.DEBUG};
+
+    @Param({"MAP_LONG_ADDER", "MAP_ATOMIC_LONG", "ARRAY_LONG_ADDER", "ARRAY_ATOMIC_LONG", "LEVEL_COUNTERS"})
+    public CounterType counterType;
+
+    private Counters counters;
+
+    @Setup
+    public void setUp() {
+        counters = counterType.create();
+    }
+
+    @State(Scope.Thread)
+    public static class ThreadState {
+        private int next;
+
+        Level nextLevel() {
+            return LEVELS[next++ & (LEVELS.length - 1)];
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void increment_1thread(ThreadState state) {
+        counters.increment(state.nextLevel());
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void increment_4threads(ThreadState state) {
+        counters.increment(state.nextLevel());
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public void increment_maxThreads(ThreadState state) {
+        counters.increment(state.nextLevel());
+    }
+
+    private interface Counters {
+        void increment(Level level);
+    }
+
+    public enum CounterType {
+        MAP_LONG_ADDER {
+            @Override
+            Counters create() {
+                Map<Level, LongAdder> map = Arrays.stream(Level.values())
+                        .collect(Collectors.toMap(level -> level, level -> new LongAdder()));
+                return level -> map.get(level).increment();
+            }
+        },
+        MAP_ATOMIC_LONG {
+            @Override
+            Counters create() {
+                Map<Level, AtomicLong> map = Arrays.stream(Level.values())
+                        .collect(Collectors.toMap(level -> level, level -> new AtomicLong()));
+                return level -> map.get(level).incrementAndGet();
+            }
+        },
+        ARRAY_LONG_ADDER {
+            @Override
+            Counters create() {
+                LongAdder[] array = new LongAdder[Level.TRACE.intLevel() + 1];
+                Arrays.stream(Level.values())
+                        .filter(level -> level.intLevel() < array.length)
+                        .forEach(level -> array[level.intLevel()] = new LongAdder());
+                return level -> array[level.intLevel()].increment();
+            }
+        },
+        ARRAY_ATOMIC_LONG {
+            @Override
+            Counters create() {
+                AtomicLong[] array = new AtomicLong[Level.TRACE.intLevel() + 1];
+                Arrays.stream(Level.values())
+                        .filter(level -> level.intLevel() < array.length)
+                        .forEach(level -> array[level.intLevel()] = new AtomicLong());
+                return level -> array[level.intLevel()].incrementAndGet();
+            }
+        },
+        LEVEL_COUNTERS {
+            @Override
+            Counters create() {
+                return new LevelCounters()::increment;
+            }
+        };
+
+        abstract Counters create();
+    }
+}
@@ -0,0 +1,86 @@
+package ru.yandex.money.logging.log4j.appender.count;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.layout.PatternLayout;
+import org.apache.logging.log4j.status.StatusLogger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import javax.annotation.Nonnull;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Стоимость одной отправки {@link CountSender#writeEventsToSocket()} без учета записи в сокет:
+ * формирование метрик по всем уровням и их кодирование.
+ * Количество создаваемого мусора показывает профайлер {@code -prof gc}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FlushBenchmark {
+
+    private static final Level[] LEVELS = {Level.INFO, Level.WARN, Level.ERROR, Level.DEBUG};
+
+    @Param({"layout", "direct"})
+    public String encoderType;
+
+    private LevelCounters counters;
+    private CountSender sender;
+
+    @Setup
+    public void setUp(Blackhole blackhole) {
+        PatternLayout layout = PatternLayout.newBuilder().withPattern("bench.%level:%X{count}|c").build();
+        MetricEncoder encoder = "direct".equals(encoderType)
+                ? PatternMetricEncoder.compile(layout)
+                : new LayoutMetricEncoder(layout);
+        counters = new LevelCounters();
+        sender = new CountSender(counters, StatusLogger.getLogger(), new BufferCountWriter(encoder, blackhole));
+    }
+
+    @Benchmark
+    public void writeEventsToSocket() {
+        for (Level level : LEVELS) {
+            counters.increment(level);
+        }
+        sender.writeEventsToSocket();
+    }
+
+    /**
+     * Кодирует метрики в буфер вместо записи в сокет
+     */
+    private static class BufferCountWriter implements CountWriter {
+        private final MetricEncoder encoder;
+        private final Blackhole blackhole;
+        private final ByteBuffer buffer = ByteBuffer.allocate(4096);
+
+        BufferCountWriter(MetricEncoder encoder, Blackhole blackhole) {
+            this.encoder = encoder;
+            this.blackhole = blackhole;
+        }
+
+        @Override
+        public void write(@Nonnull LevelMetric metric) {
+            encoder.encode(metric, buffer);
+        }
+
+        @Override
+        public void endBatch() {
+            blackhole.consume(buffer.position());
+            buffer.clear();
+        }
+    }
+}
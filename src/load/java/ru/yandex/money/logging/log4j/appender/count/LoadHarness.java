@@ -0,0 +1,336 @@
+package ru.yandex.money.logging.log4j.appender.count;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.core.layout.PatternLayout;
+import org.apache.logging.log4j.core.net.Protocol;
+import org.apache.logging.log4j.message.SimpleMessage;
+
+import javax.annotation.Nonnull;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Нагрузочный стенд: {@link SocketLogLevelCountAppender} отправляет метрики через loopback
+ * в {@link MetricReceiver}, количество принятых событий сверяется с количеством записанных.
+ * <p>
+ * Перебираются все сочетания числа потоков, темпа событий и {@code sendPeriod}. Для каждого сочетания
+ * в течение {@code --duration} секунд записываются события, затем аппендер останавливается
+ * (финальная отправка) и стенд ждет, пока приемник не перестанет получать метрики.
+ * <p>
+ * Для каждого прогона сохраняются пропускная способность, задержка доставки метрик (время приема минус
+ * {@code %X{timestamp}}), количество отправок, пакетов и байт, а также точная потеря событий.
+ * Результаты пишутся в JSON-массив в {@code --output}, краткая сводка - в stdout.
+ * <p>
+ * Параметры:
+ * <ul>
+ * <li>{@code --threads 1,4,8} - число потоков, записывающих события;</li>
+ * <li>{@code --rates 0,100000} - событий в секунду на поток, 0 - без ограничения;</li>
+ * <li>{@code --sendPeriods 10,100,1000} - значения {@code sendPeriod}, мс;</li>
+ * <li>{@code --duration 5} - длительность записи событий в одном прогоне, с;</li>
+ * <li>{@code --protocol UDP} - UDP или TCP;</li>
+ * <li>{@code --batchSize 0} - значение {@code batchSize};</li>
+ * <li>{@code --output load-results.json} - файл результатов.</li>
+ * </ul>
+ */
+public final class LoadHarness {
+
+    private static final String PATTERN = "load.%level.%X{count}.%X{timestamp}%n"; // load.INFO.3.1539760000000
+    /**
+     * Время без новых метрик, после которого прием считается завершенным
+     */
+    private static final long QUIET_MS = 500;
+    private static final long MAX_DRAIN_MS = 10_000;
+
+    private int[] threads = {1, 4, 8};
+    private long[] rates = {0, 100_000};
+    private long[] sendPeriods = {10, 100, 1000};
+    private long durationSec = 5;
+    private Protocol protocol = Protocol.UDP;
+    private int batchSize = 0;
+    private String output = "load-results.json";
+
+    private LoadHarness() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoadHarness harness = new LoadHarness();
+        harness.parseArgs(args);
+        harness.run();
+    }
+
+    private void parseArgs(@Nonnull String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + args[i]);
+            }
+            String value = args[++i];
+            switch (args[i - 1]) {
+                case "--threads":
+                    threads = Arrays.stream(parseLongs(value)).mapToInt(Math::toIntExact).toArray();
+                    break;
+                case "--rates":
+                    rates = parseLongs(value);
+                    break;
+                case "--sendPeriods":
+                    sendPeriods = parseLongs(value);
+                    break;
+                case "--duration":
+                    durationSec = Long.parseLong(value);
+                    break;
+                case "--protocol":
+                    protocol = Protocol.valueOf(value.toUpperCase(Locale.ROOT));
+                    break;
+                case "--batchSize":
+                    batchSize = Integer.parseInt(value);
+                    break;
+                case "--output":
+                    output = value;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + args[i - 1]);
+            }
+        }
+    }
+
+    @Nonnull
+    private static long[] parseLongs(@Nonnull String value) {
+        return Arrays.stream(value.split(",")).map(String::trim).mapToLong(Long::parseLong).toArray();
+    }
+
+    private void run() throws Exception {
+        List<RunResult> results = new ArrayList<>();
+        for (int threadCount : threads) {
+            for (long rate : rates) {
+                for (long sendPeriod : sendPeriods) {
+                    RunResult result = runOnce(threadCount, rate, sendPeriod);
+                    System.out.println(result.summary());
+                    results.add(result);
+                }
+            }
+        }
+        Path path = Paths.get(output);
+        if (path.getParent() != null) {
+            Files.createDirectories(path.getParent());
+        }
+        try (Writer writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+            writer.write("[\n");
+            for (int i = 0; i < results.size(); i++) {
+                writer.write(results.get(i).toJson());
+                writer.write(i + 1 < results.size() ? ",\n" : "\n");
+            }
+            writer.write("]\n");
+        }
+        System.out.println("Results: " + path.toAbsolutePath());
+    }
+
+    @Nonnull
+    private RunResult runOnce(int threadCount, long rate, long sendPeriod) throws Exception {
+        InetAddress host = InetAddress.getLoopbackAddress();
+        Deliveries deliveries = new Deliveries();
+        MetricReceiver receiver = new MetricReceiver(protocol, host, 0, deliveries::accept);
+        receiver.start();
+        SocketLogLevelCountAppender appender = SocketLogLevelCountAppender.createBuilder()
+                .withName("load")
+                .withHost(host.getHostAddress())
+                .withPort(receiver.getPort())
+                .withProtocol(protocol)
+                .withSendPeriod(sendPeriod)
+                .withBatchSize(batchSize)
+                .withLayout(PatternLayout.newBuilder().withPattern(PATTERN).build())
+                .build();
+        if (appender == null) {
+            throw new IllegalStateException("Invalid appender configuration");
+        }
+        appender.start();
+
+        LogEvent event = Log4jLogEvent.newBuilder()
+                .setLevel(Level.INFO)
+                .setLoggerName(LoadHarness.class.getName())
+                .setMessage(new SimpleMessage("load"))
+                .build();
+        LongAdder generated = new LongAdder();
+        CountDownLatch finished = new CountDownLatch(threadCount);
+        long startNanos = System.nanoTime();
+        long endNanos = startNanos + TimeUnit.SECONDS.toNanos(durationSec);
+        for (int i = 0; i < threadCount; i++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    generate(appender, event, rate, endNanos, generated);
+                } finally {
+                    finished.countDown();
+                }
+            }, "load-" + i);
+            thread.start();
+        }
+        finished.await();
+        long elapsedNanos = System.nanoTime() - startNanos;
+        appender.stop(sendPeriod + 1000, TimeUnit.MILLISECONDS);
+        deliveries.awaitQuiet(generated.sum());
+        receiver.stop();
+
+        return new RunResult(protocol, threadCount, rate, sendPeriod, batchSize, elapsedNanos,
+                generated.sum(), deliveries, receiver.getPackets(), receiver.getBytes());
+    }
+
+    /**
+     * Запись событий до endNanos; при заданном темпе - равномерно, с паузами между событиями
+     */
+    private static void generate(@Nonnull SocketLogLevelCountAppender appender, @Nonnull LogEvent event,
+                                 long rate, long endNanos, @Nonnull LongAdder generated) {
+        long intervalNanos = rate > 0 ? TimeUnit.SECONDS.toNanos(1) / rate : 0;
+        long next = System.nanoTime();
+        long count = 0;
+        long now;
+        while ((now = System.nanoTime()) < endNanos) {
+            if (intervalNanos > 0) {
+                if (next > now) {
+                    LockSupport.parkNanos(next - now);
+                    continue;
+                }
+                next += intervalNanos;
+            }
+            appender.append(event);
+            count++;
+        }
+        generated.add(count);
+    }
+
+    /**
+     * Принятые метрики: количество событий, отправки и задержки доставки
+     */
+    private static final class Deliveries {
+        private final Set<Long> flushTimestamps = new HashSet<>();
+        private long[] latenciesMs = new long[1024];
+        private int latencyCount;
+        private long received;
+        private long lastReceivedAtMs;
+
+        synchronized void accept(@Nonnull String line) {
+            long nowMs = System.currentTimeMillis();
+            String[] parts = line.split("\\.");
+            if (parts.length != 4 || !"load".equals(parts[0])) {
+                throw new IllegalArgumentException("Invalid metric: " + line);
+            }
+            long timestampMs = Long.parseLong(parts[3]);
+            received += Long.parseLong(parts[2]);
+            flushTimestamps.add(timestampMs);
+            if (latencyCount == latenciesMs.length) {
+                latenciesMs = Arrays.copyOf(latenciesMs, latencyCount * 2);
+            }
+            latenciesMs[latencyCount++] = nowMs - timestampMs;
+            lastReceivedAtMs = nowMs;
+            notifyAll();
+        }
+
+        /**
+         * Дождаться всех событий, либо паузы в приеме метрик
+         */
+        synchronized void awaitQuiet(long expected) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + MAX_DRAIN_MS;
+            lastReceivedAtMs = Math.max(lastReceivedAtMs, System.currentTimeMillis());
+            while (received < expected) {
+                long now = System.currentTimeMillis();
+                long wait = Math.min(deadline, lastReceivedAtMs + QUIET_MS) - now;
+                if (wait <= 0) {
+                    return;
+                }
+                wait(wait);
+            }
+        }
+
+        synchronized long getReceived() {
+            return received;
+        }
+
+        synchronized int getFlushes() {
+            return flushTimestamps.size();
+        }
+
+        @Nonnull
+        synchronized long[] getSortedLatencies() {
+            long[] sorted = Arrays.copyOf(latenciesMs, latencyCount);
+            Arrays.sort(sorted);
+            return sorted;
+        }
+    }
+
+    private static final class RunResult {
+        private final Protocol protocol;
+        private final int threads;
+        private final long rate;
+        private final long sendPeriod;
+        private final int batchSize;
+        private final long elapsedNanos;
+        private final long generated;
+        private final long received;
+        private final int flushes;
+        private final long[] latenciesMs;
+        private final long packets;
+        private final long bytes;
+
+        RunResult(Protocol protocol, int threads, long rate, long sendPeriod, int batchSize, long elapsedNanos,
+                  long generated, @Nonnull Deliveries deliveries, long packets, long bytes) {
+            this.protocol = protocol;
+            this.threads = threads;
+            this.rate = rate;
+            this.sendPeriod = sendPeriod;
+            this.batchSize = batchSize;
+            this.elapsedNanos = elapsedNanos;
+            this.generated = generated;
+            this.received = deliveries.getReceived();
+            this.flushes = deliveries.getFlushes();
+            this.latenciesMs = deliveries.getSortedLatencies();
+            this.packets = packets;
+            this.bytes = bytes;
+        }
+
+        private double throughput() {
+            return generated * (double) TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+        }
+
+        private long latencyPercentile(double percentile) {
+            if (latenciesMs.length == 0) {
+                return -1;
+            }
+            int index = (int) Math.ceil(percentile * latenciesMs.length) - 1;
+            return latenciesMs[Math.max(0, Math.min(index, latenciesMs.length - 1))];
+        }
+
+        @Nonnull
+        String summary() {
+            return String.format(Locale.ROOT,
+                    "%s threads=%d rate=%d sendPeriod=%d: %.0f events/s, lost %d of %d, "
+                            + "flushes=%d packets=%d latency p50=%dms p99=%dms max=%dms",
+                    protocol, threads, rate, sendPeriod, throughput(), generated - received, generated,
+                    flushes, packets, latencyPercentile(0.5), latencyPercentile(0.99), latencyPercentile(1));
+        }
+
+        @Nonnull
+        String toJson() {
+            return String.format(Locale.ROOT,
+                    "  {\"protocol\": \"%s\", \"threads\": %d, \"rate\": %d, \"sendPeriod\": %d, \"batchSize\": %d, "
+                            + "\"durationMs\": %d, \"generated\": %d, \"received\": %d, \"lost\": %d, "
+                            + "\"throughput\": %.1f, \"flushes\": %d, \"packets\": %d, \"bytes\": %d, "
+                            + "\"latencyMs\": {\"p50\": %d, \"p99\": %d, \"max\": %d}}",
+                    protocol, threads, rate, sendPeriod, batchSize, TimeUnit.NANOSECONDS.toMillis(elapsedNanos),
+                    generated, received, generated - received, throughput(), flushes, packets, bytes,
+                    latencyPercentile(0.5), latencyPercentile(0.99), latencyPercentile(1));
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package ru.yandex.money.logging.log4j.appender.count;
+
+/**
+ * Период отправки, подстраиваемый под темп событий и время записи в сокет.
+ * <p>
+ * После каждой отправки период пересчитывается по количеству отправленных событий:
+ * <ul>
+ * <li>если событий меньше половины {@code targetCount}, период увеличивается, чтобы не отправлять
+ * маленькие приращения, без событий - вдвое;</li>
+ * <li>если событий больше удвоенного {@code targetCount}, период уменьшается;</li>
+ * <li>иначе период не меняется, чтобы он не колебался при ровном потоке событий.</li>
+ * </ul>
+ * За одну отправку период меняется не более чем вдвое. Если запись в сокет заняла больше
+ * четверти периода, период увеличивается не меньше чем до четырехкратного времени записи,
+ * чтобы поток отправки не отставал от расписания при медленном транспорте.
+ * Период всегда остается в границах {@code [minPeriodMs, maxPeriodMs]}.
+ * <p>
+ * Не потокобезопасен: используется только потоком отправки.
+ */
+final class AdaptivePeriod {
+
+    /**
+     * Во сколько раз период должен превышать время записи в сокет
+     */
+    private static final long WRITE_TIME_FACTOR = 4;
+
+    private final long minPeriodMs;
+    private final long maxPeriodMs;
+    /**
+     * Желаемое количество событий за одну отправку
+     */
+    private final long targetCount;
+    private long periodMs;
+
+    /**
+     * @param periodMs    начальный период, мс
+     * @param minPeriodMs минимальный период, мс
+     * @param maxPeriodMs максимальный период, мс
+     * @param targetCount желаемое количество событий за одну отправку
+     */
+    AdaptivePeriod(long periodMs, long minPeriodMs, long maxPeriodMs, long targetCount) {
+        if (minPeriodMs <= 0 || minPeriodMs > periodMs || periodMs > maxPeriodMs) {
+            throw new IllegalArgumentException("Illegal period bounds: " + minPeriodMs + " <= " + periodMs
+                    + " <= " + maxPeriodMs);
+        }
+        if (targetCount <= 0) {
+            throw new IllegalArgumentException("targetCount must be positive: " + targetCount);
+        }
+        this.periodMs = periodMs;
+        this.minPeriodMs = minPeriodMs;
+        this.maxPeriodMs = maxPeriodMs;
+        this.targetCount = targetCount;
+    }
+
+    /**
+     * Пересчитать период по результатам отправки
+     *
+     * @param events  количество отправленных событий
+     * @param writeMs время отправки, мс
+     * @return период до следующей отправки, мс
+     */
+    long next(long events, long writeMs) {
+        long desired = periodMs;
+        if (events < targetCount / 2 || events > targetCount * 2) {
+            desired = events > 0 ? (long) ((double) periodMs * targetCount / events) : periodMs * 2;
+            desired = Math.max(periodMs / 2, Math.min(desired, periodMs * 2));
+        }
+        if (writeMs * WRITE_TIME_FACTOR > periodMs) {
+            desired = Math.max(desired, writeMs * WRITE_TIME_FACTOR);
+        }
+        periodMs = Math.max(minPeriodMs, Math.min(desired, maxPeriodMs));
+        return periodMs;
+    }
+
+    /**
+     * Текущий период, мс
+     */
+    long getPeriodMs() {
+        return periodMs;
+    }
+
+    long getMaxPeriodMs() {
+        return maxPeriodMs;
+    }
+}
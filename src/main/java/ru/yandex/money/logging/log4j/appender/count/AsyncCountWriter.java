@@ -0,0 +1,168 @@
+package ru.yandex.money.logging.log4j.appender.count;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.core.util.Log4jThread;
+
+import javax.annotation.Nonnull;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Запись метрик в собственном потоке.
+ * <p>
+ * Поток отправки только передает метрики: они добавляются к ожидающим записи, а запись в сокет
+ * выполняется отдельным потоком, поэтому медленный приемник не задерживает поток отправки.
+ * Если поток записи не успел записать метрики предыдущей отправки, метрики следующей объединяются
+ * с ними по уровням: количество суммируется, максимальный темп - максимум, минимальный - минимум,
+ * общее количество и время берутся из последней метрики.
+ */
+class AsyncCountWriter implements CountWriter {
+
+    private static final AtomicLong WRITER_THREAD_SEQUENCE = new AtomicLong(1);
+
+    @Nonnull
+    private final CountWriter writer;
+    @Nonnull
+    private final Logger log;
+    /**
+     * Период ожидания записи оставшихся метрик при закрытии, 0 - без ограничения
+     */
+    private final long shutdownTimeoutMs;
+    @Nonnull
+    private final Thread thread;
+    /**
+     * Метрики, ожидающие записи. Элементы не удаляются, у записанных обнуляется время.
+     */
+    @Nonnull
+    private Map<Level, LevelMetric> pending = new LinkedHashMap<>();
+    /**
+     * Метрики, записываемые потоком записи
+     */
+    @Nonnull
+    private Map<Level, LevelMetric> writing = new LinkedHashMap<>();
+    private boolean hasPending;
+    private boolean closed;
+    /**
+     * Поток записи запускается при первой отправке
+     */
+    private boolean started;
+
+    AsyncCountWriter(@Nonnull CountWriter writer, long shutdownTimeoutMs, @Nonnull Logger log) {
+        this.writer = requireNonNull(writer, "writer");
+        this.shutdownTimeoutMs = shutdownTimeoutMs;
+        this.log = requireNonNull(log, "log");
+        this.thread = new Log4jThread(this::run, "socket-destination-" + WRITER_THREAD_SEQUENCE.getAndIncrement());
+        this.thread.setDaemon(true);
+    }
+
+    @Override
+    public synchronized void write(@Nonnull LevelMetric metric) {
+        LevelMetric merged = pending.get(metric.level);
+        if (merged == null) {
+            merged = new LevelMetric();
+            merged.level = metric.level;
+            pending.put(metric.level, merged);
+        }
+        if (merged.timestamp == 0) {
+            merged.count = metric.count;
+            merged.interval = metric.interval;
+            merged.bytes = metric.bytes;
+            merged.suppressed = metric.suppressed;
+            merged.peak = metric.peak;
+            merged.min = metric.min;
+        } else {
+            merged.count += metric.count;
+            merged.interval += metric.interval;
+            merged.bytes += metric.bytes;
+            merged.suppressed += metric.suppressed;
+            merged.peak = Math.max(merged.peak, metric.peak);
+            merged.min = Math.min(merged.min, metric.min);
+        }
+        merged.total = metric.total;
+        merged.startId = metric.startId;
+        merged.timestamp = metric.timestamp;
+    }
+
+    @Override
+    public synchronized void endBatch() {
+        if (!started) {
+            thread.start();
+            started = true;
+        }
+        hasPending = true;
+        notifyAll();
+    }
+
+    private void run() {
+        while (true) {
+            synchronized (this) {
+                while (!hasPending && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        closed = true;
+                    }
+                }
+                if (!hasPending) {
+                    return;
+                }
+                Map<Level, LevelMetric> swap = writing;
+                writing = pending;
+                pending = swap;
+                hasPending = false;
+            }
+            for (LevelMetric metric : writing.values()) {
+                if (metric.timestamp == 0) {
+                    continue;
+                }
+                try {
+                    writer.write(metric);
+                } catch (RuntimeException e) {
+                    log.error("{} failed to process events", thread.getName(), e);
+                }
+                metric.timestamp = 0;
+            }
+            try {
+                writer.endBatch();
+            } catch (RuntimeException e) {
+                log.error("{} failed to process events", thread.getName(), e);
+            }
+        }
+    }
+
+    @Override
+    public long bytesWritten() {
+        return writer.bytesWritten();
+    }
+
+    @Override
+    public long datagramsDropped() {
+        return writer.datagramsDropped();
+    }
+
+    /**
+     * Дождаться записи метрик, переданных до закрытия, и освободить ресурсы
+     */
+    @Override
+    public void close() {
+        boolean wasStarted;
+        synchronized (this) {
+            closed = true;
+            wasStarted = started;
+            notifyAll();
+        }
+        if (wasStarted) {
+            try {
+                thread.join(shutdownTimeoutMs);
+            } catch (InterruptedException e) {
+                log.warn("Interrupted while stopping {}", thread.getName());
+                Thread.currentThread().interrupt();
+            }
+        }
+        writer.close();
+    }
+}
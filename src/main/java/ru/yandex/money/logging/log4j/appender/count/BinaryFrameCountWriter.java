@@ -0,0 +1,172 @@
+package ru.yandex.money.logging.log4j.appender.count;
+
+import javax.annotation.Nonnull;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Запись метрик кадрами двоичного формата {@link CountFrame}.
+ * <p>
+ * Метрики одной отправки с одинаковым временем записываются в один кадр, кадр отправляется в {@code sink}
+ * при завершении отправки. Метрики с другим временем (например, повторно отправляемые из outboxFile)
+ * начинают новый кадр. Если задан {@code maxFrameSize} и очередной уровень не помещается в кадр,
+ * накопленный кадр отправляется, а уровень переносится в следующий. Отправка без событий
+ * также отправляет кадр, чтобы приемник мог отличить отсутствие событий от потери кадра.
+ * <p>
+ * Кадр собирается в переиспользуемом буфере; длина кадра записывается перед ним после сборки,
+ * в зарезервированное в начале буфера место, поэтому кадр не копируется.
+ * <p>
+ * Не потокобезопасен: используется только потоком отправки.
+ */
+class BinaryFrameCountWriter implements CountWriter {
+
+    /**
+     * Место под длину кадра: varint до 2^35
+     */
+    private static final int LENGTH_RESERVE = 5;
+    private static final int INITIAL_BUFFER_SIZE = 256;
+    /**
+     * Максимальный размер пары уровень-количество
+     */
+    private static final int MAX_PAIR_SIZE = 15;
+
+    @Nonnull
+    private final byte[] appenderId;
+    private final long streamId;
+    /**
+     * Максимальный размер кадра в байтах, 0 - без ограничения
+     */
+    private final int maxFrameSize;
+    /**
+     * Получатель собранного кадра: позиция буфера - начало кадра, limit - конец
+     */
+    @Nonnull
+    private final Consumer<ByteBuffer> sink;
+    @Nonnull
+    private ByteBuffer buffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    private long nextSequence;
+    private boolean frameStarted;
+    private long frameTimestampMs;
+    /**
+     * Позиция начала пар уровень-количество в буфере
+     */
+    private int pairsStart;
+    /**
+     * Записано байт, изменяется только потоком отправки
+     */
+    private volatile long bytesWritten;
+
+    /**
+     * @param appenderId   идентификатор аппендера в кадрах
+     * @param streamId     идентификатор потока кадров, должен меняться при перезапуске аппендера
+     * @param maxFrameSize максимальный размер кадра в байтах, 0 - без ограничения
+     */
+    BinaryFrameCountWriter(@Nonnull String appenderId, long streamId, int maxFrameSize,
+                           @Nonnull Consumer<ByteBuffer> sink) {
+        this.appenderId = requireNonNull(appenderId, "appenderId").getBytes(StandardCharsets.UTF_8);
+        this.streamId = streamId;
+        this.maxFrameSize = maxFrameSize;
+        this.sink = requireNonNull(sink, "sink");
+    }
+
+    @Override
+    public void write(@Nonnull LevelMetric metric) {
+        if (frameStarted && metric.timestamp != frameTimestampMs) {
+            sendFrame();
+        }
+        if (!frameStarted) {
+            startFrame(metric.timestamp);
+        }
+        int pairStart = buffer.position();
+        putPair(metric);
+        if (maxFrameSize > 0 && buffer.position() - LENGTH_RESERVE > maxFrameSize && pairStart > pairsStart) {
+            buffer.position(pairStart);
+            sendFrame();
+            startFrame(metric.timestamp);
+            putPair(metric);
+        }
+    }
+
+    @Override
+    public void endBatch() {
+        if (!frameStarted) {
+            startFrame(System.currentTimeMillis());
+        }
+        sendFrame();
+    }
+
+    private void startFrame(long timestampMs) {
+        buffer.clear();
+        ensureCapacity(LENGTH_RESERVE + 3 + 10 + appenderId.length + 30);
+        buffer.position(LENGTH_RESERVE);
+        buffer.put(CountFrame.MAGIC_0).put(CountFrame.MAGIC_1).put((byte) CountFrame.VERSION);
+        putVarint(appenderId.length);
+        buffer.put(appenderId);
+        putVarint(streamId);
+        // номер расходуется, даже если отправка кадра не удастся: приемник увидит потерю
+        putVarint(nextSequence++);
+        putVarint(timestampMs);
+        pairsStart = buffer.position();
+        frameTimestampMs = timestampMs;
+        frameStarted = true;
+    }
+
+    private void putPair(@Nonnull LevelMetric metric) {
+        ensureCapacity(MAX_PAIR_SIZE);
+        putVarint(metric.level.intLevel());
+        putVarint(metric.count);
+    }
+
+    private void sendFrame() {
+        int end = buffer.position();
+        int length = end - LENGTH_RESERVE;
+        int start = LENGTH_RESERVE - varintSize(length);
+        buffer.position(start);
+        putVarint(length);
+        buffer.position(start);
+        buffer.limit(end);
+        frameStarted = false;
+        try {
+            sink.accept(buffer);
+            bytesWritten += end - start;
+        } finally {
+            buffer.clear();
+        }
+    }
+
+    @Override
+    public long bytesWritten() {
+        return bytesWritten;
+    }
+
+    private void ensureCapacity(int length) {
+        if (buffer.remaining() < length) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + length));
+            buffer.flip();
+            larger.put(buffer);
+            buffer = larger;
+        }
+    }
+
+    private void putVarint(long value) {
+        long rest = value;
+        while ((rest & ~0x7FL) != 0) {
+            buffer.put((byte) ((rest & 0x7F) | 0x80));
+            rest >>>= 7;
+        }
+        buffer.put((byte) rest);
+    }
+
+    private static int varintSize(long value) {
+        int size = 1;
+        long rest = value;
+        while ((rest & ~0x7FL) != 0) {
+            rest >>>= 7;
+            size++;
+        }
+        return size;
+    }
+}
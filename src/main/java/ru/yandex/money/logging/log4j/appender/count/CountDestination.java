@@ -0,0 +1,190 @@
+package ru.yandex.money.logging.log4j.appender.count;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.core.Layout;
+import org.apache.logging.log4j.core.config.Node;
+import org.apache.logging.log4j.core.config.plugins.Plugin;
+import org.apache.logging.log4j.core.config.plugins.PluginAliases;
+import org.apache.logging.log4j.core.config.plugins.PluginBuilderAttribute;
+import org.apache.logging.log4j.core.config.plugins.PluginBuilderFactory;
+import org.apache.logging.log4j.core.config.plugins.PluginElement;
+import org.apache.logging.log4j.core.net.Protocol;
+import org.apache.logging.log4j.core.net.ssl.SslConfiguration;
+import org.apache.logging.log4j.status.StatusLogger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.Serializable;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Дополнительный адрес отправки метрик {@link SocketLogLevelCountAppender}.
+ * <p>
+ * Метрики всех адресов одного аппендера снимаются с общих счетчиков одной отправкой,
+ * а кодируются и пишутся в сокет каждого дополнительного адреса в собственном потоке,
+ * поэтому медленный приемник не задерживает отправку на остальные адреса.
+ * Параметры совпадают с одноименными параметрами аппендера.
+ */
+@Plugin(name = "Destination", category = Node.CATEGORY, printObject = true)
+public final class CountDestination {
+
+    private static final Logger LOGGER = StatusLogger.getLogger();
+
+    @Nonnull
+    final Protocol protocol;
+    @Nonnull
+    final String host;
+    final int port;
+    final int connectTimeout;
+    final int reconnectDelayMillis;
+    final boolean immediateFail;
+    @Nullable
+    final SslConfiguration sslConfiguration;
+    @Nonnull
+    final Layout<? extends Serializable> layout;
+    final int batchSize;
+    final boolean directEncoding;
+    final boolean nioTransport;
+    final long dnsRefreshInterval;
+
+    private CountDestination(Builder builder, @Nonnull Layout<? extends Serializable> layout) {
+        this.protocol = builder.protocol != null ? builder.protocol : Protocol.UDP;
+        this.host = requireNonNull(builder.host, "host");
+        this.port = builder.port;
+        this.connectTimeout = builder.connectTimeout;
+        this.reconnectDelayMillis = builder.reconnectDelayMillis;
+        this.immediateFail = builder.immediateFail;
+        this.sslConfiguration = builder.sslConfiguration;
+        this.layout = layout;
+        this.batchSize = builder.batchSize;
+        this.directEncoding = builder.directEncoding;
+        this.nioTransport = builder.nioTransport;
+        this.dnsRefreshInterval = builder.dnsRefreshInterval;
+    }
+
+    @PluginBuilderFactory
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    @Override
+    public String toString() {
+        return protocol + ":" + host + ":" + port;
+    }
+
+    public static class Builder implements org.apache.logging.log4j.core.util.Builder<CountDestination> {
+
+        @PluginBuilderAttribute
+        private Protocol protocol = Protocol.UDP;
+
+        @PluginBuilderAttribute
+        private String host = "localhost";
+
+        @PluginBuilderAttribute
+        private int port;
+
+        @PluginBuilderAttribute
+        private int connectTimeout;
+
+        @PluginBuilderAttribute
+        @PluginAliases({"reconnectDelay, delayMillis"})
+        private int reconnectDelayMillis;
+
+        @PluginBuilderAttribute
+        private boolean immediateFail = true;
+
+        @PluginElement("SslConfiguration")
+        @PluginAliases({"SslConfig"})
+        private SslConfiguration sslConfiguration;
+
+        @PluginElement("Layout")
+        private Layout<? extends Serializable> layout;
+
+        @PluginBuilderAttribute
+        private int batchSize;
+
+        @PluginBuilderAttribute
+        private boolean directEncoding;
+
+        @PluginBuilderAttribute
+        private boolean nioTransport;
+
+        @PluginBuilderAttribute
+        private long dnsRefreshInterval = SocketLogLevelCountAppender.DEFAULT_DNS_REFRESH_INTERVAL_MS;
+
+        @Override
+        public CountDestination build() {
+            if (layout == null) {
+                LOGGER.error("No layout provided for Destination {}:{}", host, port);
+                return null;
+            }
+            if (batchSize < 0) {
+                LOGGER.error("Illegal batchSize for Destination {}:{}: {}",
+                        host, port, batchSize);
+                return null;
+            }
+            return new CountDestination(this, layout);
+        }
+
+        public Builder withProtocol(Protocol protocol) {
+            this.protocol = protocol;
+            return this;
+        }
+
+        public Builder withHost(String host) {
+            this.host = host;
+            return this;
+        }
+
+        public Builder withPort(int port) {
+            this.port = port;
+            return this;
+        }
+
+        public Builder withConnectTimeout(int connectTimeout) {
+            this.connectTimeout = connectTimeout;
+            return this;
+        }
+
+        public Builder withReconnectDelayMillis(int reconnectDelayMillis) {
+            this.reconnectDelayMillis = reconnectDelayMillis;
+            return this;
+        }
+
+        public Builder withImmediateFail(boolean immediateFail) {
+            this.immediateFail = immediateFail;
+            return this;
+        }
+
+        public Builder withSslConfiguration(SslConfiguration sslConfiguration) {
+            this.sslConfiguration = sslConfiguration;
+            return this;
+        }
+
+        public Builder withLayout(Layout<? extends Serializable> layout) {
+            this.layout = layout;
+            return this;
+        }
+
+        public Builder withBatchSize(int batchSize) {
+            this.batchSize = batchSize;
+            return this;
+        }
+
+        public Builder withDirectEncoding(boolean directEncoding) {
+            this.directEncoding = directEncoding;
+            return this;
+        }
+
+        public Builder withNioTransport(boolean nioTransport) {
+            this.nioTransport = nioTransport;
+            return this;
+        }
+
+        public Builder withDnsRefreshInterval(long dnsRefreshInterval) {
+            this.dnsRefreshInterval = dnsRefreshInterval;
+            return this;
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package ru.yandex.money.logging.log4j.appender.count;
+
+import org.apache.logging.log4j.Level;
+
+import javax.annotation.Nonnull;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Кадр двоичного формата отправки метрик: количество событий по уровням одной отправки аппендера.
+ * <p>
+ * Формат кадра, все числа - беззнаковые varint (LEB128):
+ * <pre>
+ * length     varint   - количество байт кадра после этого поля
+ * magic      2 байта  - 'L', 'C'
+ * version    1 байт   - {@value #VERSION}
+ * appender   varint + UTF-8 - идентификатор аппендера
+ * stream     varint   - идентификатор потока кадров: время создания отправителя, мс с начала эпохи
+ * sequence   varint   - номер кадра в потоке, начиная с 0, увеличивается на 1 с каждым кадром
+ * timestamp  varint   - время метрик кадра, мс с начала эпохи
+ * пары до конца кадра: varint {@link Level#intLevel()}, varint количество
+ * </pre>
+ * Кадр отправляется при каждой отправке, в том числе без событий, поэтому пропуск номера означает потерю кадра.
+ * При перезапуске аппендера идентификатор потока меняется, а нумерация начинается заново.
+ *
+ * @see CountFrameDecoder
+ */
+public final class CountFrame {
+
+    static final byte MAGIC_0 = 'L';
+    static final byte MAGIC_1 = 'C';
+    static final int VERSION = 1;
+
+    @Nonnull
+    private final String appenderId;
+    private final long streamId;
+    private final long sequence;
+    private final long timestampMs;
+    @Nonnull
+    private final int[] intLevels;
+    @Nonnull
+    private final long[] counts;
+    private final long lostBefore;
+    private final boolean late;
+
+    CountFrame(@Nonnull String appenderId, long streamId, long sequence, long timestampMs,
+               @Nonnull int[] intLevels, @Nonnull long[] counts, long lostBefore, boolean late) {
+        this.appenderId = requireNonNull(appenderId, "appenderId");
+        this.streamId = streamId;
+        this.sequence = sequence;
+        this.timestampMs = timestampMs;
+        this.intLevels = requireNonNull(intLevels, "intLevels");
+        this.counts = requireNonNull(counts, "counts");
+        this.lostBefore = lostBefore;
+        this.late = late;
+    }
+
+    /**
+     * Идентификатор аппендера, по умолчанию - имя аппендера
+     */
+    @Nonnull
+    public String getAppenderId() {
+        return appenderId;
+    }
+
+    /**
+     * Идентификатор потока кадров, меняется при перезапуске аппендера
+     */
+    public long getStreamId() {
+        return streamId;
+    }
+
+    /**
+     * Номер кадра в потоке
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Время метрик кадра, мс с начала эпохи
+     */
+    public long getTimestamp() {
+        return timestampMs;
+    }
+
+    /**
+     * Количество уровней в кадре
+     */
+    public int size() {
+        return intLevels.length;
+    }
+
+    /**
+     * {@link Level#intLevel()} уровня с номером index
+     */
+    public int getIntLevel(int index) {
+        return intLevels[index];
+    }
+
+    /**
+     * Количество событий уровня с номером index
+     */
+    public long getCount(int index) {
+        return counts[index];
+    }
+
+    /**
+     * Количество событий уровня level, 0 - уровня нет в кадре.
+     * Уровни сравниваются по {@link Level#intLevel()}.
+     */
+    public long getCount(@Nonnull Level level) {
+        long count = 0;
+        for (int i = 0; i < intLevels.length; i++) {
+            if (intLevels[i] == level.intLevel()) {
+                count += counts[i];
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Количество кадров того же потока, пропущенных между предыдущим принятым кадром и этим
+     */
+    public long getLostBefore() {
+        return lostBefore;
+    }
+
+    /**
+     * Кадр пришел после кадра с большим номером: ранее он был учтен как потерянный, либо это повтор
+     */
+    public boolean isLate() {
+        return late;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder()
+                .append(appenderId).append('#').append(streamId).append('/').append(sequence)
+                .append('@').append(timestampMs);
+        for (int i = 0; i < intLevels.length; i++) {
+            builder.append(' ').append(intLevels[i]).append('=').append(counts[i]);
+        }
+        if (lostBefore > 0) {
+            builder.append(" lostBefore=").append(lostBefore);
+        }
+        if (late) {
+            builder.append(" late");
+        }
+        return builder.toString();
+    }
+}
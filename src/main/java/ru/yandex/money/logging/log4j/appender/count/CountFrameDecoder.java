@@ -0,0 +1,173 @@
+package ru.yandex.money.logging.log4j.appender.count;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Разбор кадров двоичного формата {@link CountFrame} с учетом пропущенных кадров.
+ * <p>
+ * Для каждого аппендера запоминается идентификатор потока и номер последнего принятого кадра.
+ * Если номер очередного кадра больше ожидаемого, пропущенные кадры учитываются как потерянные
+ * ({@link CountFrame#getLostBefore()}, {@link #getLostFrames()}); кадр с номером меньше последнего
+ * помечается как опоздавший ({@link CountFrame#isLate()}, {@link #getLateFrames()}).
+ * Смена идентификатора потока означает перезапуск аппендера и потерей не считается.
+ * <p>
+ * Не потокобезопасен.
+ */
+public final class CountFrameDecoder {
+
+    /**
+     * Идентификатор аппендера -> последний принятый кадр его потока
+     */
+    @Nonnull
+    private final Map<String, StreamPosition> positions = new HashMap<>();
+    private long frames;
+    private long lostFrames;
+    private long lateFrames;
+
+    /**
+     * Разобрать кадр, начинающийся с текущей позиции буфера, и сдвинуть позицию на его конец.
+     * Датаграмма или прочитанный из TCP фрагмент может содержать несколько кадров подряд.
+     *
+     * @return кадр или null, если буфер содержит неполный кадр: позиция буфера в этом случае не меняется
+     * @throws IllegalArgumentException если данные не являются кадром поддерживаемой версии
+     */
+    @Nullable
+    public CountFrame decode(@Nonnull ByteBuffer buffer) {
+        int start = buffer.position();
+        long length = readVarint(buffer, buffer.limit());
+        if (length < 0 || buffer.remaining() < length) {
+            buffer.position(start);
+            return null;
+        }
+        int end = buffer.position() + (int) length;
+        try {
+            return decodeFrame(buffer, end);
+        } finally {
+            buffer.position(end);
+        }
+    }
+
+    @Nonnull
+    private CountFrame decodeFrame(@Nonnull ByteBuffer buffer, int end) {
+        if (end - buffer.position() < 3
+                || buffer.get() != CountFrame.MAGIC_0
+                || buffer.get() != CountFrame.MAGIC_1) {
+            throw new IllegalArgumentException("Not a count frame");
+        }
+        int version = buffer.get() & 0xFF;
+        if (version != CountFrame.VERSION) {
+            throw new IllegalArgumentException("Unsupported count frame version: " + version);
+        }
+        int idLength = (int) requireVarint(buffer, end);
+        if (idLength > end - buffer.position()) {
+            throw new IllegalArgumentException("Truncated count frame");
+        }
+        byte[] idBytes = new byte[idLength];
+        buffer.get(idBytes);
+        String appenderId = new String(idBytes, StandardCharsets.UTF_8);
+        long streamId = requireVarint(buffer, end);
+        long sequence = requireVarint(buffer, end);
+        long timestampMs = requireVarint(buffer, end);
+        int[] intLevels = new int[4];
+        long[] counts = new long[4];
+        int size = 0;
+        while (buffer.position() < end) {
+            if (size == intLevels.length) {
+                intLevels = Arrays.copyOf(intLevels, size * 2);
+                counts = Arrays.copyOf(counts, size * 2);
+            }
+            intLevels[size] = (int) requireVarint(buffer, end);
+            counts[size] = requireVarint(buffer, end);
+            size++;
+        }
+
+        long lostBefore = 0;
+        boolean late = false;
+        StreamPosition position = positions.get(appenderId);
+        if (position == null || position.streamId != streamId) {
+            // первый кадр аппендера или перезапуск: номера начинаются с 0
+            lostBefore = position == null ? 0 : sequence;
+            positions.put(appenderId, new StreamPosition(streamId, sequence));
+        } else if (sequence > position.sequence) {
+            lostBefore = sequence - position.sequence - 1;
+            position.sequence = sequence;
+        } else {
+            late = true;
+        }
+        frames++;
+        lostFrames += lostBefore;
+        if (late) {
+            lateFrames++;
+        }
+        return new CountFrame(appenderId, streamId, sequence, timestampMs,
+                Arrays.copyOf(intLevels, size), Arrays.copyOf(counts, size), lostBefore, late);
+    }
+
+    /**
+     * Количество разобранных кадров
+     */
+    public long getFrames() {
+        return frames;
+    }
+
+    /**
+     * Количество кадров, пропущенных во всех потоках
+     */
+    public long getLostFrames() {
+        return lostFrames;
+    }
+
+    /**
+     * Количество кадров, пришедших после кадров с большим номером
+     */
+    public long getLateFrames() {
+        return lateFrames;
+    }
+
+    private static long requireVarint(@Nonnull ByteBuffer buffer, int end) {
+        long value = readVarint(buffer, end);
+        if (value < 0) {
+            throw new IllegalArgumentException("Truncated count frame");
+        }
+        return value;
+    }
+
+    /**
+     * Прочитать беззнаковый varint, не выходя за end
+     *
+     * @return значение или -1, если varint не помещается до end
+     */
+    private static long readVarint(@Nonnull ByteBuffer buffer, int end) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (buffer.position() >= end) {
+                return -1;
+            }
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint in count frame");
+    }
+
+    /**
+     * Последний принятый кадр потока
+     */
+    private static final class StreamPosition {
+        private final long streamId;
+        private long sequence;
+
+        private StreamPosition(long streamId, long sequence) {
+            this.streamId = streamId;
+            this.sequence = sequence;
+        }
+    }
+}
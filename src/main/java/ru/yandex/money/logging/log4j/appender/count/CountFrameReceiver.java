@@ -0,0 +1,144 @@
+package ru.yandex.money.logging.log4j.appender.count;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.core.util.Log4jThread;
+import org.apache.logging.log4j.status.StatusLogger;
+
+import javax.annotation.Nonnull;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Прием кадров двоичного формата {@link CountFrame} по UDP.
+ * <p>
+ * Датаграммы принимаются и разбираются в собственном потоке, каждый кадр передается в {@code consumer}
+ * в этом же потоке. Датаграммы, которые не удалось разобрать, отбрасываются.
+ * Потери кадров доступны через {@link #getLostFrames()} и {@link CountFrame#getLostBefore()}.
+ */
+public final class CountFrameReceiver implements Closeable {
+
+    private static final Logger LOGGER = StatusLogger.getLogger();
+    private static final int MAX_DATAGRAM_SIZE = 65536;
+
+    @Nonnull
+    private final DatagramSocket socket;
+    @Nonnull
+    private final Consumer<CountFrame> consumer;
+    @Nonnull
+    private final CountFrameDecoder decoder = new CountFrameDecoder();
+    @Nonnull
+    private final Thread thread;
+    private volatile long malformedDatagrams;
+    private volatile boolean closed;
+
+    /**
+     * Открыть сокет и начать прием кадров
+     */
+    public CountFrameReceiver(@Nonnull SocketAddress address, @Nonnull Consumer<CountFrame> consumer)
+            throws IOException {
+        this.consumer = requireNonNull(consumer, "consumer");
+        this.socket = new DatagramSocket(requireNonNull(address, "address"));
+        this.thread = new Log4jThread(this::run, "count-frame-receiver-" + socket.getLocalPort());
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Адрес, на котором принимаются кадры
+     */
+    @Nonnull
+    public InetSocketAddress getAddress() {
+        return (InetSocketAddress) socket.getLocalSocketAddress();
+    }
+
+    private void run() {
+        byte[] data = new byte[MAX_DATAGRAM_SIZE];
+        DatagramPacket packet = new DatagramPacket(data, data.length);
+        while (!closed) {
+            try {
+                packet.setLength(data.length);
+                socket.receive(packet);
+            } catch (IOException e) {
+                if (!closed) {
+                    LOGGER.error("CountFrameReceiver failed to receive datagram", e);
+                }
+                continue;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(data, packet.getOffset(), packet.getLength());
+            while (buffer.hasRemaining()) {
+                CountFrame frame;
+                try {
+                    frame = decode(buffer);
+                } catch (IllegalArgumentException e) {
+                    malformedDatagrams++;
+                    LOGGER.warn("CountFrameReceiver dropped datagram from {}: {}", packet.getSocketAddress(),
+                            e.getMessage());
+                    break;
+                }
+                try {
+                    consumer.accept(frame);
+                } catch (RuntimeException e) {
+                    LOGGER.error("CountFrameReceiver failed to process frame {}", frame, e);
+                }
+            }
+        }
+    }
+
+    @Nonnull
+    private CountFrame decode(@Nonnull ByteBuffer buffer) {
+        synchronized (decoder) {
+            CountFrame frame = decoder.decode(buffer);
+            if (frame == null) {
+                throw new IllegalArgumentException("Incomplete count frame");
+            }
+            return frame;
+        }
+    }
+
+    /**
+     * Количество разобранных кадров
+     */
+    public long getFrames() {
+        synchronized (decoder) {
+            return decoder.getFrames();
+        }
+    }
+
+    /**
+     * Количество кадров, пропущенных во всех потоках
+     */
+    public long getLostFrames() {
+        synchronized (decoder) {
+            return decoder.getLostFrames();
+        }
+    }
+
+    /**
+     * Количество отброшенных датаграмм, не являющихся кадрами
+     */
+    public long getMalformedDatagrams() {
+        return malformedDatagrams;
+    }
+
+    /**
+     * Прекратить прием и дождаться завершения потока приема
+     */
+    @Override
+    public void close() {
+        closed = true;
+        socket.close();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
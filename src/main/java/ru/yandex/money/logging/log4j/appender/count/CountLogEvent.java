@@ -11,26 +11,35 @@ import static java.util.Objects.requireNonNull;
 
 /**
  * Событие, содержащее количество записей логов на определеном level.
+ * <p>
+ * Значения полей метрики ({@link MetricField}) кладутся в контекст события,
+ * откуда их можно получить через {@link org.apache.logging.log4j.core.layout.PatternLayout}
+ * следующим образом: %X{count}
  *
  * @author churkin
  * @since 26.09.2018
  */
 class CountLogEvent extends AbstractLogEvent {
 
-    /**
-     * Название параметра в контексте, содержащее число записей лога на этом уровне level.
-     * Можно его получить через {@link org.apache.logging.log4j.core.layout.PatternLayout} следующим образом: %X{count}
-     */
-    private static final String COUNT_FIELD_NAME = "count";
-
     @Nonnull
     private final Level level;
+    private final long timeMillis;
     private final SortedArrayStringMap contextData;
 
-    CountLogEvent(@Nonnull Level level, long count) {
-        this.level = requireNonNull(level, "level");
+    CountLogEvent(@Nonnull LevelMetric metric) {
+        this.level = requireNonNull(metric.level, "level");
+        this.timeMillis = metric.timestamp;
         this.contextData = new SortedArrayStringMap();
-        this.contextData.putValue(COUNT_FIELD_NAME, Long.toString(count));
+        for (MetricField field : MetricField.all()) {
+            this.contextData.putValue(field.key, Long.toString(field.get(metric)));
+        }
+        if (metric.key != null) {
+            this.contextData.putValue("key", metric.key);
+            this.contextData.putValue("kind", metric.kind);
+        }
+        if (metric.logger != null) {
+            this.contextData.putValue("logger", metric.logger);
+        }
     }
 
     @Override
@@ -43,4 +52,9 @@ class CountLogEvent extends AbstractLogEvent {
         return level;
     }
 
+    @Override
+    public long getTimeMillis() {
+        return timeMillis;
+    }
+
 }
@@ -0,0 +1,360 @@
+package ru.yandex.money.logging.log4j.appender.count;
+
+import org.apache.logging.log4j.Level;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Хранилище метрик, которые не удалось отправить, в отображенном в память файле.
+ * <p>
+ * Файл состоит из заголовка и кольца записей фиксированного размера. Метрики одного уровня,
+ * попавшие в один временной интервал длиной {@code bucketMs}, объединяются в одну запись:
+ * количество суммируется, максимальный темп - максимум, минимальный - минимум.
+ * При заполнении кольца вытесняется самая старая запись. Записи читаются в порядке добавления.
+ * <p>
+ * Запись в отображенный файл попадает в page cache операционной системы, поэтому переживает
+ * завершение процесса, и записи повторно отправляются после следующего старта.
+ * Файл блокируется на время работы, одним файлом может пользоваться только один аппендер.
+ * <p>
+ * Не потокобезопасен: используется только потоком отправки.
+ */
+final class CountOutbox implements Closeable {
+
+    private static final int MAGIC = 0x4C434F42;
+    private static final int VERSION = 1;
+
+    static final int HEADER_SIZE = 32;
+    static final int RECORD_SIZE = 64;
+    /**
+     * Максимальная длина названия уровня в байтах
+     */
+    private static final int MAX_NAME_LENGTH = RECORD_SIZE - 37;
+
+    private static final int MAGIC_OFFSET = 0;
+    private static final int VERSION_OFFSET = 4;
+    private static final int CAPACITY_OFFSET = 8;
+    private static final int HEAD_OFFSET = 16;
+    private static final int TAIL_OFFSET = 24;
+
+    private static final int BUCKET_OFFSET = 0;
+    private static final int COUNT_OFFSET = 8;
+    private static final int PEAK_OFFSET = 16;
+    private static final int MIN_OFFSET = 24;
+    private static final int INT_LEVEL_OFFSET = 32;
+    private static final int NAME_LENGTH_OFFSET = 36;
+    private static final int NAME_OFFSET = 37;
+
+    @Nonnull
+    private final FileChannel channel;
+    @Nonnull
+    private final FileLock lock;
+    @Nonnull
+    private final MappedByteBuffer buffer;
+    /**
+     * Длина временного интервала, в котором объединяются метрики, мс
+     */
+    private final long bucketMs;
+    /**
+     * Количество записей в кольце
+     */
+    private final int capacity;
+    /**
+     * Порядковый номер самой старой записи
+     */
+    private long head;
+    /**
+     * Порядковый номер следующей записи
+     */
+    private long tail;
+    /**
+     * Количество записей, вытесненных с момента открытия
+     */
+    private long evicted;
+    private final byte[] nameBuffer = new byte[MAX_NAME_LENGTH];
+
+    private CountOutbox(@Nonnull FileChannel channel, @Nonnull FileLock lock, @Nonnull MappedByteBuffer buffer,
+                        int capacity, long bucketMs) {
+        this.channel = channel;
+        this.lock = lock;
+        this.buffer = buffer;
+        this.capacity = capacity;
+        this.bucketMs = bucketMs;
+    }
+
+    /**
+     * Открыть хранилище, сохранив записи из существующего файла.
+     * Если файл создан с другим размером, записи переносятся в новое кольцо с вытеснением самых старых.
+     *
+     * @param sizeBytes размер файла, байт
+     * @param bucketMs  длина временного интервала, в котором объединяются метрики, мс
+     * @throws IOException если файл не удалось открыть или он используется другим аппендером
+     */
+    @Nonnull
+    static CountOutbox open(@Nonnull Path path, int sizeBytes, long bucketMs) throws IOException {
+        int capacity = (sizeBytes - HEADER_SIZE) / RECORD_SIZE;
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Outbox size is too small: " + sizeBytes);
+        }
+        if (bucketMs <= 0) {
+            throw new IllegalArgumentException("Illegal outbox bucket: " + bucketMs);
+        }
+        Path parent = path.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            FileLock lock = channel.tryLock();
+            if (lock == null) {
+                throw new IOException("Outbox " + path + " is used by another process");
+            }
+            long fileSize = HEADER_SIZE + (long) capacity * RECORD_SIZE;
+            ByteBuffer header = readHeader(channel);
+            if (header != null && header.getInt(CAPACITY_OFFSET) == capacity) {
+                CountOutbox outbox = new CountOutbox(channel, lock,
+                        channel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize), capacity, bucketMs);
+                outbox.head = header.getLong(HEAD_OFFSET);
+                outbox.tail = header.getLong(TAIL_OFFSET);
+                return outbox;
+            }
+            List<ByteBuffer> existing = header != null ? readRecords(channel, header) : new ArrayList<>();
+            channel.truncate(0);
+            CountOutbox outbox = new CountOutbox(channel, lock,
+                    channel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize), capacity, bucketMs);
+            outbox.reset();
+            for (ByteBuffer record : existing) {
+                outbox.append(record);
+            }
+            return outbox;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Прочитать заголовок существующего файла
+     *
+     * @return заголовок или null, если файл пуст или имеет неизвестный формат
+     */
+    @Nullable
+    private static ByteBuffer readHeader(@Nonnull FileChannel channel) throws IOException {
+        if (channel.size() < HEADER_SIZE) {
+            return null;
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        channel.read(header, 0);
+        int capacity = header.getInt(CAPACITY_OFFSET);
+        long head = header.getLong(HEAD_OFFSET);
+        long tail = header.getLong(TAIL_OFFSET);
+        if (header.getInt(MAGIC_OFFSET) != MAGIC || header.getInt(VERSION_OFFSET) != VERSION
+                || capacity <= 0 || head < 0 || tail < head || tail - head > capacity
+                || channel.size() < HEADER_SIZE + (long) capacity * RECORD_SIZE) {
+            return null;
+        }
+        return header;
+    }
+
+    /**
+     * Прочитать записи существующего файла в порядке добавления
+     */
+    @Nonnull
+    private static List<ByteBuffer> readRecords(@Nonnull FileChannel channel, @Nonnull ByteBuffer header)
+            throws IOException {
+        int capacity = header.getInt(CAPACITY_OFFSET);
+        List<ByteBuffer> records = new ArrayList<>();
+        for (long sequence = header.getLong(HEAD_OFFSET); sequence < header.getLong(TAIL_OFFSET); sequence++) {
+            ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+            channel.read(record, HEADER_SIZE + (sequence % capacity) * RECORD_SIZE);
+            records.add(record);
+        }
+        return records;
+    }
+
+    private void reset() {
+        buffer.putInt(MAGIC_OFFSET, MAGIC);
+        buffer.putInt(VERSION_OFFSET, VERSION);
+        buffer.putInt(CAPACITY_OFFSET, capacity);
+        head = 0;
+        tail = 0;
+        writeHeadAndTail();
+    }
+
+    private void append(@Nonnull ByteBuffer record) {
+        int offset = nextOffset();
+        for (int i = 0; i < RECORD_SIZE; i++) {
+            buffer.put(offset + i, record.get(i));
+        }
+        tail++;
+        writeHeadAndTail();
+    }
+
+    /**
+     * Смещение записи для следующего порядкового номера, при заполненном кольце самая старая запись вытесняется
+     */
+    private int nextOffset() {
+        if (tail - head == capacity) {
+            head++;
+            evicted++;
+        }
+        return offset(tail);
+    }
+
+    private int offset(long sequence) {
+        return HEADER_SIZE + (int) (sequence % capacity) * RECORD_SIZE;
+    }
+
+    private void writeHeadAndTail() {
+        buffer.putLong(HEAD_OFFSET, head);
+        buffer.putLong(TAIL_OFFSET, tail);
+    }
+
+    /**
+     * Сохранить метрику, объединив ее с записью того же уровня в том же временном интервале
+     *
+     * @return false, если название уровня слишком длинное для записи
+     */
+    boolean add(@Nonnull LevelMetric metric) {
+        int nameLength = encodeName(metric.level);
+        if (nameLength < 0) {
+            return false;
+        }
+        long bucket = metric.timestamp - metric.timestamp % bucketMs;
+        for (long sequence = tail - 1; sequence >= head; sequence--) {
+            int offset = offset(sequence);
+            if (buffer.getLong(offset + BUCKET_OFFSET) == bucket && nameEquals(offset, nameLength)) {
+                buffer.putLong(offset + COUNT_OFFSET, buffer.getLong(offset + COUNT_OFFSET) + metric.count);
+                buffer.putLong(offset + PEAK_OFFSET, Math.max(buffer.getLong(offset + PEAK_OFFSET), metric.peak));
+                buffer.putLong(offset + MIN_OFFSET, Math.min(buffer.getLong(offset + MIN_OFFSET), metric.min));
+                return true;
+            }
+        }
+        int offset = nextOffset();
+        buffer.putLong(offset + BUCKET_OFFSET, bucket);
+        buffer.putLong(offset + COUNT_OFFSET, metric.count);
+        buffer.putLong(offset + PEAK_OFFSET, metric.peak);
+        buffer.putLong(offset + MIN_OFFSET, metric.min);
+        buffer.putInt(offset + INT_LEVEL_OFFSET, metric.level.intLevel());
+        buffer.put(offset + NAME_LENGTH_OFFSET, (byte) nameLength);
+        for (int i = 0; i < nameLength; i++) {
+            buffer.put(offset + NAME_OFFSET + i, nameBuffer[i]);
+        }
+        tail++;
+        writeHeadAndTail();
+        return true;
+    }
+
+    /**
+     * Записать название уровня в {@link #nameBuffer}
+     *
+     * @return длина названия в байтах или -1, если название не помещается в запись
+     */
+    private int encodeName(@Nonnull Level level) {
+        String name = level.name();
+        if (name.length() > MAX_NAME_LENGTH) {
+            return -1;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c > 0x7F) {
+                byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+                if (bytes.length > MAX_NAME_LENGTH) {
+                    return -1;
+                }
+                System.arraycopy(bytes, 0, nameBuffer, 0, bytes.length);
+                return bytes.length;
+            }
+            nameBuffer[i] = (byte) c;
+        }
+        return name.length();
+    }
+
+    private boolean nameEquals(int offset, int nameLength) {
+        if (buffer.get(offset + NAME_LENGTH_OFFSET) != nameLength) {
+            return false;
+        }
+        for (int i = 0; i < nameLength; i++) {
+            if (buffer.get(offset + NAME_OFFSET + i) != nameBuffer[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Количество сохраненных записей
+     */
+    int size() {
+        return (int) (tail - head);
+    }
+
+    boolean isEmpty() {
+        return tail == head;
+    }
+
+    /**
+     * Количество записей, вытесненных с момента открытия
+     */
+    long evicted() {
+        return evicted;
+    }
+
+    /**
+     * Заполнить метрику значениями записи с номером index, считая от самой старой
+     */
+    void read(int index, @Nonnull LevelMetric metric) {
+        int offset = offset(head + index);
+        int nameLength = buffer.get(offset + NAME_LENGTH_OFFSET);
+        byte[] name = new byte[nameLength];
+        for (int i = 0; i < nameLength; i++) {
+            name[i] = buffer.get(offset + NAME_OFFSET + i);
+        }
+        metric.level = Level.forName(new String(name, StandardCharsets.UTF_8),
+                buffer.getInt(offset + INT_LEVEL_OFFSET));
+        metric.count = buffer.getLong(offset + COUNT_OFFSET);
+        metric.peak = buffer.getLong(offset + PEAK_OFFSET);
+        metric.min = buffer.getLong(offset + MIN_OFFSET);
+        metric.timestamp = buffer.getLong(offset + BUCKET_OFFSET);
+        metric.interval = bucketMs;
+    }
+
+    /**
+     * Удалить самые старые записи в количестве records
+     */
+    void remove(int records) {
+        head += Math.min(records, size());
+        writeHeadAndTail();
+    }
+
+    /**
+     * Сбросить изменения на диск и освободить файл
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            buffer.force();
+            lock.release();
+        } finally {
+            channel.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "CountOutbox{size=" + size() + ", capacity=" + capacity + ", evicted=" + evicted + '}';
+    }
+}
@@ -0,0 +1,264 @@
+package ru.yandex.money.logging.log4j.appender.count;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.core.Layout;
+import org.apache.logging.log4j.core.net.AbstractSocketManager;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.management.JMException;
+import java.io.IOException;
+import java.io.Serializable;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Счетчики событий вместе со всем, что их отправляет: запись в сокет, расписание отправок, статистика,
+ * HTTP-эндпоинт и менеджеры сокетов дополнительных адресов.
+ * <p>
+ * Принадлежит одному {@link SocketLogLevelCountAppender} либо нескольким через {@link SharedCountManager}.
+ * Запускается один раз при старте первого владельца и останавливается с финальной отправкой
+ * при остановке последнего.
+ */
+final class CountPipeline {
+
+    @Nonnull
+    private final String name;
+    @Nonnull
+    private final Logger log;
+    /**
+     * Параметры счетчиков и отправки
+     */
+    @Nonnull
+    final CountSettings settings;
+    /**
+     * level -> счетчик событий по этому level
+     */
+    @Nonnull
+    final LevelCounters counters;
+    /**
+     * Запись метрик в сокет
+     */
+    @Nonnull
+    private final CountWriter writer;
+    /**
+     * Запись метрик самых частых событий, null - не отслеживаются
+     */
+    @Nullable
+    final CountWriter heavyHitterWriter;
+    /**
+     * Метрики работы самого аппендера, null - не отправляются
+     */
+    @Nullable
+    private final SelfMetrics selfMetrics;
+    /**
+     * Счетчики по префиксам имени логгера, null - не собираются
+     */
+    @Nullable
+    final LoggerPrefixCounters loggerPrefixes;
+    /**
+     * Расписание отправок количества событий в сокет: собственный поток, общий планировщик
+     * или потоки, записавшие событие
+     */
+    @Nonnull
+    private final SendSchedule sendSchedule;
+    /**
+     * Расписание отправок потоком, записавшим событие, null - отправки выполняет отдельный поток
+     */
+    @Nullable
+    final LazyFlushSchedule lazyFlush;
+    /**
+     * Статистика количества событий для приложения и JMX
+     */
+    @Nonnull
+    final LevelCountStatistics statistics;
+    /**
+     * HTTP-эндпоинт для опроса количества событий, null - не используется
+     */
+    @Nullable
+    private final MetricsHttpEndpoint metricsEndpoint;
+    /**
+     * Менеджеры сокетов, освобождаемые после финальной отправки
+     */
+    @Nonnull
+    private final List<AbstractSocketManager> socketManagers;
+    private boolean started;
+    private boolean stopped;
+
+    CountPipeline(@Nonnull String name,
+                  @Nonnull Logger log,
+                  @Nonnull CountSettings settings,
+                  @Nullable CountOutbox outbox,
+                  List<CountWriter> destinationWriters,
+                  List<AbstractSocketManager> socketManagers,
+                  AbstractSocketManager manager) {
+        this.name = requireNonNull(name, "name");
+        this.log = requireNonNull(log, "log");
+        this.settings = requireNonNull(settings, "settings");
+        this.counters = new LevelCounters(settings);
+        Layout<? extends Serializable> layout = settings.layout;
+        int batchSize = settings.batchSize;
+        SocketLogLevelCountAppender.TransportConfig nioTransport = settings.nioTransport;
+        CountWriter socketWriter;
+        if (settings.binaryAppenderId != null) {
+            socketWriter = new BinaryFrameCountWriter(settings.binaryAppenderId, System.currentTimeMillis(),
+                    batchSize, frame -> {
+                        synchronized (manager) {
+                            manager.writeBytes(frame.array(), frame.arrayOffset() + frame.position(),
+                                    frame.remaining());
+                            manager.flush();
+                        }
+                    });
+        } else {
+            MetricEncoder encoder = settings.directEncoding
+                    ? SocketLogLevelCountAppender.createPatternEncoder(layout)
+                    : null;
+            socketWriter = SocketLogLevelCountAppender.createEncodingWriter(layout, encoder, batchSize, nioTransport,
+                    manager);
+            if (socketWriter == null) {
+                socketWriter = new ManagerCountWriter(new LayoutMetricEncoder(layout), manager, 0);
+            }
+        }
+        if (outbox != null) {
+            socketWriter = new OutboxCountWriter(socketWriter, outbox, log);
+        }
+        if (destinationWriters.isEmpty()) {
+            this.writer = socketWriter;
+        } else {
+            // дополнительные адреса асинхронные, поэтому передаем метрики в них до записи в основной сокет
+            List<CountWriter> writers = new ArrayList<>(destinationWriters);
+            writers.add(socketWriter);
+            this.writer = new FanOutCountWriter(writers);
+        }
+        this.socketManagers = socketManagers;
+        Layout<? extends Serializable> heavyHitterLayout = settings.heavyHitterLayout;
+        if (heavyHitterLayout != null && settings.heavyHitters > 0) {
+            CountWriter topWriter = SocketLogLevelCountAppender.createEncodingWriter(heavyHitterLayout, null,
+                    batchSize, nioTransport, manager);
+            this.heavyHitterWriter = topWriter != null
+                    ? topWriter
+                    : new ManagerCountWriter(new LayoutMetricEncoder(heavyHitterLayout), manager, 0);
+        } else {
+            this.heavyHitterWriter = null;
+        }
+        Layout<? extends Serializable> selfMetricsLayout = settings.selfMetricsLayout;
+        if (selfMetricsLayout != null) {
+            CountWriter selfWriter = SocketLogLevelCountAppender.createEncodingWriter(selfMetricsLayout, null,
+                    batchSize, nioTransport, manager);
+            this.selfMetrics = new SelfMetrics(selfWriter != null
+                    ? selfWriter
+                    : new ManagerCountWriter(new LayoutMetricEncoder(selfMetricsLayout), manager, 0),
+                    settings.selfMetricsPrefix, settings.selfMetricsIntervalMs);
+        } else {
+            this.selfMetrics = null;
+        }
+        Layout<? extends Serializable> loggerLayout = settings.loggerLayout;
+        if (loggerLayout != null) {
+            CountWriter loggerWriter = SocketLogLevelCountAppender.createEncodingWriter(loggerLayout, null,
+                    batchSize, nioTransport, manager);
+            this.loggerPrefixes = new LoggerPrefixCounters(loggerWriter != null
+                    ? loggerWriter
+                    : new ManagerCountWriter(new LayoutMetricEncoder(loggerLayout), manager, 0),
+                    settings.loggerDepth, settings.maxLoggerPrefixes);
+        } else {
+            this.loggerPrefixes = null;
+        }
+        CountSender sender = new CountSender(counters, log, this.writer, heavyHitterWriter, selfMetrics,
+                loggerPrefixes, settings);
+        this.lazyFlush = settings.lazyFlush
+                ? new LazyFlushSchedule(sender, settings, log)
+                : null;
+        if (this.lazyFlush != null) {
+            this.sendSchedule = this.lazyFlush;
+        } else {
+            this.sendSchedule = settings.sharedScheduler
+                    ? SharedFlushScheduler.schedule(sender, settings, log)
+                    : new SenderThread(sender, settings, log);
+        }
+        if (!settings.thresholds.isEmpty()) {
+            counters.onThreshold(sendSchedule::wakeUp);
+        }
+        this.statistics = new LevelCountStatistics(counters, sender);
+        this.metricsEndpoint = settings.metricsPort > 0
+                ? new MetricsHttpEndpoint(counters, settings.metricsHost, settings.metricsPort,
+                settings.metricsName, name, log)
+                : null;
+    }
+
+    /**
+     * Адрес HTTP-эндпоинта для опроса количества событий, null - эндпоинт не запущен
+     */
+    @Nullable
+    InetSocketAddress getMetricsAddress() {
+        return metricsEndpoint != null ? metricsEndpoint.getAddress() : null;
+    }
+
+    /**
+     * Начать отправки. Повторные вызовы ничего не делают.
+     */
+    synchronized void start() {
+        if (started) {
+            return;
+        }
+        started = true;
+        sendSchedule.start();
+        if (metricsEndpoint != null) {
+            try {
+                metricsEndpoint.start();
+            } catch (final IOException | RuntimeException ex) {
+                log.error("Could not start metrics endpoint {} for SocketCountAppender {}",
+                        metricsEndpoint, name, ex);
+            }
+        }
+        if (settings.jmx) {
+            try {
+                statistics.register(name);
+            } catch (final JMException | RuntimeException ex) {
+                log.error("Could not register MBean for SocketCountAppender {}", name, ex);
+            }
+        }
+    }
+
+    /**
+     * Выполнить финальную отправку, закрыть запись и освободить менеджеры сокетов. Повторные вызовы
+     * ничего не делают.
+     */
+    synchronized void stop(final long timeout, final TimeUnit timeUnit) {
+        if (stopped) {
+            return;
+        }
+        stopped = true;
+        if (settings.jmx) {
+            try {
+                statistics.unregister(name);
+            } catch (final JMException | RuntimeException ex) {
+                log.warn("Could not unregister MBean for SocketCountAppender {}", name, ex);
+            }
+        }
+        if (metricsEndpoint != null) {
+            metricsEndpoint.stop();
+        }
+        try {
+            sendSchedule.stop(settings.shutdownTimeoutMs);
+        } catch (final InterruptedException ex) {
+            log.warn("Interrupted while stopping SocketCountAppender {}", name);
+        }
+        writer.close();
+        if (heavyHitterWriter != null) {
+            heavyHitterWriter.close();
+        }
+        if (selfMetrics != null) {
+            selfMetrics.close();
+        }
+        if (loggerPrefixes != null) {
+            loggerPrefixes.close();
+        }
+        for (AbstractSocketManager socketManager : socketManagers) {
+            socketManager.stop(timeout, timeUnit);
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package ru.yandex.money.logging.log4j.appender.count;
+
+import org.apache.logging.log4j.Logger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Arrays;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Отправка количества событий в сокет: снимает накопленные значения счетчиков и передает их в {@link CountWriter}.
+ * <p>
+ * Не потокобезопасен: отправки одного экземпляра не должны выполняться конкурентно,
+ * за это отвечает {@link SendSchedule}, вызывающий {@link #writeEventsToSocket()}.
+ */
+class CountSender {
+
+    /**
+     * level -> счетчик событий по этому level
+     */
+    @Nonnull
+    private final LevelCounters counters;
+    @Nonnull
+    private final Logger log;
+    /**
+     * Действие по отправке количества событий в сокет
+     */
+    @Nonnull
+    private final CountWriter writer;
+    /**
+     * Метрика, переиспользуемая для всех уровней и всех отправок
+     */
+    private final LevelMetric metric = new LevelMetric();
+    /**
+     * Время последней отправки, 0 - отправок еще не было
+     */
+    private volatile long lastFlushMs;
+    /**
+     * Запись метрик самых частых событий, null - не отправляются
+     */
+    @Nullable
+    private final CountWriter heavyHitterWriter;
+    /**
+     * Самые частые ключи одного уровня и количество их появлений, переиспользуются между отправками
+     */
+    @Nonnull
+    private final String[] topKeys;
+    @Nonnull
+    private final long[] topCounts;
+    /**
+     * Отправлять при каждой отправке все уровни, в которых были события, в том числе без новых событий
+     */
+    private final boolean cumulative;
+    /**
+     * Метрики самого аппендера, null - не собираются
+     */
+    @Nullable
+    private final SelfMetrics selfMetrics;
+    /**
+     * Счетчики по префиксам имени логгера, null - не собираются
+     */
+    @Nullable
+    private final LoggerPrefixCounters loggerPrefixes;
+    /**
+     * Количество событий, переданных в writer с последнего завершения пакета
+     */
+    private long batchEvents;
+
+    CountSender(@Nonnull LevelCounters counters, @Nonnull Logger log, @Nonnull CountWriter writer) {
+        this(counters, log, writer, null, null, null, CountSettings.DEFAULT);
+    }
+
+    /**
+     * @param heavyHitterWriter запись метрик самых частых шаблонов сообщений и логгеров
+     * @param selfMetrics       метрики самого аппендера, отправляемые после отправки уровней
+     * @param loggerPrefixes    счетчики по префиксам имени логгера, отправляемые после отправки уровней
+     * @param settings          количество самых частых шаблонов сообщений и логгеров каждого уровня в отправке
+     *                          и отправка уровней без новых событий, если в них были события ранее
+     *                          ({@link CountSettings#cumulative}): приемник получает актуальное значение
+     *                          %X{total} при каждой отправке
+     */
+    CountSender(@Nonnull LevelCounters counters, @Nonnull Logger log, @Nonnull CountWriter writer,
+                @Nullable CountWriter heavyHitterWriter, @Nullable SelfMetrics selfMetrics,
+                @Nullable LoggerPrefixCounters loggerPrefixes, @Nonnull CountSettings settings) {
+        this.counters = requireNonNull(counters, "counters");
+        this.log = requireNonNull(log, "log");
+        this.writer = requireNonNull(writer, "writer");
+        this.heavyHitterWriter = heavyHitterWriter;
+        this.topKeys = new String[heavyHitterWriter != null ? settings.heavyHitters : 0];
+        this.topCounts = new long[topKeys.length];
+        this.cumulative = settings.cumulative;
+        this.selfMetrics = selfMetrics;
+        this.loggerPrefixes = loggerPrefixes;
+    }
+
+    /**
+     * Отправить все уровни
+     *
+     * @return количество отправленных событий
+     */
+    long writeEventsToSocket() {
+        long startNanos = System.nanoTime();
+        long nowMs = System.currentTimeMillis();
+        lastFlushMs = nowMs;
+        counters.clearUrgent();
+        long events = 0;
+        for (LevelCounter counter : counters.all()) {
+            events += write(counter, nowMs);
+            // досрочные отправки не возвращают бюджет, он обновляется только по расписанию
+            counter.resetBudget();
+        }
+        endBatch();
+        if (heavyHitterWriter != null) {
+            writeHeavyHitters(heavyHitterWriter, nowMs);
+        }
+        if (loggerPrefixes != null) {
+            writeLoggerPrefixes(loggerPrefixes, nowMs);
+        }
+        if (selfMetrics != null) {
+            selfMetrics.recordFlush(System.nanoTime() - startNanos);
+            writeSelfMetrics(selfMetrics, nowMs);
+        }
+        return events;
+    }
+
+    private void writeSelfMetrics(@Nonnull SelfMetrics selfMetrics, long nowMs) {
+        try {
+            selfMetrics.writeIfDue(nowMs, writer.bytesWritten(), writer.datagramsDropped());
+        } catch (RuntimeException e) {
+            log.error("CountSender failed to process self metrics", e);
+        }
+    }
+
+    private void writeLoggerPrefixes(@Nonnull LoggerPrefixCounters loggerPrefixes, long nowMs) {
+        try {
+            loggerPrefixes.write(nowMs);
+        } catch (RuntimeException e) {
+            log.error("CountSender failed to process logger prefixes", e);
+        }
+    }
+
+    /**
+     * Учесть опоздание отправки относительно расписания
+     */
+    void recordLag(long lagMs) {
+        if (selfMetrics != null) {
+            selfMetrics.recordLag(lagMs);
+        }
+    }
+
+    /**
+     * Отправить самые частые шаблоны сообщений и логгеры каждого уровня за период
+     */
+    private void writeHeavyHitters(@Nonnull CountWriter heavyHitterWriter, long nowMs) {
+        try {
+            for (LevelCounter counter : counters.all()) {
+                if (counter.formats != null) {
+                    writeTop(heavyHitterWriter, counter, counter.formats, "format", nowMs);
+                    writeTop(heavyHitterWriter, counter, counter.loggers, "logger", nowMs);
+                }
+            }
+            heavyHitterWriter.endBatch();
+        } catch (RuntimeException e) {
+            log.error("CountSender failed to process heavy hitters", e);
+        } finally {
+            Arrays.fill(topKeys, null);
+        }
+    }
+
+    private void writeTop(@Nonnull CountWriter heavyHitterWriter, @Nonnull LevelCounter counter,
+                          @Nonnull HeavyHitters heavyHitters, @Nonnull String kind, long nowMs) {
+        int selected = heavyHitters.top(topKeys, topCounts);
+        for (int i = 0; i < selected; i++) {
+            metric.level = counter.level;
+            metric.count = topCounts[i];
+            metric.total = 0;
+            metric.interval = 0;
+            metric.bytes = 0;
+            metric.suppressed = 0;
+            metric.peak = 0;
+            metric.min = 0;
+            metric.timestamp = nowMs;
+            metric.key = topKeys[i];
+            metric.kind = kind;
+            heavyHitterWriter.write(metric);
+        }
+    }
+
+    /**
+     * Досрочно отправить уровни, превысившие порог
+     */
+    void writeUrgentEventsToSocket() {
+        long startNanos = System.nanoTime();
+        long nowMs = System.currentTimeMillis();
+        counters.clearUrgent();
+        for (LevelCounter counter : counters.all()) {
+            if (counter.takeUrgent()) {
+                write(counter, nowMs);
+            }
+        }
+        endBatch();
+        if (selfMetrics != null) {
+            selfMetrics.recordFlush(System.nanoTime() - startNanos);
+        }
+    }
+
+    /**
+     * Есть ли уровни, ожидающие досрочной отправки
+     */
+    boolean hasUrgentEvents() {
+        return counters.isUrgent();
+    }
+
+    /**
+     * @return количество событий уровня с предыдущей отправки
+     */
+    private long write(@Nonnull LevelCounter counter, long nowMs) {
+        counter.snapshot(metric, nowMs);
+        if (metric.count == 0 && metric.suppressed == 0 && (!cumulative || metric.total == 0)) {
+            return 0;
+        }
+        metric.startId = counters.startId;
+        try {
+            writer.write(metric);
+            batchEvents += metric.count;
+        } catch (RuntimeException e) {
+            log.error("CountSender failed to process events", e);
+            if (selfMetrics != null) {
+                selfMetrics.recordFailure(metric.count);
+            }
+        }
+        return metric.count;
+    }
+
+    private void endBatch() {
+        try {
+            writer.endBatch();
+        } catch (RuntimeException e) {
+            log.error("CountSender failed to process events", e);
+            if (selfMetrics != null) {
+                // часть пакета могла быть записана до ошибки, поэтому это верхняя оценка
+                selfMetrics.recordFailure(batchEvents);
+            }
+        } finally {
+            batchEvents = 0;
+        }
+    }
+
+    /**
+     * Время последней отправки, 0 - отправок еще не было
+     */
+    long getLastFlushMs() {
+        return lastFlushMs;
+    }
+
+    @Override
+    public String toString() {
+        return counters.toString();
+    }
+}
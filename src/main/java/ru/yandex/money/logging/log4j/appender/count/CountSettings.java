@@ -0,0 +1,486 @@
+package ru.yandex.money.logging.log4j.appender.count;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.Layout;
+import org.apache.logging.log4j.core.layout.PatternLayout;
+import org.apache.logging.log4j.core.net.Protocol;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Неизменяемые параметры счетчиков и их отправки, которые {@link SocketLogLevelCountAppender.Builder}
+ * заполняет после проверки параметров аппендера.
+ * <p>
+ * По параметрам создаются {@link CountPipeline}, {@link LevelCounters}, {@link LevelCounter},
+ * {@link CountSender} и расписания отправок. Параметры сравниваются через {@link #equals(Object)},
+ * чтобы предупредить о различии параметров аппендеров с общими счетчиками: layout сравниваются по классу
+ * и шаблону {@link PatternLayout}, дополнительные адреса - по параметрам.
+ * <p>
+ * Значения по умолчанию ({@link #DEFAULT}) - счетчики без слотов, порогов, бюджетов и самых частых событий.
+ */
+final class CountSettings {
+
+    /**
+     * Параметры по умолчанию
+     */
+    static final CountSettings DEFAULT = newBuilder().build();
+
+    @Nullable
+    final Layout<? extends Serializable> layout;
+    @Nullable
+    final Protocol protocol;
+    @Nullable
+    final String host;
+    final int port;
+    final int connectTimeout;
+    final int reconnectDelayMillis;
+    final boolean immediateFail;
+    /**
+     * Период ожидания остановки, мс
+     */
+    final long shutdownTimeoutMs;
+    /**
+     * Период отправки, мс. При подстройке периода - начальный
+     */
+    final long sendPeriodMs;
+    /**
+     * Минимальный и максимальный период отправки при подстройке, мс. 0 - период постоянный
+     */
+    final long minSendPeriodMs;
+    final long maxSendPeriodMs;
+    /**
+     * Желаемое количество событий за одну отправку при подстройке периода
+     */
+    final long targetCount;
+    /**
+     * Длительность слота счетчиков, мс. 0 - разбиение на слоты не используется
+     */
+    final long burstSlotMs;
+    /**
+     * Название уровня -> порог количества событий за период для досрочной отправки
+     */
+    @Nonnull
+    final Map<String, Long> thresholds;
+    /**
+     * Название уровня -> бюджет пересылки событий за период в нижестоящие аппендеры
+     */
+    @Nonnull
+    final Map<String, Long> forwardBudgets;
+    /**
+     * Минимальный интервал между досрочными отправками, мс
+     */
+    final long earlyFlushIntervalMs;
+    /**
+     * Количество самых частых шаблонов сообщений и логгеров каждого уровня в отправке, 0 - не отслеживаются
+     */
+    final int heavyHitters;
+    @Nullable
+    final Layout<? extends Serializable> heavyHitterLayout;
+    /**
+     * Интервал отправки метрик самого аппендера, мс. 0 - не отправляются
+     */
+    final long selfMetricsIntervalMs;
+    @Nullable
+    final String selfMetricsPrefix;
+    @Nullable
+    final Layout<? extends Serializable> selfMetricsLayout;
+    /**
+     * Количество сегментов имени логгера в префиксе, 0 - события по префиксам не считаются
+     */
+    final int loggerDepth;
+    final int maxLoggerPrefixes;
+    @Nullable
+    final Layout<? extends Serializable> loggerLayout;
+    /**
+     * Учитывать оценку объема событий в байтах
+     */
+    final boolean countBytes;
+    final int batchSize;
+    /**
+     * Идентификатор аппендера в двоичных кадрах, null - метрики кодируются через layout
+     */
+    @Nullable
+    final String binaryAppenderId;
+    final boolean cumulative;
+    final boolean directEncoding;
+    final boolean sharedScheduler;
+    final boolean lazyFlush;
+    /**
+     * Собственный UDP-транспорт, null - запись через менеджер сокета
+     */
+    @Nullable
+    final SocketLogLevelCountAppender.TransportConfig nioTransport;
+    final boolean jmx;
+    @Nullable
+    final String metricsHost;
+    /**
+     * Порт HTTP-эндпоинта, 0 - не используется
+     */
+    final int metricsPort;
+    @Nullable
+    final String metricsName;
+    /**
+     * Файл для хранения неотправленных метрик, null - не используется
+     */
+    @Nullable
+    final String outboxFile;
+    final int outboxSize;
+    final long outboxBucketMs;
+    @Nonnull
+    final List<CountDestination> destinations;
+
+    private CountSettings(@Nonnull Builder builder) {
+        this.layout = builder.layout;
+        this.protocol = builder.protocol;
+        this.host = builder.host;
+        this.port = builder.port;
+        this.connectTimeout = builder.connectTimeout;
+        this.reconnectDelayMillis = builder.reconnectDelayMillis;
+        this.immediateFail = builder.immediateFail;
+        this.shutdownTimeoutMs = builder.shutdownTimeoutMs;
+        this.sendPeriodMs = builder.sendPeriodMs;
+        this.minSendPeriodMs = builder.minSendPeriodMs;
+        this.maxSendPeriodMs = builder.maxSendPeriodMs;
+        this.targetCount = builder.targetCount;
+        this.burstSlotMs = builder.burstSlotMs;
+        this.thresholds = Collections.unmodifiableMap(new HashMap<>(builder.thresholds));
+        this.forwardBudgets = Collections.unmodifiableMap(new HashMap<>(builder.forwardBudgets));
+        this.earlyFlushIntervalMs = builder.earlyFlushIntervalMs;
+        this.heavyHitters = builder.heavyHitters;
+        this.heavyHitterLayout = builder.heavyHitterLayout;
+        this.selfMetricsIntervalMs = builder.selfMetricsIntervalMs;
+        this.selfMetricsPrefix = builder.selfMetricsPrefix;
+        this.selfMetricsLayout = builder.selfMetricsLayout;
+        this.loggerDepth = builder.loggerDepth;
+        this.maxLoggerPrefixes = builder.maxLoggerPrefixes;
+        this.loggerLayout = builder.loggerLayout;
+        this.countBytes = builder.countBytes;
+        this.batchSize = builder.batchSize;
+        this.binaryAppenderId = builder.binaryAppenderId;
+        this.cumulative = builder.cumulative;
+        this.directEncoding = builder.directEncoding;
+        this.sharedScheduler = builder.sharedScheduler;
+        this.lazyFlush = builder.lazyFlush;
+        this.nioTransport = builder.nioTransport;
+        this.jmx = builder.jmx;
+        this.metricsHost = builder.metricsHost;
+        this.metricsPort = builder.metricsPort;
+        this.metricsName = builder.metricsName;
+        this.outboxFile = builder.outboxFile;
+        this.outboxSize = builder.outboxSize;
+        this.outboxBucketMs = builder.outboxBucketMs;
+        this.destinations = Collections.unmodifiableList(new ArrayList<>(builder.destinations));
+    }
+
+    @Nonnull
+    static Builder newBuilder() {
+        return new Builder();
+    }
+
+    /**
+     * Создать подстройку периода отправки
+     *
+     * @return подстройка или null, если период постоянный
+     */
+    @Nullable
+    AdaptivePeriod newAdaptivePeriod() {
+        return maxSendPeriodMs > 0
+                ? new AdaptivePeriod(sendPeriodMs, minSendPeriodMs, maxSendPeriodMs, targetCount)
+                : null;
+    }
+
+    /**
+     * Количество слотов в кольце каждого счетчика: с запасом на самый длинный период отправки
+     */
+    int slotCount() {
+        return burstSlotMs > 0
+                ? LevelCounters.slotCountFor(maxSendPeriodMs > 0 ? maxSendPeriodMs : sendPeriodMs, burstSlotMs)
+                : 1;
+    }
+
+    /**
+     * Количество слотов для отслеживания самых частых шаблонов сообщений и логгеров, 0 - не отслеживаются
+     */
+    int heavyHitterSlots() {
+        return heavyHitters > 0 ? HeavyHitters.slotsFor(heavyHitters) : 0;
+    }
+
+    /**
+     * Порог количества событий уровня за период для досрочной отправки, 0 - порог не задан
+     */
+    long threshold(@Nonnull Level level) {
+        return thresholds.getOrDefault(level.name(), 0L);
+    }
+
+    /**
+     * Бюджет пересылки событий уровня за период, {@link LevelCounter#NO_BUDGET} - не задан
+     */
+    long forwardBudget(@Nonnull Level level) {
+        return forwardBudgets.getOrDefault(level.name(), LevelCounter.NO_BUDGET);
+    }
+
+    /**
+     * Значения всех параметров в сравнимом виде
+     */
+    @Nonnull
+    private List<Object> values() {
+        List<Object> destinationValues = new ArrayList<>();
+        for (CountDestination destination : destinations) {
+            destinationValues.add(Arrays.asList(destination.protocol, destination.host, destination.port,
+                    destination.connectTimeout, destination.reconnectDelayMillis, destination.immediateFail,
+                    describe(destination.layout), destination.batchSize, destination.directEncoding,
+                    destination.nioTransport, destination.dnsRefreshInterval));
+        }
+        return Arrays.asList(describe(layout), protocol, host, port, connectTimeout, reconnectDelayMillis,
+                immediateFail, shutdownTimeoutMs,
+                sendPeriodMs, minSendPeriodMs, maxSendPeriodMs, targetCount, burstSlotMs,
+                thresholds, forwardBudgets, earlyFlushIntervalMs,
+                heavyHitters, describe(heavyHitterLayout),
+                selfMetricsIntervalMs, selfMetricsPrefix, describe(selfMetricsLayout),
+                loggerDepth, maxLoggerPrefixes, describe(loggerLayout),
+                countBytes, batchSize, binaryAppenderId, cumulative, directEncoding, sharedScheduler, lazyFlush,
+                nioTransport != null
+                        ? Arrays.asList(nioTransport.host, nioTransport.port, nioTransport.dnsRefreshIntervalMs)
+                        : null,
+                jmx, metricsHost, metricsPort, metricsName,
+                outboxFile, outboxSize, outboxBucketMs, destinationValues);
+    }
+
+    @Nullable
+    private static String describe(@Nullable Layout<? extends Serializable> layout) {
+        if (layout == null) {
+            return null;
+        }
+        if (layout instanceof PatternLayout) {
+            PatternLayout patternLayout = (PatternLayout) layout;
+            return patternLayout.getConversionPattern() + " " + patternLayout.getCharset();
+        }
+        return layout.getClass().getName();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        return values().equals(((CountSettings) o).values());
+    }
+
+    @Override
+    public int hashCode() {
+        return values().hashCode();
+    }
+
+    /**
+     * Построитель параметров. Не заданные параметры принимают значения {@link #DEFAULT}.
+     */
+    static final class Builder {
+
+        private Layout<? extends Serializable> layout;
+        private Protocol protocol;
+        private String host;
+        private int port;
+        private int connectTimeout;
+        private int reconnectDelayMillis;
+        private boolean immediateFail;
+        private long shutdownTimeoutMs;
+        private long sendPeriodMs;
+        private long minSendPeriodMs;
+        private long maxSendPeriodMs;
+        private long targetCount;
+        private long burstSlotMs;
+        private Map<String, Long> thresholds = Collections.emptyMap();
+        private Map<String, Long> forwardBudgets = Collections.emptyMap();
+        private long earlyFlushIntervalMs;
+        private int heavyHitters;
+        private Layout<? extends Serializable> heavyHitterLayout;
+        private long selfMetricsIntervalMs;
+        private String selfMetricsPrefix;
+        private Layout<? extends Serializable> selfMetricsLayout;
+        private int loggerDepth;
+        private int maxLoggerPrefixes;
+        private Layout<? extends Serializable> loggerLayout;
+        private boolean countBytes;
+        private int batchSize;
+        private String binaryAppenderId;
+        private boolean cumulative;
+        private boolean directEncoding;
+        private boolean sharedScheduler;
+        private boolean lazyFlush;
+        private SocketLogLevelCountAppender.TransportConfig nioTransport;
+        private boolean jmx;
+        private String metricsHost;
+        private int metricsPort;
+        private String metricsName;
+        private String outboxFile;
+        private int outboxSize;
+        private long outboxBucketMs;
+        private List<CountDestination> destinations = Collections.emptyList();
+
+        private Builder() {
+        }
+
+        @Nonnull
+        CountSettings build() {
+            return new CountSettings(this);
+        }
+
+        Builder withLayout(@Nonnull Layout<? extends Serializable> layout) {
+            this.layout = requireNonNull(layout, "layout");
+            return this;
+        }
+
+        Builder withAddress(@Nonnull Protocol protocol, @Nullable String host, int port) {
+            this.protocol = requireNonNull(protocol, "protocol");
+            this.host = host;
+            this.port = port;
+            return this;
+        }
+
+        Builder withConnection(int connectTimeout, int reconnectDelayMillis, boolean immediateFail) {
+            this.connectTimeout = connectTimeout;
+            this.reconnectDelayMillis = reconnectDelayMillis;
+            this.immediateFail = immediateFail;
+            return this;
+        }
+
+        Builder withShutdownTimeoutMs(long shutdownTimeoutMs) {
+            this.shutdownTimeoutMs = shutdownTimeoutMs;
+            return this;
+        }
+
+        Builder withSendPeriodMs(long sendPeriodMs) {
+            this.sendPeriodMs = sendPeriodMs;
+            return this;
+        }
+
+        /**
+         * Подстраивать период отправки в границах [minSendPeriodMs, maxSendPeriodMs]
+         */
+        Builder withAdaptivePeriod(long minSendPeriodMs, long maxSendPeriodMs, long targetCount) {
+            this.minSendPeriodMs = minSendPeriodMs;
+            this.maxSendPeriodMs = maxSendPeriodMs;
+            this.targetCount = targetCount;
+            return this;
+        }
+
+        Builder withBurstSlotMs(long burstSlotMs) {
+            this.burstSlotMs = burstSlotMs;
+            return this;
+        }
+
+        Builder withThresholds(@Nonnull Map<String, Long> thresholds) {
+            this.thresholds = requireNonNull(thresholds, "thresholds");
+            return this;
+        }
+
+        Builder withForwardBudgets(@Nonnull Map<String, Long> forwardBudgets) {
+            this.forwardBudgets = requireNonNull(forwardBudgets, "forwardBudgets");
+            return this;
+        }
+
+        Builder withEarlyFlushIntervalMs(long earlyFlushIntervalMs) {
+            this.earlyFlushIntervalMs = earlyFlushIntervalMs;
+            return this;
+        }
+
+        Builder withHeavyHitters(int heavyHitters, @Nullable Layout<? extends Serializable> heavyHitterLayout) {
+            this.heavyHitters = heavyHitters;
+            this.heavyHitterLayout = heavyHitterLayout;
+            return this;
+        }
+
+        Builder withSelfMetrics(long selfMetricsIntervalMs, @Nullable String selfMetricsPrefix,
+                                @Nullable Layout<? extends Serializable> selfMetricsLayout) {
+            this.selfMetricsIntervalMs = selfMetricsIntervalMs;
+            this.selfMetricsPrefix = selfMetricsPrefix;
+            this.selfMetricsLayout = selfMetricsLayout;
+            return this;
+        }
+
+        Builder withLoggerPrefixes(int loggerDepth, int maxLoggerPrefixes,
+                                   @Nullable Layout<? extends Serializable> loggerLayout) {
+            this.loggerDepth = loggerDepth;
+            this.maxLoggerPrefixes = maxLoggerPrefixes;
+            this.loggerLayout = loggerLayout;
+            return this;
+        }
+
+        Builder withCountBytes(boolean countBytes) {
+            this.countBytes = countBytes;
+            return this;
+        }
+
+        Builder withBatchSize(int batchSize) {
+            this.batchSize = batchSize;
+            return this;
+        }
+
+        Builder withBinaryAppenderId(@Nullable String binaryAppenderId) {
+            this.binaryAppenderId = binaryAppenderId;
+            return this;
+        }
+
+        Builder withCumulative(boolean cumulative) {
+            this.cumulative = cumulative;
+            return this;
+        }
+
+        Builder withDirectEncoding(boolean directEncoding) {
+            this.directEncoding = directEncoding;
+            return this;
+        }
+
+        Builder withSharedScheduler(boolean sharedScheduler) {
+            this.sharedScheduler = sharedScheduler;
+            return this;
+        }
+
+        Builder withLazyFlush(boolean lazyFlush) {
+            this.lazyFlush = lazyFlush;
+            return this;
+        }
+
+        Builder withNioTransport(@Nullable SocketLogLevelCountAppender.TransportConfig nioTransport) {
+            this.nioTransport = nioTransport;
+            return this;
+        }
+
+        Builder withJmx(boolean jmx) {
+            this.jmx = jmx;
+            return this;
+        }
+
+        Builder withMetricsEndpoint(@Nullable String metricsHost, int metricsPort, @Nullable String metricsName) {
+            this.metricsHost = metricsHost;
+            this.metricsPort = metricsPort;
+            this.metricsName = metricsName;
+            return this;
+        }
+
+        Builder withOutbox(@Nullable String outboxFile, int outboxSize, long outboxBucketMs) {
+            this.outboxFile = outboxFile;
+            this.outboxSize = outboxSize;
+            this.outboxBucketMs = outboxBucketMs;
+            return this;
+        }
+
+        Builder withDestinations(@Nonnull List<CountDestination> destinations) {
+            this.destinations = requireNonNull(destinations, "destinations");
+            return this;
+        }
+    }
+}
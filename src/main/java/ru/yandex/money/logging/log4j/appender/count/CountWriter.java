@@ -0,0 +1,44 @@
+package ru.yandex.money.logging.log4j.appender.count;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Запись метрик с количеством логов в сокет.
+ */
+@FunctionalInterface
+interface CountWriter {
+
+    /**
+     * Записать метрику с количеством логов одного уровня
+     */
+    void write(@Nonnull LevelMetric metric);
+
+    /**
+     * Завершить отправку, начатую предыдущими вызовами {@link #write(LevelMetric)}.
+     * Вызывается после записи всех событий одной отправки.
+     */
+    default void endBatch() {
+    }
+
+    /**
+     * Количество байт, записанных в сокет с момента создания. Используется для метрик самого аппендера,
+     * может читаться из другого потока.
+     */
+    default long bytesWritten() {
+        return 0;
+    }
+
+    /**
+     * Количество датаграмм, отброшенных с момента создания из-за переполнения буфера отправки сокета.
+     * Используется для метрик самого аппендера, может читаться из другого потока.
+     */
+    default long datagramsDropped() {
+        return 0;
+    }
+
+    /**
+     * Освободить ресурсы, вызывается после финальной отправки
+     */
+    default void close() {
+    }
+}
@@ -0,0 +1,244 @@
+package ru.yandex.money.logging.log4j.appender.count;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.core.appender.AppenderLoggingException;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Запись метрик в неблокирующий {@link DatagramChannel}, минуя менеджер сокета log4j.
+ * <p>
+ * Каждая строка кодируется в собственный переиспользуемый direct-буфер. Строки одного пакета
+ * отправляются одной датаграммой через gathering write, без копирования в общий буфер:
+ * если очередная строка не помещается в пакет размером {@code maxBatchSize}, накопленные строки отправляются,
+ * а уже закодированная строка становится первой в следующем пакете. Без {@code maxBatchSize}
+ * каждая строка отправляется отдельной датаграммой.
+ * <p>
+ * Адрес хоста перезапрашивается у DNS не чаще, чем раз в {@code dnsRefreshIntervalMs},
+ * при смене адреса канал переподключается. Канал неблокирующий: если буфер отправки сокета переполнен,
+ * датаграмма отбрасывается, как это произошло бы с ней в сети. Отброшенные датаграммы учитываются
+ * в {@link #datagramsDropped()}, в лог записывается только первая из них.
+ * <p>
+ * Не потокобезопасен: используется только потоком отправки.
+ */
+class DatagramChannelCountWriter implements CountWriter {
+
+    private static final int INITIAL_LINE_SIZE = 256;
+    private static final int INITIAL_LINES = 8;
+    private static final ByteBuffer LINE_SEPARATOR = (ByteBuffer) ByteBuffer.allocateDirect(1).put((byte) '\n').flip();
+
+    @Nonnull
+    private final MetricEncoder encoder;
+    @Nonnull
+    private final String host;
+    private final int port;
+    /**
+     * Максимальный размер датаграммы в байтах, 0 - каждая строка отдельной датаграммой
+     */
+    private final int maxBatchSize;
+    /**
+     * Период обновления адреса хоста через DNS, 0 - адрес не обновляется
+     */
+    private final long dnsRefreshIntervalMs;
+    @Nonnull
+    private final Logger log;
+
+    /**
+     * Буферы строк, переиспользуются между отправками
+     */
+    @Nonnull
+    private ByteBuffer[] lines = new ByteBuffer[INITIAL_LINES];
+    /**
+     * Разделители строк, по одному на каждую строку пакета кроме первой
+     */
+    @Nonnull
+    private ByteBuffer[] separators = new ByteBuffer[INITIAL_LINES];
+    /**
+     * Строки и разделители текущего пакета для gathering write
+     */
+    @Nonnull
+    private ByteBuffer[] gather = new ByteBuffer[INITIAL_LINES * 2];
+    /**
+     * Количество строк в текущем пакете
+     */
+    private int lineCount;
+    /**
+     * Размер текущего пакета в байтах
+     */
+    private int batchBytes;
+    /**
+     * Записано байт, изменяется только потоком записи
+     */
+    private volatile long bytesWritten;
+    /**
+     * Отброшено датаграмм, изменяется только потоком записи
+     */
+    private volatile long datagramsDropped;
+
+    private DatagramChannel channel;
+    private InetAddress address;
+    private long resolvedAtMs;
+
+    DatagramChannelCountWriter(@Nonnull MetricEncoder encoder, @Nonnull String host, int port, int maxBatchSize,
+                               long dnsRefreshIntervalMs, @Nonnull Logger log) {
+        this.encoder = requireNonNull(encoder, "encoder");
+        this.host = requireNonNull(host, "host");
+        this.port = port;
+        this.maxBatchSize = maxBatchSize;
+        this.dnsRefreshIntervalMs = dnsRefreshIntervalMs;
+        this.log = requireNonNull(log, "log");
+    }
+
+    @Override
+    public void write(@Nonnull LevelMetric metric) {
+        int index = lineCount;
+        ByteBuffer line = encodeLine(metric, index);
+        int lineBytes = line.remaining();
+        if (lineBytes == 0) {
+            return;
+        }
+        int required = index == 0 ? lineBytes : batchBytes + 1 + lineBytes;
+        if (maxBatchSize > 0 && required > maxBatchSize && index > 0) {
+            // строка уже закодирована, переносим ее буфер в начало следующего пакета
+            endBatch();
+            lines[index] = lines[0];
+            lines[0] = line;
+            required = lineBytes;
+        }
+        lineCount++;
+        batchBytes = required;
+        if (maxBatchSize <= 0) {
+            endBatch();
+        }
+    }
+
+    /**
+     * Закодировать строку в буфер с номером index, при необходимости увеличив его
+     */
+    @Nonnull
+    private ByteBuffer encodeLine(@Nonnull LevelMetric metric, int index) {
+        if (index >= lines.length) {
+            lines = Arrays.copyOf(lines, lines.length * 2);
+            separators = Arrays.copyOf(separators, lines.length);
+            gather = new ByteBuffer[lines.length * 2];
+        }
+        ByteBuffer line = lines[index];
+        if (line == null) {
+            line = ByteBuffer.allocateDirect(INITIAL_LINE_SIZE);
+            lines[index] = line;
+        }
+        while (true) {
+            line.clear();
+            try {
+                encoder.encode(metric, line);
+                line.flip();
+                return line;
+            } catch (BufferOverflowException e) {
+                line = ByteBuffer.allocateDirect(line.capacity() * 2);
+                lines[index] = line;
+            }
+        }
+    }
+
+    @Override
+    public void endBatch() {
+        if (lineCount == 0) {
+            return;
+        }
+        int buffers = 0;
+        for (int i = 0; i < lineCount; i++) {
+            if (i > 0) {
+                if (separators[i] == null) {
+                    separators[i] = LINE_SEPARATOR.duplicate();
+                }
+                separators[i].rewind();
+                gather[buffers++] = separators[i];
+            }
+            gather[buffers++] = lines[i];
+        }
+        int expected = batchBytes;
+        lineCount = 0;
+        batchBytes = 0;
+        try {
+            long written = connectedChannel().write(gather, 0, buffers);
+            bytesWritten += written;
+            if (written < expected && datagramsDropped++ == 0) {
+                log.warn("Datagram to {}:{} is dropped: socket send buffer is full, " +
+                        "further drops are counted in self metrics", host, port);
+            }
+        } catch (IOException e) {
+            closeChannel();
+            throw new AppenderLoggingException("Error writing to " + host + ":" + port, e);
+        } finally {
+            Arrays.fill(gather, 0, buffers, null);
+        }
+    }
+
+    /**
+     * Канал, подключенный к актуальному адресу хоста
+     */
+    @Nonnull
+    private DatagramChannel connectedChannel() throws IOException {
+        long nowMs = System.currentTimeMillis();
+        boolean refresh = dnsRefreshIntervalMs > 0 && nowMs - resolvedAtMs >= dnsRefreshIntervalMs;
+        if (channel != null && !refresh) {
+            return channel;
+        }
+        InetAddress resolved = InetAddress.getByName(host);
+        resolvedAtMs = nowMs;
+        if (channel != null && resolved.equals(address)) {
+            return channel;
+        }
+        if (channel != null) {
+            log.debug("Address of {} changed from {} to {}, reconnecting", host, address, resolved);
+            closeChannel();
+        }
+        DatagramChannel newChannel = DatagramChannel.open();
+        try {
+            newChannel.configureBlocking(false);
+            newChannel.connect(new InetSocketAddress(resolved, port));
+        } catch (IOException e) {
+            newChannel.close();
+            throw e;
+        }
+        channel = newChannel;
+        address = resolved;
+        return channel;
+    }
+
+    private void closeChannel() {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.debug("Error closing channel to {}:{}", host, port, e);
+        }
+        channel = null;
+    }
+
+    @Override
+    public void close() {
+        closeChannel();
+    }
+
+    @Override
+    public long bytesWritten() {
+        return bytesWritten;
+    }
+
+    @Override
+    public long datagramsDropped() {
+        return datagramsDropped;
+    }
+}
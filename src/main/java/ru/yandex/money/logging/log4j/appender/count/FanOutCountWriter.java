@@ -0,0 +1,101 @@
+package ru.yandex.money.logging.log4j.appender.count;
+
+import javax.annotation.Nonnull;
+import java.util.List;
+
+/**
+ * Запись одних и тех же метрик в несколько {@link CountWriter}.
+ * <p>
+ * Ошибка одного из них не мешает записи в остальные: первая ошибка пробрасывается
+ * после обращения ко всем, остальные добавляются к ней как подавленные.
+ */
+class FanOutCountWriter implements CountWriter {
+
+    @Nonnull
+    private final CountWriter[] writers;
+
+    /**
+     * @param writers запись в порядке обращения. Асинхронные следует ставить первыми,
+     *                чтобы синхронная запись не задерживала передачу метрик в них.
+     */
+    FanOutCountWriter(@Nonnull List<CountWriter> writers) {
+        this.writers = writers.toArray(new CountWriter[0]);
+    }
+
+    @Override
+    public void write(@Nonnull LevelMetric metric) {
+        RuntimeException error = null;
+        for (CountWriter writer : writers) {
+            try {
+                writer.write(metric);
+            } catch (RuntimeException e) {
+                error = addError(error, e);
+            }
+        }
+        throwIfFailed(error);
+    }
+
+    @Override
+    public void endBatch() {
+        RuntimeException error = null;
+        for (CountWriter writer : writers) {
+            try {
+                writer.endBatch();
+            } catch (RuntimeException e) {
+                error = addError(error, e);
+            }
+        }
+        throwIfFailed(error);
+    }
+
+    /**
+     * Сумма байт, записанных во все адреса
+     */
+    @Override
+    public long bytesWritten() {
+        long bytes = 0;
+        for (CountWriter writer : writers) {
+            bytes += writer.bytesWritten();
+        }
+        return bytes;
+    }
+
+    /**
+     * Сумма датаграмм, отброшенных всеми адресами
+     */
+    @Override
+    public long datagramsDropped() {
+        long dropped = 0;
+        for (CountWriter writer : writers) {
+            dropped += writer.datagramsDropped();
+        }
+        return dropped;
+    }
+
+    @Override
+    public void close() {
+        RuntimeException error = null;
+        for (CountWriter writer : writers) {
+            try {
+                writer.close();
+            } catch (RuntimeException e) {
+                error = addError(error, e);
+            }
+        }
+        throwIfFailed(error);
+    }
+
+    private static RuntimeException addError(RuntimeException error, @Nonnull RuntimeException e) {
+        if (error == null) {
+            return e;
+        }
+        error.addSuppressed(e);
+        return error;
+    }
+
+    private static void throwIfFailed(RuntimeException error) {
+        if (error != null) {
+            throw error;
+        }
+    }
+}
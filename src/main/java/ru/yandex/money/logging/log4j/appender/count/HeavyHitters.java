@@ -0,0 +1,128 @@
+package ru.yandex.money.logging.log4j.appender.count;
+
+import javax.annotation.Nonnull;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Приближенный подсчет самых частых ключей (шаблонов сообщений, имен логгеров) в ограниченной памяти.
+ * <p>
+ * Ключи хранятся в таблице из фиксированного количества слотов. Ключ ищется в нескольких соседних слотах,
+ * начиная с позиции по его хэшу. Если ключ не найден и свободных слотов среди них нет, по алгоритму space-saving
+ * вытесняется ключ с наименьшим счетчиком, а новый ключ наследует его значение. Поэтому счетчик может быть
+ * завышен, но самые частые ключи из таблицы не вытесняются.
+ * <p>
+ * Учет ключа не создает объектов и не использует блокировок: поиск - чтение элементов массива,
+ * захват и вытеснение слота - CAS, увеличение счетчика - атомарный инкремент. При конкурентном вытеснении
+ * часть инкрементов может быть учтена за другим ключом, что допустимо для приближенной оценки.
+ * <p>
+ * Счетчики обнуляются при каждой отправке, поэтому в отправку попадают самые частые ключи за период,
+ * а ключи, переставшие встречаться, быстро вытесняются.
+ */
+final class HeavyHitters {
+
+    /**
+     * Количество слотов, в которых ищется ключ
+     */
+    private static final int PROBES = 4;
+
+    @Nonnull
+    private final AtomicReferenceArray<String> keys;
+    @Nonnull
+    private final AtomicLongArray counts;
+    private final int mask;
+    /**
+     * Значения слотов на момент отправки, используются только потоком отправки
+     */
+    @Nonnull
+    private final String[] periodKeys;
+    @Nonnull
+    private final long[] periodCounts;
+
+    /**
+     * @param slots количество слотов, степень двойки не меньше {@link #PROBES}
+     */
+    HeavyHitters(int slots) {
+        if (Integer.bitCount(slots) != 1 || slots < PROBES) {
+            throw new IllegalArgumentException("slots must be a power of two not less than " + PROBES + ": " + slots);
+        }
+        this.keys = new AtomicReferenceArray<>(slots);
+        this.counts = new AtomicLongArray(slots);
+        this.mask = slots - 1;
+        this.periodKeys = new String[slots];
+        this.periodCounts = new long[slots];
+    }
+
+    /**
+     * Количество слотов для отслеживания topK самых частых ключей
+     */
+    static int slotsFor(int topK) {
+        return Math.max(PROBES, Integer.highestOneBit(topK * 8 - 1) << 1);
+    }
+
+    /**
+     * Учесть одно появление ключа
+     */
+    void add(@Nonnull String key) {
+        int hash = key.hashCode();
+        int start = (hash ^ (hash >>> 16)) & mask;
+        int minSlot = start;
+        long minCount = Long.MAX_VALUE;
+        for (int i = 0; i < PROBES; i++) {
+            int slot = (start + i) & mask;
+            String current = keys.get(slot);
+            if (current == null) {
+                if (keys.compareAndSet(slot, null, key)) {
+                    counts.incrementAndGet(slot);
+                    return;
+                }
+                current = keys.get(slot);
+            }
+            if (current == key || current.equals(key)) {
+                counts.incrementAndGet(slot);
+                return;
+            }
+            long count = counts.get(slot);
+            if (count < minCount) {
+                minCount = count;
+                minSlot = slot;
+            }
+        }
+        // space-saving: ключ занимает слот с наименьшим счетчиком и наследует его значение
+        keys.set(minSlot, key);
+        counts.incrementAndGet(minSlot);
+    }
+
+    /**
+     * Снять счетчики за период и выбрать самые частые ключи. Вызывается только из потока отправки.
+     *
+     * @param topKeys   массив для ключей, его длина - количество выбираемых ключей
+     * @param topCounts массив для количества появлений ключей
+     * @return количество выбранных ключей, в порядке убывания количества
+     */
+    int top(@Nonnull String[] topKeys, @Nonnull long[] topCounts) {
+        for (int slot = 0; slot <= mask; slot++) {
+            periodKeys[slot] = keys.get(slot);
+            periodCounts[slot] = counts.getAndSet(slot, 0);
+        }
+        int selected = 0;
+        while (selected < topKeys.length) {
+            int maxSlot = -1;
+            long maxCount = 0;
+            for (int slot = 0; slot <= mask; slot++) {
+                if (periodCounts[slot] > maxCount) {
+                    maxCount = periodCounts[slot];
+                    maxSlot = slot;
+                }
+            }
+            if (maxSlot < 0) {
+                break;
+            }
+            topKeys[selected] = periodKeys[maxSlot];
+            topCounts[selected] = maxCount;
+            periodCounts[maxSlot] = 0;
+            selected++;
+        }
+        return selected;
+    }
+}
@@ -0,0 +1,29 @@
+package ru.yandex.money.logging.log4j.appender.count;
+
+import org.apache.logging.log4j.core.Layout;
+
+import javax.annotation.Nonnull;
+import java.nio.ByteBuffer;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Кодирование метрики через layout аппендера.
+ */
+class LayoutMetricEncoder implements MetricEncoder {
+
+    @Nonnull
+    private final Layout<?> layout;
+
+    LayoutMetricEncoder(@Nonnull Layout<?> layout) {
+        this.layout = requireNonNull(layout, "layout");
+    }
+
+    @Override
+    public void encode(@Nonnull LevelMetric metric, @Nonnull ByteBuffer buffer) {
+        byte[] bytes = layout.toByteArray(new CountLogEvent(metric));
+        if (bytes != null) {
+            buffer.put(bytes);
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package ru.yandex.money.logging.log4j.appender.count;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.core.util.Log4jThread;
+
+import javax.annotation.Nonnull;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Расписание отправок без собственного потока: отправку выполняет поток, записавший событие.
+ * <p>
+ * После учета события {@link #onEvent()} сравнивает текущее время с моментом следующей отправки.
+ * Когда он наступил, один из потоков выигрывает CAS и выполняет отправку сам, остальные продолжают
+ * без ожидания. Поэтому отправки происходят только при появлении событий: метрики, накопленные
+ * после последней отправки, отправляются при остановке аппендера или хуком завершения JVM.
+ * <p>
+ * Подходит для коротко живущих процессов (пакетные задачи, функции), где поток отправки
+ * увеличивает время старта и просыпается впустую. Запись в сокет задерживает поток, выигравший CAS,
+ * поэтому для приложений с требованиями к задержке логирования следует использовать {@link SenderThread}.
+ */
+final class LazyFlushSchedule implements SendSchedule {
+
+    /**
+     * Момент следующей отправки при ее отсутствии: отправка выполняется или расписание остановлено
+     */
+    private static final long NEVER = Long.MAX_VALUE;
+
+    @Nonnull
+    private final CountSender sender;
+    private final long periodMs;
+    private final long earlyFlushIntervalMs;
+    @Nonnull
+    private final Logger log;
+    /**
+     * Момент ближайшей отправки: по расписанию или досрочной
+     */
+    private final AtomicLong nextFlushAtMs = new AtomicLong(NEVER);
+    /**
+     * Момент отправки по расписанию, изменяется под монитором расписания
+     */
+    private long scheduledAtMs;
+    private volatile long lastEarlyAtMs;
+    private boolean stopped;
+    @Nonnull
+    private final Thread shutdownHook;
+
+    /**
+     * @param settings период отправки и минимальный интервал между досрочными отправками
+     */
+    LazyFlushSchedule(@Nonnull CountSender sender, @Nonnull CountSettings settings, @Nonnull Logger log) {
+        this.sender = requireNonNull(sender, "sender");
+        this.periodMs = settings.sendPeriodMs;
+        this.earlyFlushIntervalMs = settings.earlyFlushIntervalMs;
+        this.log = requireNonNull(log, "log");
+        this.shutdownHook = new Log4jThread(this::flushOnShutdown, "socket-count-shutdown");
+    }
+
+    @Override
+    public synchronized void start() {
+        long nowMs = System.currentTimeMillis();
+        scheduledAtMs = nowMs + periodMs;
+        lastEarlyAtMs = nowMs - earlyFlushIntervalMs;
+        nextFlushAtMs.set(scheduledAtMs);
+        try {
+            Runtime.getRuntime().addShutdownHook(shutdownHook);
+        } catch (IllegalStateException ignored) {
+            // JVM уже завершается, метрики будут отправлены при остановке аппендера
+        }
+    }
+
+    /**
+     * Проверить, не пора ли отправить метрики, и отправить их в текущем потоке.
+     * Вызывается после учета каждого события: в обычном случае - одно volatile-чтение и чтение часов.
+     * <p>
+     * Часы log4j с кэшированием ({@code CachedClock}, {@code CoarseCachedClock}) обновляются собственным потоком,
+     * поэтому используется {@link System#currentTimeMillis()}, которое не требует ни потоков, ни блокировок.
+     */
+    void onEvent() {
+        long nextMs = nextFlushAtMs.get();
+        if (System.currentTimeMillis() >= nextMs) {
+            flush(nextMs);
+        }
+    }
+
+    private void flush(long expectedMs) {
+        if (!nextFlushAtMs.compareAndSet(expectedMs, NEVER)) {
+            // отправку выполняет другой поток
+            return;
+        }
+        synchronized (this) {
+            if (stopped) {
+                return;
+            }
+            try {
+                long nowMs = System.currentTimeMillis();
+                if (nowMs >= scheduledAtMs) {
+                    sender.recordLag(nowMs - scheduledAtMs);
+                    scheduledAtMs = nowMs + periodMs;
+                    sender.writeEventsToSocket();
+                } else {
+                    lastEarlyAtMs = nowMs;
+                    sender.writeUrgentEventsToSocket();
+                }
+            } catch (RuntimeException e) {
+                log.error("LazyFlushSchedule failed to process events", e);
+            } finally {
+                nextFlushAtMs.set(sender.hasUrgentEvents()
+                        ? Math.min(scheduledAtMs, lastEarlyAtMs + earlyFlushIntervalMs)
+                        : scheduledAtMs);
+            }
+        }
+    }
+
+    /**
+     * Приблизить следующую отправку к моменту, когда разрешена досрочная.
+     * Если отправка сейчас выполняется, уровни, превысившие порог, будут учтены при ее завершении.
+     */
+    @Override
+    public void wakeUp() {
+        long earlyAtMs = lastEarlyAtMs + earlyFlushIntervalMs;
+        long nextMs;
+        do {
+            nextMs = nextFlushAtMs.get();
+            if (nextMs == NEVER || nextMs <= earlyAtMs) {
+                return;
+            }
+        } while (!nextFlushAtMs.compareAndSet(nextMs, earlyAtMs));
+    }
+
+    private synchronized void flushOnShutdown() {
+        if (!stopped) {
+            log.trace("LazyFlushSchedule processing remaining events on JVM shutdown: {}", sender);
+            sender.writeEventsToSocket();
+        }
+    }
+
+    /**
+     * Финальная отправка выполняется в вызывающем потоке, после завершения отправки, начатой потоком события
+     */
+    @Override
+    public void stop(long timeoutMs) {
+        nextFlushAtMs.set(NEVER);
+        try {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        } catch (IllegalStateException ignored) {
+            // JVM завершается, хук уже запущен или будет выполнен без отправки
+        }
+        synchronized (this) {
+            if (stopped) {
+                return;
+            }
+            stopped = true;
+            log.trace("LazyFlushSchedule stopping. Processing remaining events: {}", sender);
+            sender.writeEventsToSocket();
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package ru.yandex.money.logging.log4j.appender.count;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.Marker;
+import org.apache.logging.log4j.core.Appender;
+import org.apache.logging.log4j.core.Filter;
+import org.apache.logging.log4j.core.Logger;
+import org.apache.logging.log4j.core.config.Configuration;
+import org.apache.logging.log4j.core.config.Node;
+import org.apache.logging.log4j.core.config.plugins.Plugin;
+import org.apache.logging.log4j.core.config.plugins.PluginBuilderAttribute;
+import org.apache.logging.log4j.core.config.plugins.PluginBuilderFactory;
+import org.apache.logging.log4j.core.config.plugins.PluginConfiguration;
+import org.apache.logging.log4j.core.filter.AbstractFilter;
+import org.apache.logging.log4j.message.Message;
+
+import javax.annotation.Nullable;
+
+/**
+ * Фильтр, считающий события по уровням в счетчики {@link SocketLogLevelCountAppender} до создания {@link
+ * org.apache.logging.log4j.core.LogEvent}.
+ * <p>
+ * Задается как фильтр всей конфигурации (элемент фильтра непосредственно в {@code Configuration}): такой фильтр
+ * вызывается log4j в потоке, записывающем событие, при проверке уровня, то есть до создания события и до передачи
+ * его в очередь асинхронных логгеров. Фильтр учитывает событие, если его уровень включен для логгера, и всегда
+ * возвращает NEUTRAL, не влияя на дальнейшую обработку события. Поэтому учитываются и события, которые будут
+ * отброшены фильтрами логгеров и аппендеров.
+ * <p>
+ * Считаются события всех логгеров конфигурации. Аппендер, указанный в {@code appender}, перестает считать
+ * события в {@code append}, но продолжает отправлять метрики, поэтому ссылаться на него из логгеров не нужно.
+ * Проверки {@code isDebugEnabled()} и т.п. не учитываются, так как вызывают фильтр без сообщения,
+ * по той же причине не учитываются события с сообщением null.
+ */
+@Plugin(name = "LevelCountFilter", category = Node.CATEGORY, elementType = Filter.ELEMENT_TYPE, printObject = true)
+public final class LevelCountFilter extends AbstractFilter {
+
+    @Nullable
+    private final Configuration configuration;
+    @Nullable
+    private final String appenderName;
+    @Nullable
+    private volatile SocketLogLevelCountAppender appender;
+
+    private LevelCountFilter(@Nullable Configuration configuration, @Nullable String appenderName,
+                             @Nullable SocketLogLevelCountAppender appender) {
+        super(Result.NEUTRAL, Result.NEUTRAL);
+        this.configuration = configuration;
+        this.appenderName = appenderName;
+        this.appender = appender;
+    }
+
+    @Override
+    public void start() {
+        SocketLogLevelCountAppender resolved = appender;
+        if (resolved == null && configuration != null && appenderName != null) {
+            Appender configured = configuration.getAppender(appenderName);
+            if (configured instanceof SocketLogLevelCountAppender) {
+                resolved = (SocketLogLevelCountAppender) configured;
+            } else {
+                LOGGER.error("LevelCountFilter: appender {} is not a SocketLogLevelCount appender: {}",
+                        appenderName, configured);
+            }
+        }
+        if (resolved != null) {
+            resolved.countByFilter();
+            appender = resolved;
+        }
+        super.start();
+    }
+
+    private Result count(Logger logger, Level level, @Nullable Object msg) {
+        SocketLogLevelCountAppender target = appender;
+        if (target != null && msg != null && level != null && logger.getLevel().intLevel() >= level.intLevel()) {
+            String format = msg instanceof String
+                    ? (String) msg
+                    : msg instanceof Message ? ((Message) msg).getFormat() : null;
+            target.count(level, format, logger.getName());
+        }
+        return Result.NEUTRAL;
+    }
+
+    @Override
+    public Result filter(Logger logger, Level level, Marker marker, Message msg, Throwable t) {
+        return count(logger, level, msg);
+    }
+
+    @Override
+    public Result filter(Logger logger, Level level, Marker marker, Object msg, Throwable t) {
+        return count(logger, level, msg);
+    }
+
+    @Override
+    public Result filter(Logger logger, Level level, Marker marker, String msg, Object... params) {
+        return count(logger, level, msg);
+    }
+
+    @Override
+    public Result filter(Logger logger, Level level, Marker marker, String msg, Object p0) {
+        return count(logger, level, msg);
+    }
+
+    @Override
+    public Result filter(Logger logger, Level level, Marker marker, String msg, Object p0, Object p1) {
+        return count(logger, level, msg);
+    }
+
+    @Override
+    public Result filter(Logger logger, Level level, Marker marker, String msg, Object p0, Object p1, Object p2) {
+        return count(logger, level, msg);
+    }
+
+    @Override
+    public Result filter(Logger logger, Level level, Marker marker, String msg, Object p0, Object p1, Object p2,
+                         Object p3) {
+        return count(logger, level, msg);
+    }
+
+    @Override
+    public Result filter(Logger logger, Level level, Marker marker, String msg, Object p0, Object p1, Object p2,
+                         Object p3, Object p4) {
+        return count(logger, level, msg);
+    }
+
+    @Override
+    public Result filter(Logger logger, Level level, Marker marker, String msg, Object p0, Object p1, Object p2,
+                         Object p3, Object p4, Object p5) {
+        return count(logger, level, msg);
+    }
+
+    @Override
+    public Result filter(Logger logger, Level level, Marker marker, String msg, Object p0, Object p1, Object p2,
+                         Object p3, Object p4, Object p5, Object p6) {
+        return count(logger, level, msg);
+    }
+
+    @Override
+    public Result filter(Logger logger, Level level, Marker marker, String msg, Object p0, Object p1, Object p2,
+                         Object p3, Object p4, Object p5, Object p6, Object p7) {
+        return count(logger, level, msg);
+    }
+
+    @Override
+    public Result filter(Logger logger, Level level, Marker marker, String msg, Object p0, Object p1, Object p2,
+                         Object p3, Object p4, Object p5, Object p6, Object p7, Object p8) {
+        return count(logger, level, msg);
+    }
+
+    @Override
+    public Result filter(Logger logger, Level level, Marker marker, String msg, Object p0, Object p1, Object p2,
+                         Object p3, Object p4, Object p5, Object p6, Object p7, Object p8, Object p9) {
+        return count(logger, level, msg);
+    }
+
+    @Override
+    public String toString() {
+        return "LevelCountFilter{appender=" + (appenderName != null ? appenderName : appender) + '}';
+    }
+
+    @PluginBuilderFactory
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    public static class Builder implements org.apache.logging.log4j.core.util.Builder<LevelCountFilter> {
+
+        /**
+         * Имя аппендера SocketLogLevelCount, в счетчики которого учитываются события
+         */
+        @PluginBuilderAttribute
+        private String appender;
+
+        @PluginConfiguration
+        private Configuration configuration;
+
+        private SocketLogLevelCountAppender appenderInstance;
+
+        @Override
+        public LevelCountFilter build() {
+            if (appenderInstance == null && (appender == null || configuration == null)) {
+                LOGGER.error("No appender provided for LevelCountFilter");
+                return null;
+            }
+            return new LevelCountFilter(configuration, appender, appenderInstance);
+        }
+
+        public Builder withAppender(String appender) {
+            this.appender = appender;
+            return this;
+        }
+
+        public Builder withConfiguration(Configuration configuration) {
+            this.configuration = configuration;
+            return this;
+        }
+
+        /**
+         * Считать события в счетчики заданного аппендера, без поиска по имени в конфигурации
+         */
+        public Builder withAppenderInstance(SocketLogLevelCountAppender appender) {
+            this.appenderInstance = appender;
+            return this;
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package ru.yandex.money.logging.log4j.appender.count;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.jmx.Server;
+
+import javax.annotation.Nonnull;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToLongFunction;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Статистика количества событий {@link SocketLogLevelCountAppender} по уровням логирования,
+ * доступная из кода приложения через {@link SocketLogLevelCountAppender#getStatistics()} и по JMX.
+ * <p>
+ * В JMX регистрируется под именем {@code ru.yandex.money.logging:type=SocketLogLevelCount,name=<имя аппендера>}.
+ * При переконфигурации log4j новый аппендер стартует раньше, чем останавливается старый,
+ * поэтому под именем регистрируется последний стартовавший аппендер, а остановка старого его не снимает.
+ */
+public final class LevelCountStatistics implements LevelCountStatisticsMXBean {
+
+    private static final String DOMAIN = "ru.yandex.money.logging";
+    /**
+     * Имя MBean -> статистика, зарегистрированная под этим именем
+     */
+    private static final ConcurrentMap<ObjectName, LevelCountStatistics> REGISTERED = new ConcurrentHashMap<>();
+
+    @Nonnull
+    private final LevelCounters counters;
+    @Nonnull
+    private final CountSender sender;
+
+    LevelCountStatistics(@Nonnull LevelCounters counters, @Nonnull CountSender sender) {
+        this.counters = requireNonNull(counters, "counters");
+        this.sender = requireNonNull(sender, "sender");
+    }
+
+    /**
+     * Количество событий уровня level с момента последней отправки в сокет, 0 - событий уровня не было
+     */
+    public long getCurrentCount(@Nonnull Level level) {
+        LevelCounter counter = counters.find(level);
+        return counter != null ? counter.pending() : 0;
+    }
+
+    /**
+     * Количество событий уровня level с момента старта аппендера, 0 - событий уровня не было
+     */
+    public long getTotalCount(@Nonnull Level level) {
+        LevelCounter counter = counters.find(level);
+        return counter != null ? counter.sum() : 0;
+    }
+
+    /**
+     * Экспоненциально сглаженный темп событий уровня level за 1 минуту, событий в секунду, 0 - событий уровня не было
+     */
+    public double getOneMinuteRate(@Nonnull Level level) {
+        LevelCounter counter = counters.find(level);
+        return counter != null ? counter.rate1m() : 0;
+    }
+
+    @Override
+    public Map<String, Long> getCurrentCounts() {
+        return collectLongs(LevelCounter::pending);
+    }
+
+    @Override
+    public Map<String, Long> getTotalCounts() {
+        return collectLongs(LevelCounter::sum);
+    }
+
+    @Override
+    public long getLastFlushTimestamp() {
+        return sender.getLastFlushMs();
+    }
+
+    @Override
+    public Map<String, Double> getOneMinuteRates() {
+        return collectDoubles(LevelCounter::rate1m);
+    }
+
+    @Override
+    public Map<String, Double> getFiveMinuteRates() {
+        return collectDoubles(LevelCounter::rate5m);
+    }
+
+    @Override
+    public Map<String, Double> getFifteenMinuteRates() {
+        return collectDoubles(LevelCounter::rate15m);
+    }
+
+    private Map<String, Long> collectLongs(ToLongFunction<LevelCounter> value) {
+        Map<String, Long> result = new LinkedHashMap<>();
+        for (LevelCounter counter : counters.all()) {
+            result.put(counter.level.name(), value.applyAsLong(counter));
+        }
+        return result;
+    }
+
+    private Map<String, Double> collectDoubles(ToDoubleFunction<LevelCounter> value) {
+        Map<String, Double> result = new LinkedHashMap<>();
+        for (LevelCounter counter : counters.all()) {
+            result.put(counter.level.name(), value.applyAsDouble(counter));
+        }
+        return result;
+    }
+
+    /**
+     * Зарегистрировать статистику в JMX под именем аппендера, заменив ранее зарегистрированную
+     */
+    void register(@Nonnull String appenderName) throws JMException {
+        ObjectName name = objectName(appenderName);
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        synchronized (REGISTERED) {
+            try {
+                server.unregisterMBean(name);
+            } catch (InstanceNotFoundException ignored) {
+                // еще не зарегистрирована
+            }
+            try {
+                server.registerMBean(this, name);
+            } catch (InstanceAlreadyExistsException e) {
+                throw new IllegalStateException("MBean " + name + " is registered concurrently", e);
+            }
+            REGISTERED.put(name, this);
+        }
+    }
+
+    /**
+     * Снять регистрацию в JMX, если под именем аппендера зарегистрирована эта статистика
+     */
+    void unregister(@Nonnull String appenderName) throws JMException {
+        ObjectName name = objectName(appenderName);
+        synchronized (REGISTERED) {
+            if (REGISTERED.remove(name, this)) {
+                try {
+                    ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+                } catch (InstanceNotFoundException ignored) {
+                    // уже снята
+                }
+            }
+        }
+    }
+
+    @Nonnull
+    private static ObjectName objectName(@Nonnull String appenderName) throws JMException {
+        return new ObjectName(DOMAIN + ":type=SocketLogLevelCount,name=" + Server.escape(appenderName));
+    }
+}
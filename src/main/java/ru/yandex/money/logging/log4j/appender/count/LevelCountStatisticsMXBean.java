@@ -0,0 +1,42 @@
+package ru.yandex.money.logging.log4j.appender.count;
+
+import java.util.Map;
+
+/**
+ * Статистика количества событий {@link SocketLogLevelCountAppender} по уровням логирования.
+ * <p>
+ * Значения читаются из счетчиков аппендера без влияния на запись событий,
+ * ключи всех таблиц - названия уровней.
+ */
+public interface LevelCountStatisticsMXBean {
+
+    /**
+     * Количество событий с момента последней отправки в сокет
+     */
+    Map<String, Long> getCurrentCounts();
+
+    /**
+     * Количество событий с момента старта аппендера
+     */
+    Map<String, Long> getTotalCounts();
+
+    /**
+     * Время последней отправки в сокет, мс с начала эпохи. 0 - отправок еще не было
+     */
+    long getLastFlushTimestamp();
+
+    /**
+     * Экспоненциально сглаженный темп событий за 1 минуту, событий в секунду
+     */
+    Map<String, Double> getOneMinuteRates();
+
+    /**
+     * Экспоненциально сглаженный темп событий за 5 минут, событий в секунду
+     */
+    Map<String, Double> getFiveMinuteRates();
+
+    /**
+     * Экспоненциально сглаженный темп событий за 15 минут, событий в секунду
+     */
+    Map<String, Double> getFifteenMinuteRates();
+}
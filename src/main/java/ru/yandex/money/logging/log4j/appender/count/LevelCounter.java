@@ -0,0 +1,403 @@
+package ru.yandex.money.logging.log4j.appender.count;
+
+import org.apache.logging.log4j.Level;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Счетчик событий одного уровня логирования.
+ * <p>
+ * Инкремент выполняется через {@link LongAdder}, ячейки которого разнесены по разным потокам
+ * и выровнены по кэш-линиям (аннотация {@code @Contended}), поэтому конкурентные записи из разных потоков
+ * не приводят к false sharing.
+ * <p>
+ * Счетчик никогда не сбрасывается: поток отправки запоминает сумму на момент предыдущей отправки
+ * и отправляет разницу. Сумма {@link LongAdder#sum()} при одних только инкрементах монотонна,
+ * поэтому каждое событие попадает ровно в одну отправку, в отличие от {@link LongAdder#sumThenReset()},
+ * который теряет инкременты, пришедшие между чтением и сбросом ячейки.
+ * <p>
+ * Если задана длительность слота, счетчик состоит из кольца слотов: событие учитывается в слоте,
+ * соответствующем текущему интервалу времени длиной {@code slotMs}. Это по-прежнему один инкремент,
+ * а при отправке по слотам вычисляются максимальный и минимальный темп событий внутри периода отправки.
+ * <p>
+ * Для счетчика может быть задан порог количества событий за период, при превышении которого уровень
+ * отправляется досрочно. Чтобы не суммировать ячейки {@link LongAdder} на каждое событие, превышение порога
+ * проверяется выборочно: в среднем раз в {@code порог / 16} событий, округленных до степени двойки.
+ * Поэтому порог обнаруживается с запаздыванием порядка 1/16 от его значения.
+ * <p>
+ * Для счетчика может быть задан бюджет пересылки: количество событий за период, которые пересылаются
+ * в нижестоящие аппендеры. Пересланные события учитываются в отдельном {@link LongAdder}, не зависящем от слотов
+ * и досрочных отправок, и сбрасываются только на границе периода отправки по расписанию
+ * ({@link #resetBudget()}). Исчерпание бюджета проверяется выборочно, как и порог, после чего до конца периода
+ * события подавляются проверкой одного флага и учитываются в {@link LongAdder} подавленных событий.
+ * Поэтому бюджет может быть превышен на величину порядка 1/16 от его значения и на количество одновременно
+ * пишущих потоков.
+ */
+final class LevelCounter {
+
+    /**
+     * Бюджет пересылки не задан: пересылаются все события
+     */
+    static final long NO_BUDGET = -1;
+
+    @Nonnull
+    final Level level;
+    /**
+     * Кольцо слотов, из одного элемента, если разбиение на слоты не используется
+     */
+    @Nonnull
+    private final LongAdder[] slots;
+    /**
+     * Длительность слота, мс. 0 - разбиение на слоты не используется
+     */
+    private final long slotMs;
+    private final int slotMask;
+    /**
+     * Суммы слотов на момент предыдущей отправки, изменяются только потоком отправки
+     */
+    @Nonnull
+    private final long[] reportedSlots;
+    /**
+     * Приращения слотов за текущую отправку, используются только потоком отправки
+     */
+    @Nonnull
+    private final long[] slotDeltas;
+    /**
+     * Сумма счетчика на момент предыдущей отправки, изменяется только потоком отправки
+     */
+    private volatile long reported;
+    /**
+     * Время предыдущей отправки, изменяется только потоком отправки
+     */
+    private long reportedAtMs;
+    /**
+     * Экспоненциально сглаженный темп событий за 1, 5 и 15 минут, событий в секунду.
+     * Пересчитывается потоком отправки.
+     */
+    private volatile double rate1m;
+    private volatile double rate5m;
+    private volatile double rate15m;
+    private boolean ratesInitialized;
+    /**
+     * Порог количества событий за период для досрочной отправки, 0 - порог не задан
+     */
+    private final long threshold;
+    /**
+     * Маска выборки событий для проверки порога
+     */
+    private final int thresholdSampleMask;
+    /**
+     * Порог превышен, уровень ожидает досрочной отправки
+     */
+    private volatile boolean urgent;
+    /**
+     * Самые частые шаблоны сообщений, null - не отслеживаются
+     */
+    @Nullable
+    final HeavyHitters formats;
+    /**
+     * Самые частые имена логгеров, null - не отслеживаются
+     */
+    @Nullable
+    final HeavyHitters loggers;
+    /**
+     * Бюджет пересылки событий за период, {@link #NO_BUDGET} - не задан
+     */
+    private final long budget;
+    /**
+     * Маска выборки событий для проверки бюджета
+     */
+    private final int budgetSampleMask;
+    /**
+     * Количество пересланных событий, null - бюджет не задан
+     */
+    @Nullable
+    private final LongAdder forwarded;
+    /**
+     * Количество пересланных событий на начало текущего периода, изменяется только потоком отправки
+     */
+    private volatile long forwardedAtPeriodStart;
+    /**
+     * Бюджет текущего периода исчерпан
+     */
+    private volatile boolean budgetExhausted;
+    /**
+     * Количество событий, не пересланных из-за превышения бюджета, null - бюджет не задан
+     */
+    @Nullable
+    private final LongAdder suppressed;
+    /**
+     * Количество подавленных событий на момент предыдущей отправки, изменяется только потоком отправки
+     */
+    private long reportedSuppressed;
+    /**
+     * Оценка объема событий в байтах. Ячейки {@link LongAdder} создаются только при первом обращении,
+     * поэтому без учета объема счетчик ничего не стоит.
+     */
+    @Nonnull
+    private final LongAdder bytes = new LongAdder();
+    /**
+     * Объем событий на момент предыдущей отправки, изменяется только потоком отправки
+     */
+    private long reportedBytes;
+
+    LevelCounter(@Nonnull Level level) {
+        this(level, CountSettings.DEFAULT);
+    }
+
+    /**
+     * @param settings параметры счетчика: длительность и количество слотов, порог и бюджет пересылки уровня,
+     *                 количество слотов для отслеживания самых частых шаблонов сообщений и логгеров
+     */
+    LevelCounter(@Nonnull Level level, @Nonnull CountSettings settings) {
+        long slotMs = settings.burstSlotMs;
+        int slotCount = settings.slotCount();
+        long threshold = settings.threshold(level);
+        int heavyHitterSlots = settings.heavyHitterSlots();
+        long budget = settings.forwardBudget(level);
+        this.level = requireNonNull(level, "level");
+        if (Integer.bitCount(slotCount) != 1) {
+            throw new IllegalArgumentException("slotCount must be a power of two: " + slotCount);
+        }
+        this.slotMs = slotMs;
+        this.slotMask = slotCount - 1;
+        this.slots = new LongAdder[slotMs > 0 ? slotCount : 1];
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = new LongAdder();
+        }
+        this.reportedSlots = new long[slots.length];
+        this.slotDeltas = new long[slots.length];
+        this.reportedAtMs = System.currentTimeMillis();
+        if (threshold < 0) {
+            throw new IllegalArgumentException("threshold must not be negative: " + threshold);
+        }
+        this.threshold = threshold;
+        this.thresholdSampleMask = sampleMask(threshold);
+        this.formats = heavyHitterSlots > 0 ? new HeavyHitters(heavyHitterSlots) : null;
+        this.loggers = heavyHitterSlots > 0 ? new HeavyHitters(heavyHitterSlots) : null;
+        if (budget < NO_BUDGET) {
+            throw new IllegalArgumentException("budget must not be negative: " + budget);
+        }
+        this.budget = budget;
+        this.budgetSampleMask = sampleMask(budget);
+        this.forwarded = budget != NO_BUDGET ? new LongAdder() : null;
+        this.suppressed = budget != NO_BUDGET ? new LongAdder() : null;
+    }
+
+    /**
+     * Маска выборки событий для проверки порога или бюджета: в среднем раз в {@code limit / 16} событий,
+     * округленных до степени двойки
+     */
+    private static int sampleMask(long limit) {
+        return Integer.highestOneBit((int) Math.max(Math.min(limit / 16, 1 << 20), 1)) - 1;
+    }
+
+    /**
+     * Учесть одно событие
+     *
+     * @return true, если событие привело к превышению порога и уровень нужно отправить досрочно
+     */
+    boolean increment() {
+        if (slotMs == 0) {
+            slots[0].increment();
+        } else {
+            slots[(int) (System.currentTimeMillis() / slotMs) & slotMask].increment();
+        }
+        return threshold > 0 && !urgent
+                && (ThreadLocalRandom.current().nextInt() & thresholdSampleMask) == 0
+                && pending() >= threshold
+                && markUrgent();
+    }
+
+    /**
+     * Учесть оценку объема события в байтах
+     */
+    void addBytes(long eventBytes) {
+        bytes.add(eventBytes);
+    }
+
+    /**
+     * Проверить, укладывается ли уже учтенное событие в бюджет пересылки текущего периода.
+     * Событие сверх бюджета учитывается как подавленное.
+     *
+     * @return true, если событие нужно переслать в нижестоящие аппендеры
+     */
+    boolean tryForward() {
+        if (forwarded == null) {
+            return true;
+        }
+        if (!budgetExhausted) {
+            forwarded.increment();
+            if ((ThreadLocalRandom.current().nextInt() & budgetSampleMask) != 0
+                    || forwarded.sum() - forwardedAtPeriodStart <= budget) {
+                return true;
+            }
+            budgetExhausted = true;
+        }
+        suppressed.increment();
+        return false;
+    }
+
+    /**
+     * Начать новый период бюджета пересылки.
+     * Вызывается только из потока отправки на границе периода отправки по расписанию.
+     */
+    void resetBudget() {
+        if (forwarded == null) {
+            return;
+        }
+        forwardedAtPeriodStart = forwarded.sum();
+        budgetExhausted = false;
+    }
+
+    private boolean markUrgent() {
+        urgent = true;
+        return true;
+    }
+
+    /**
+     * Сбросить признак превышения порога
+     *
+     * @return true, если порог был превышен
+     */
+    boolean takeUrgent() {
+        if (!urgent) {
+            return false;
+        }
+        urgent = false;
+        return true;
+    }
+
+    /**
+     * Заполнить метрику значениями с момента предыдущего вызова.
+     * Вызывается только из потока отправки.
+     */
+    void snapshot(@Nonnull LevelMetric metric, long nowMs) {
+        long count = 0;
+        for (int i = 0; i < slots.length; i++) {
+            long sum = slots[i].sum();
+            slotDeltas[i] = sum - reportedSlots[i];
+            reportedSlots[i] = sum;
+            count += slotDeltas[i];
+        }
+        long fromMs = reportedAtMs;
+        urgent = false;
+        reported += count;
+        reportedAtMs = nowMs;
+
+        updateRates(count, nowMs - fromMs);
+
+        metric.level = level;
+        metric.count = count;
+        metric.total = reported;
+        metric.interval = nowMs - fromMs;
+        metric.timestamp = nowMs;
+        long bytesSum = bytes.sum();
+        metric.bytes = bytesSum - reportedBytes;
+        reportedBytes = bytesSum;
+        if (suppressed != null) {
+            long suppressedSum = suppressed.sum();
+            metric.suppressed = suppressedSum - reportedSuppressed;
+            reportedSuppressed = suppressedSum;
+        } else {
+            metric.suppressed = 0;
+        }
+        metric.key = null;
+        metric.kind = null;
+        if (slotMs == 0) {
+            long intervalMs = nowMs - fromMs;
+            long rate = intervalMs > 0 ? count * 1000 / intervalMs : count * 1000;
+            metric.peak = rate;
+            metric.min = rate;
+            return;
+        }
+        long lastWindow = nowMs / slotMs;
+        long firstWindow = Math.max(fromMs / slotMs, lastWindow - slots.length + 1);
+        long peak = 0;
+        long min = Long.MAX_VALUE;
+        long minOfAll = Long.MAX_VALUE;
+        for (long window = firstWindow; window <= lastWindow; window++) {
+            long slotCount = slotDeltas[(int) window & slotMask];
+            peak = Math.max(peak, slotCount);
+            minOfAll = Math.min(minOfAll, slotCount);
+            // минимум считаем только по слотам, целиком попавшим в период отправки
+            if (window * slotMs >= fromMs && (window + 1) * slotMs <= nowMs) {
+                min = Math.min(min, slotCount);
+            }
+        }
+        metric.peak = peak * 1000 / slotMs;
+        metric.min = (min != Long.MAX_VALUE ? min : minOfAll) * 1000 / slotMs;
+    }
+
+    private void updateRates(long count, long intervalMs) {
+        if (intervalMs <= 0) {
+            return;
+        }
+        double rate = count * 1000.0 / intervalMs;
+        if (!ratesInitialized) {
+            rate1m = rate;
+            rate5m = rate;
+            rate15m = rate;
+            ratesInitialized = true;
+            return;
+        }
+        rate1m = decay(rate1m, rate, intervalMs, TimeUnit.MINUTES.toMillis(1));
+        rate5m = decay(rate5m, rate, intervalMs, TimeUnit.MINUTES.toMillis(5));
+        rate15m = decay(rate15m, rate, intervalMs, TimeUnit.MINUTES.toMillis(15));
+    }
+
+    private static double decay(double average, double rate, long intervalMs, long windowMs) {
+        double alpha = 1 - Math.exp(-(double) intervalMs / windowMs);
+        return average + alpha * (rate - average);
+    }
+
+    /**
+     * Количество событий с момента предыдущей отправки
+     */
+    long pending() {
+        return sum() - reported;
+    }
+
+    /**
+     * Экспоненциально сглаженный темп событий за 1 минуту, событий в секунду
+     */
+    double rate1m() {
+        return rate1m;
+    }
+
+    /**
+     * Экспоненциально сглаженный темп событий за 5 минут, событий в секунду
+     */
+    double rate5m() {
+        return rate5m;
+    }
+
+    /**
+     * Экспоненциально сглаженный темп событий за 15 минут, событий в секунду
+     */
+    double rate15m() {
+        return rate15m;
+    }
+
+    /**
+     * Количество событий с момента создания счетчика
+     */
+    long sum() {
+        long sum = 0;
+        for (LongAdder slot : slots) {
+            sum += slot.sum();
+        }
+        return sum;
+    }
+
+    @Override
+    public String toString() {
+        return level + "=" + pending();
+    }
+}
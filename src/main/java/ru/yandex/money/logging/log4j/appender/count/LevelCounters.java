@@ -0,0 +1,270 @@
+package ru.yandex.money.logging.log4j.appender.count;
+
+import org.apache.logging.log4j.Level;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Таблица счетчиков событий по уровням логирования.
+ * <p>
+ * Счетчики хранятся в массиве, индексированном по {@link Level#intLevel()}, поэтому поиск счетчика
+ * на каждый вызов {@code append} сводится к чтению элемента массива без вычисления хэша.
+ * Стандартные уровни регистрируются при создании таблицы, пользовательские уровни
+ * (созданные через {@link Level#forName(String, int)}) - при первом событии на этом уровне.
+ * Уровни с {@code intLevel} вне диапазона массива, а также пользовательские уровни,
+ * совпадающие по {@code intLevel} с уже зарегистрированными, хранятся в отдельной хэш-таблице.
+ * <p>
+ * При превышении порога одним из счетчиков вызывается слушатель, заданный через {@link #onThreshold(Runnable)}.
+ */
+final class LevelCounters {
+
+    /**
+     * Максимальное значение {@link Level#intLevel()}, для которого счетчик хранится в массиве
+     */
+    private static final int MAX_INDEXED_INT_LEVEL = 1000;
+
+    /**
+     * intLevel -> счетчик событий по этому level.
+     * Элементы массива публикуются без барьеров: поля {@link LevelCounter} финальные,
+     * а при чтении null или чужого уровня выполняется повторный поиск под блокировкой.
+     */
+    private final LevelCounter[] table = new LevelCounter[MAX_INDEXED_INT_LEVEL + 1];
+    /**
+     * level -> счетчик событий для уровней, которые не удалось разместить в массиве
+     */
+    private final ConcurrentMap<Level, LevelCounter> overflow = new ConcurrentHashMap<>();
+    /**
+     * Все зарегистрированные счетчики в порядке регистрации.
+     * Массив заменяется целиком при регистрации, чтобы обход при отправке не создавал итераторов.
+     */
+    private volatile LevelCounter[] counters = new LevelCounter[0];
+    /**
+     * Параметры регистрируемых счетчиков: слоты, пороги, бюджеты пересылки и отслеживание самых частых событий
+     */
+    @Nonnull
+    private final CountSettings settings;
+    /**
+     * Слушатель превышения порога
+     */
+    @Nonnull
+    private volatile Runnable thresholdListener = () -> {
+    };
+    /**
+     * Хотя бы один счетчик превысил порог и ожидает досрочной отправки
+     */
+    private volatile boolean urgent;
+    /**
+     * Идентификатор счетчиков: время их создания, мс с начала эпохи
+     */
+    final long startId = System.currentTimeMillis();
+
+    LevelCounters() {
+        this(CountSettings.DEFAULT);
+    }
+
+    LevelCounters(@Nonnull CountSettings settings) {
+        this.settings = requireNonNull(settings, "settings");
+        for (Level level : Level.values()) {
+            register(level);
+        }
+    }
+
+    /**
+     * Получить счетчик для уровня, при необходимости зарегистрировав его
+     */
+    @Nonnull
+    LevelCounter get(@Nonnull Level level) {
+        LevelCounter counter = find(level);
+        return counter != null ? counter : register(level);
+    }
+
+    /**
+     * Найти счетчик уровня level, не регистрируя его
+     *
+     * @return счетчик или null, если событий этого уровня еще не было
+     */
+    @Nullable
+    LevelCounter find(@Nonnull Level level) {
+        int intLevel = level.intLevel();
+        if (intLevel >= 0 && intLevel <= MAX_INDEXED_INT_LEVEL) {
+            LevelCounter counter = table[intLevel];
+            if (counter != null && counter.level == level) {
+                return counter;
+            }
+        }
+        return overflow.get(level);
+    }
+
+    /**
+     * Учесть одно событие на уровне level
+     */
+    void increment(@Nonnull Level level) {
+        if (get(level).increment()) {
+            urgent = true;
+            thresholdListener.run();
+        }
+    }
+
+    /**
+     * Учесть одно событие на уровне level, а также его шаблон сообщения и логгер, если они отслеживаются
+     */
+    void increment(@Nonnull Level level, @Nullable String format, @Nullable String loggerName) {
+        LevelCounter counter = get(level);
+        if (counter.increment()) {
+            urgent = true;
+            thresholdListener.run();
+        }
+        if (counter.formats != null) {
+            if (format != null) {
+                counter.formats.add(format);
+            }
+            if (loggerName != null) {
+                counter.loggers.add(loggerName);
+            }
+        }
+    }
+
+    /**
+     * Учесть оценку объема события уровня level в байтах
+     */
+    void addBytes(@Nonnull Level level, long bytes) {
+        get(level).addBytes(bytes);
+    }
+
+    /**
+     * Проверить, укладывается ли уже учтенное событие уровня level в бюджет пересылки
+     *
+     * @return true, если событие нужно переслать в нижестоящие аппендеры
+     */
+    boolean tryForward(@Nonnull Level level) {
+        return get(level).tryForward();
+    }
+
+    /**
+     * Задать слушатель превышения порога. Вызывается в потоке, записавшем событие, поэтому не должен блокироваться.
+     */
+    void onThreshold(@Nonnull Runnable listener) {
+        this.thresholdListener = requireNonNull(listener, "listener");
+    }
+
+    /**
+     * Есть ли счетчики, превысившие порог
+     */
+    boolean isUrgent() {
+        return urgent;
+    }
+
+    /**
+     * Сбросить признак превышения порога перед досрочной отправкой
+     */
+    void clearUrgent() {
+        urgent = false;
+    }
+
+    /**
+     * Все зарегистрированные счетчики. Возвращаемый массив нельзя изменять.
+     */
+    @Nonnull
+    LevelCounter[] all() {
+        return counters;
+    }
+
+    @Nonnull
+    private synchronized LevelCounter register(@Nonnull Level level) {
+        int intLevel = level.intLevel();
+        boolean indexed = intLevel >= 0 && intLevel <= MAX_INDEXED_INT_LEVEL;
+        if (indexed) {
+            LevelCounter counter = table[intLevel];
+            if (counter != null && counter.level == level) {
+                return counter;
+            }
+        }
+        LevelCounter counter = overflow.get(level);
+        if (counter != null) {
+            return counter;
+        }
+        counter = new LevelCounter(level, settings);
+        if (indexed && table[intLevel] == null) {
+            table[intLevel] = counter;
+        } else {
+            overflow.put(level, counter);
+        }
+        LevelCounter[] registered = Arrays.copyOf(counters, counters.length + 1);
+        registered[registered.length - 1] = counter;
+        counters = registered;
+        return counter;
+    }
+
+    /**
+     * Количество слотов, достаточное для периода отправки periodMs: с запасом на слоты,
+     * частично попадающие в предыдущую и следующую отправку
+     */
+    static int slotCountFor(long periodMs, long slotMs) {
+        long required = (periodMs + slotMs - 1) / slotMs + 2;
+        return Integer.highestOneBit((int) Math.min(required, 1 << 20) * 2 - 1);
+    }
+
+    /**
+     * Разобрать пороги досрочной отправки вида {@code ERROR>=100, FATAL>=1}
+     *
+     * @return название уровня -> порог
+     * @throws IllegalArgumentException при ошибке в описании порогов
+     */
+    @Nonnull
+    static Map<String, Long> parseThresholds(@Nullable String value) {
+        return parseLevelCounts(value, ">=", "threshold", 1);
+    }
+
+    /**
+     * Разобрать бюджеты пересылки вида {@code ERROR=100, WARN=1000}
+     *
+     * @return название уровня -> бюджет
+     * @throws IllegalArgumentException при ошибке в описании бюджетов
+     */
+    @Nonnull
+    static Map<String, Long> parseBudgets(@Nullable String value) {
+        return parseLevelCounts(value, "=", "budget", 0);
+    }
+
+    @Nonnull
+    private static Map<String, Long> parseLevelCounts(@Nullable String value, @Nonnull String operator,
+                                                      @Nonnull String kind, long minCount) {
+        Map<String, Long> counts = new HashMap<>();
+        if (value == null || value.trim().isEmpty()) {
+            return counts;
+        }
+        for (String item : value.split(",")) {
+            int separator = item.indexOf(operator);
+            if (separator <= 0) {
+                throw new IllegalArgumentException(Character.toUpperCase(kind.charAt(0)) + kind.substring(1)
+                        + " must be specified as LEVEL" + operator + "COUNT: " + item.trim());
+            }
+            String levelName = item.substring(0, separator).trim().toUpperCase(Locale.ENGLISH);
+            long count;
+            try {
+                count = Long.parseLong(item.substring(separator + operator.length()).trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Illegal " + kind + " count: " + item.trim(), e);
+            }
+            if (!levelName.matches("\\w+") || count < minCount) {
+                throw new IllegalArgumentException("Illegal " + kind + ": " + item.trim());
+            }
+            counts.put(levelName, count);
+        }
+        return counts;
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(counters);
+    }
+}
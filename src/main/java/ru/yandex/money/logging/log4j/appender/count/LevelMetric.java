@@ -0,0 +1,72 @@
+package ru.yandex.money.logging.log4j.appender.count;
+
+import org.apache.logging.log4j.Level;
+
+/**
+ * Значения метрики одного уровня логирования за одну отправку.
+ * <p>
+ * Экземпляр переиспользуется потоком отправки для всех уровней и всех отправок,
+ * поэтому {@link CountWriter} не должен сохранять ссылку на него после возврата из {@code write}.
+ */
+final class LevelMetric {
+
+    /**
+     * Уровень логирования
+     */
+    Level level;
+    /**
+     * Количество событий с момента предыдущей отправки
+     */
+    long count;
+    /**
+     * Количество событий с момента создания счетчиков, включая учтенные в count
+     */
+    long total;
+    /**
+     * Идентификатор счетчиков: время их создания, мс с начала эпохи. Меняется при перезапуске,
+     * после чего total снова начинается с 0.
+     */
+    long startId;
+    /**
+     * Длительность интервала, за который накоплено count, мс
+     */
+    long interval;
+    /**
+     * Оценка объема событий с момента предыдущей отправки, байт
+     */
+    long bytes;
+    /**
+     * Количество событий с момента предыдущей отправки, не пересланных в нижестоящие аппендеры
+     * из-за превышения бюджета
+     */
+    long suppressed;
+    /**
+     * Максимальный темп событий внутри периода отправки, событий в секунду
+     */
+    long peak;
+    /**
+     * Минимальный темп событий внутри периода отправки, событий в секунду
+     */
+    long min;
+    /**
+     * Время, к которому относится метрика, мс с начала эпохи
+     */
+    long timestamp;
+    /**
+     * Для метрик самых частых событий: шаблон сообщения или имя логгера, иначе null
+     */
+    String key;
+    /**
+     * Для метрик самых частых событий: вид ключа ({@code format} или {@code logger}), иначе null
+     */
+    String kind;
+    /**
+     * Для метрик префиксов имени логгера: префикс, иначе null
+     */
+    String logger;
+
+    @Override
+    public String toString() {
+        return level + "=" + count;
+    }
+}
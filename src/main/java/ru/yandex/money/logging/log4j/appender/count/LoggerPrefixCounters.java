@@ -0,0 +1,261 @@
+package ru.yandex.money.logging.log4j.appender.count;
+
+import org.apache.logging.log4j.Level;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Счетчики событий по уровню и префиксу имени логгера глубиной до {@code depth} сегментов,
+ * например {@code ru.yandex.money} при глубине 3 для логгера {@code ru.yandex.money.payments.Processor}.
+ * Каждое событие учитывается один раз - в узле своего префикса; логгеры с более коротким именем -
+ * в узле полного имени.
+ * <p>
+ * Префиксы хранятся в дереве по сегментам имени. Имена узлов создаются один раз при появлении префикса,
+ * после чего поиск узла сравнивает сегменты имени логгера с именами потомков через
+ * {@link String#regionMatches(int, String, int, int)} и не создает объектов. Потомки узла и счетчики
+ * уровней хранятся в массивах, заменяемых целиком при добавлении элемента, поэтому чтение не блокируется.
+ * <p>
+ * Количество узлов ограничено {@code maxNodes}: узлы создаются при первом событии префикса, а события
+ * префиксов, появившихся после исчерпания лимита, учитываются в узле {@link #OTHER}. Поэтому память
+ * не зависит от количества логгеров в приложении.
+ * <p>
+ * Раз в отправку по расписанию через отдельный {@link CountWriter} пишется по строке на каждую пару
+ * узел-уровень, в которой были события; префикс доступен в шаблоне как {@code %X{logger}}.
+ * Запись не потокобезопасна и выполняется только из отправок {@link CountSender}.
+ */
+final class LoggerPrefixCounters {
+
+    /**
+     * Имя узла для префиксов сверх лимита и событий без имени логгера
+     */
+    static final String OTHER = "other";
+    /**
+     * Имя узла корневого логгера
+     */
+    static final String ROOT = "root";
+
+    private static final Node[] NO_CHILDREN = new Node[0];
+    private static final LevelCount[] NO_COUNTS = new LevelCount[0];
+
+    @Nonnull
+    private final CountWriter writer;
+    private final int depth;
+    private final int maxNodes;
+    /**
+     * Количество созданных узлов, не считая корня и {@link #OTHER}
+     */
+    private final AtomicInteger nodes = new AtomicInteger();
+    @Nonnull
+    private final Node root = new Node("", ROOT);
+    @Nonnull
+    private final Node other = new Node(OTHER, OTHER);
+    /**
+     * Метрика, переиспользуемая для всех строк
+     */
+    private final LevelMetric metric = new LevelMetric();
+    /**
+     * Время предыдущей отправки, изменяется только потоком отправки
+     */
+    private long reportedAtMs = System.currentTimeMillis();
+
+    /**
+     * @param writer   запись строк префиксов
+     * @param depth    максимальное количество сегментов имени логгера в префиксе
+     * @param maxNodes максимальное количество префиксов
+     */
+    LoggerPrefixCounters(@Nonnull CountWriter writer, int depth, int maxNodes) {
+        this.writer = requireNonNull(writer, "writer");
+        if (depth <= 0) {
+            throw new IllegalArgumentException("depth must be positive: " + depth);
+        }
+        if (maxNodes <= 0) {
+            throw new IllegalArgumentException("maxNodes must be positive: " + maxNodes);
+        }
+        this.depth = depth;
+        this.maxNodes = maxNodes;
+    }
+
+    /**
+     * Учесть одно событие на уровне level от логгера loggerName
+     */
+    void increment(@Nonnull Level level, @Nullable String loggerName) {
+        find(loggerName).counter(level).increment();
+    }
+
+    /**
+     * Найти узел префикса имени логгера, при необходимости создав его
+     */
+    @Nonnull
+    Node find(@Nullable String loggerName) {
+        if (loggerName == null) {
+            return other;
+        }
+        Node node = root;
+        int length = loggerName.length();
+        int start = 0;
+        for (int segment = 0; segment < depth && start < length; segment++) {
+            int end = loggerName.indexOf('.', start);
+            if (end < 0) {
+                end = length;
+            }
+            Node child = node.child(loggerName, start, end);
+            if (child == null) {
+                child = addChild(node, loggerName, start, end);
+                if (child == null) {
+                    return other;
+                }
+            }
+            node = child;
+            start = end + 1;
+        }
+        return node;
+    }
+
+    @Nullable
+    private Node addChild(@Nonnull Node parent, @Nonnull String loggerName, int start, int end) {
+        synchronized (parent) {
+            Node child = parent.child(loggerName, start, end);
+            if (child != null) {
+                return child;
+            }
+            if (nodes.incrementAndGet() > maxNodes) {
+                nodes.decrementAndGet();
+                return null;
+            }
+            child = new Node(loggerName.substring(start, end), loggerName.substring(0, end));
+            Node[] children = Arrays.copyOf(parent.children, parent.children.length + 1);
+            children[children.length - 1] = child;
+            parent.children = children;
+            return child;
+        }
+    }
+
+    /**
+     * Записать события всех префиксов с момента предыдущего вызова.
+     * Вызывается только из потока отправки.
+     */
+    void write(long nowMs) {
+        metric.timestamp = nowMs;
+        metric.interval = nowMs - reportedAtMs;
+        reportedAtMs = nowMs;
+        try {
+            write(root);
+            write(other);
+            writer.endBatch();
+        } finally {
+            metric.logger = null;
+        }
+    }
+
+    private void write(@Nonnull Node node) {
+        for (LevelCount count : node.counts) {
+            long sum = count.adder.sum();
+            long delta = sum - count.reported;
+            count.reported = sum;
+            if (delta > 0) {
+                metric.level = count.level;
+                metric.count = delta;
+                metric.logger = node.name;
+                writer.write(metric);
+            }
+        }
+        for (Node child : node.children) {
+            write(child);
+        }
+    }
+
+    /**
+     * Количество созданных префиксов
+     */
+    int size() {
+        return nodes.get();
+    }
+
+    /**
+     * Закрыть запись строк префиксов
+     */
+    void close() {
+        writer.close();
+    }
+
+    /**
+     * Узел дерева префиксов
+     */
+    static final class Node {
+        /**
+         * Последний сегмент префикса
+         */
+        @Nonnull
+        private final String segment;
+        /**
+         * Префикс имени логгера целиком
+         */
+        @Nonnull
+        final String name;
+        private volatile Node[] children = NO_CHILDREN;
+        private volatile LevelCount[] counts = NO_COUNTS;
+
+        private Node(@Nonnull String segment, @Nonnull String name) {
+            this.segment = segment;
+            this.name = name;
+        }
+
+        @Nullable
+        private Node child(@Nonnull String loggerName, int start, int end) {
+            int length = end - start;
+            for (Node child : children) {
+                if (child.segment.length() == length && loggerName.regionMatches(start, child.segment, 0, length)) {
+                    return child;
+                }
+            }
+            return null;
+        }
+
+        @Nonnull
+        LongAdder counter(@Nonnull Level level) {
+            for (LevelCount count : counts) {
+                if (count.level == level) {
+                    return count.adder;
+                }
+            }
+            return addCounter(level);
+        }
+
+        @Nonnull
+        private synchronized LongAdder addCounter(@Nonnull Level level) {
+            for (LevelCount count : counts) {
+                if (count.level == level) {
+                    return count.adder;
+                }
+            }
+            LevelCount count = new LevelCount(level);
+            LevelCount[] registered = Arrays.copyOf(counts, counts.length + 1);
+            registered[registered.length - 1] = count;
+            counts = registered;
+            return count.adder;
+        }
+    }
+
+    /**
+     * Счетчик одного уровня в узле
+     */
+    private static final class LevelCount {
+        @Nonnull
+        private final Level level;
+        private final LongAdder adder = new LongAdder();
+        /**
+         * Сумма на момент предыдущей отправки, изменяется только потоком отправки
+         */
+        private long reported;
+
+        private LevelCount(@Nonnull Level level) {
+            this.level = level;
+        }
+    }
+}
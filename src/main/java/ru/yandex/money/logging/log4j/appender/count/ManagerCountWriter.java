@@ -0,0 +1,112 @@
+package ru.yandex.money.logging.log4j.appender.count;
+
+import org.apache.logging.log4j.core.appender.OutputStreamManager;
+
+import javax.annotation.Nonnull;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Запись метрик в менеджер сокета через переиспользуемый буфер.
+ * <p>
+ * Если задан {@code maxBatchSize}, строки всех уровней одной отправки склеиваются через перевод строки
+ * (например, {@code a:1|c\nb:2|c}) и пишутся в сокет одной операцией: для UDP это одна датаграмма.
+ * Если очередная строка не помещается в пакет размером {@code maxBatchSize},
+ * накопленный пакет отправляется, а строка переносится в следующий.
+ * Без {@code maxBatchSize} каждая строка пишется в сокет отдельно.
+ */
+class ManagerCountWriter implements CountWriter {
+
+    private static final byte LINE_SEPARATOR = '\n';
+    private static final int INITIAL_BUFFER_SIZE = 512;
+
+    @Nonnull
+    private final MetricEncoder encoder;
+    @Nonnull
+    private final OutputStreamManager manager;
+    /**
+     * Максимальный размер пакета в байтах, 0 - без склейки
+     */
+    private final int maxBatchSize;
+    /**
+     * Буфер накопленного пакета, переиспользуется между отправками
+     */
+    @Nonnull
+    private ByteBuffer buffer;
+    /**
+     * Записано байт, изменяется только потоком записи
+     */
+    private volatile long bytesWritten;
+
+    ManagerCountWriter(@Nonnull MetricEncoder encoder, @Nonnull OutputStreamManager manager, int maxBatchSize) {
+        this.encoder = requireNonNull(encoder, "encoder");
+        this.manager = requireNonNull(manager, "manager");
+        this.maxBatchSize = maxBatchSize;
+        this.buffer = ByteBuffer.allocate(Math.max(maxBatchSize, INITIAL_BUFFER_SIZE));
+    }
+
+    @Override
+    public void write(@Nonnull LevelMetric metric) {
+        int start = buffer.position();
+        if (!encodeLine(metric, start > 0)) {
+            // layout ничего не вывел
+            buffer.position(start);
+            return;
+        }
+        if (maxBatchSize <= 0) {
+            endBatch();
+        } else if (buffer.position() > maxBatchSize && start > 0) {
+            buffer.position(start);
+            endBatch();
+            encodeLine(metric, false);
+        }
+    }
+
+    /**
+     * Дописать строку метрики в буфер, при необходимости увеличив его
+     *
+     * @return false, если строка получилась пустой
+     */
+    private boolean encodeLine(@Nonnull LevelMetric metric, boolean separated) {
+        int start = buffer.position();
+        while (true) {
+            try {
+                if (separated) {
+                    buffer.put(LINE_SEPARATOR);
+                }
+                int lineStart = buffer.position();
+                encoder.encode(metric, buffer);
+                return buffer.position() > lineStart;
+            } catch (BufferOverflowException e) {
+                ByteBuffer larger = ByteBuffer.allocate(buffer.capacity() * 2);
+                buffer.flip();
+                buffer.limit(start);
+                larger.put(buffer);
+                buffer = larger;
+            }
+        }
+    }
+
+    @Override
+    public void endBatch() {
+        if (buffer.position() == 0) {
+            return;
+        }
+        try {
+            synchronized (manager) {
+                manager.writeBytes(buffer.array(), buffer.arrayOffset(), buffer.position());
+                manager.flush();
+            }
+            bytesWritten += buffer.position();
+        } finally {
+            buffer.clear();
+        }
+    }
+
+    @Override
+    public long bytesWritten() {
+        return bytesWritten;
+    }
+}
@@ -0,0 +1,188 @@
+package ru.yandex.money.logging.log4j.appender.count;
+
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.message.Message;
+import org.apache.logging.log4j.message.ParameterConsumer;
+import org.apache.logging.log4j.message.ParameterVisitable;
+import org.apache.logging.log4j.message.ParameterizedMessage;
+import org.apache.logging.log4j.util.Constants;
+import org.apache.logging.log4j.util.StringBuilderFormattable;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Оценка объема события в символах без повторного форматирования через layout.
+ * <p>
+ * Длина сообщения определяется по тому, что уже доступно у {@link Message}:
+ * <ul>
+ * <li>сообщения, сами являющиеся {@link CharSequence} (в том числе события асинхронных логгеров
+ * с уже отформатированным текстом), - точная длина без форматирования;</li>
+ * <li>сообщения с шаблоном и параметрами - длина шаблона плюс длины параметров, подставляемых в плейсхолдеры
+ * {@code {}}: строк - точно, целых чисел - по количеству цифр, остальных - {@link #PARAMETER_LENGTH}.
+ * Параметры без плейсхолдера (в том числе исключение последним параметром) не учитываются,
+ * {@code toString()} параметров не вызывается;</li>
+ * <li>остальные {@link StringBuilderFormattable} - форматируются в переиспользуемый буфер потока;</li>
+ * <li>иначе - длина {@link Message#getFormattedMessage()}.</li>
+ * </ul>
+ * Для исключения к длине добавляется грубая оценка стека по глубине цепочки причин: имя класса и сообщение
+ * каждого исключения плюс фиксированное количество строк стека. Символы приравниваются к байтам,
+ * оформление layout (время, уровень, логгер) не учитывается.
+ */
+final class MessageSizeEstimator {
+
+    /**
+     * Оценка длины параметра, не являющегося строкой или целым числом
+     */
+    static final int PARAMETER_LENGTH = 16;
+    /**
+     * Оценка длины строки стека {@code \tat package.Class.method(Class.java:123)}
+     */
+    static final int FRAME_LENGTH = 80;
+    /**
+     * Оценка количества строк стека исключения верхнего уровня
+     */
+    static final int TOP_FRAMES = 64;
+    /**
+     * Оценка количества строк стека причины: общие с исключением верхнего уровня строки log4j сворачивает
+     */
+    static final int CAUSE_FRAMES = 16;
+    /**
+     * Максимальная учитываемая глубина цепочки причин, ограничивает обход циклических цепочек
+     */
+    private static final int MAX_CAUSE_DEPTH = 16;
+    private static final ThreadLocal<StringBuilder> BUFFER = ThreadLocal.withInitial(StringBuilder::new);
+    /**
+     * Длина параметров и количество плейсхолдеров сообщения, переиспользуемые потоком
+     */
+    private static final ThreadLocal<long[]> PARAMETERS_LENGTH = ThreadLocal.withInitial(() -> new long[2]);
+    private static final ParameterConsumer<long[]> PARAMETER_CONSUMER = (parameter, index, state) -> {
+        if (index < state[1]) {
+            state[0] += parameterLength(parameter) - 2;
+        }
+    };
+
+    private MessageSizeEstimator() {
+    }
+
+    /**
+     * Оценить объем события: сообщение и исключение
+     */
+    static long estimate(@Nonnull LogEvent event) {
+        Message message = event.getMessage();
+        long size = message != null ? estimate(message) : 0;
+        Throwable thrown = event.getThrown();
+        return thrown != null ? size + estimate(thrown) : size;
+    }
+
+    /**
+     * Оценить длину отформатированного сообщения
+     */
+    static long estimate(@Nonnull Message message) {
+        if (message instanceof CharSequence) {
+            return ((CharSequence) message).length();
+        }
+        if (message instanceof ParameterizedMessage) {
+            String format = message.getFormat();
+            Object[] parameters = message.getParameters();
+            long length = length(format);
+            if (parameters != null) {
+                int substituted = Math.min(parameters.length, placeholders(format));
+                for (int i = 0; i < substituted; i++) {
+                    length += parameterLength(parameters[i]) - 2;
+                }
+            }
+            return Math.max(length, 0);
+        }
+        if (message instanceof ParameterVisitable) {
+            String format = message.getFormat();
+            long[] state = PARAMETERS_LENGTH.get();
+            state[0] = 0;
+            state[1] = placeholders(format);
+            ((ParameterVisitable) message).forEachParameter(PARAMETER_CONSUMER, state);
+            return Math.max(length(format) + state[0], 0);
+        }
+        if (message instanceof StringBuilderFormattable) {
+            StringBuilder buffer = BUFFER.get();
+            buffer.setLength(0);
+            ((StringBuilderFormattable) message).formatTo(buffer);
+            int length = buffer.length();
+            if (buffer.capacity() > Constants.MAX_REUSABLE_MESSAGE_SIZE) {
+                buffer.setLength(Constants.MAX_REUSABLE_MESSAGE_SIZE);
+                buffer.trimToSize();
+            }
+            return length;
+        }
+        return length(message.getFormattedMessage());
+    }
+
+    /**
+     * Оценить объем исключения вместе с цепочкой причин
+     */
+    static long estimate(@Nonnull Throwable thrown) {
+        long size = 0;
+        int depth = 0;
+        for (Throwable throwable = thrown; throwable != null && depth < MAX_CAUSE_DEPTH;
+             throwable = throwable.getCause(), depth++) {
+            size += throwable.getClass().getName().length() + length(throwable.getMessage())
+                    + (long) (depth == 0 ? TOP_FRAMES : CAUSE_FRAMES) * FRAME_LENGTH;
+        }
+        return size;
+    }
+
+    /**
+     * Оценить длину параметра. Вызывающий вычитает 2 символа плейсхолдера {@code {}}, учтенного в длине шаблона.
+     */
+    private static long parameterLength(@Nullable Object parameter) {
+        if (parameter == null) {
+            return "null".length();
+        }
+        if (parameter instanceof CharSequence) {
+            return ((CharSequence) parameter).length();
+        }
+        if (parameter instanceof Long || parameter instanceof Integer
+                || parameter instanceof Short || parameter instanceof Byte) {
+            return digits(((Number) parameter).longValue());
+        }
+        return PARAMETER_LENGTH;
+    }
+
+    /**
+     * Количество плейсхолдеров {@code {}} в шаблоне без учета экранированных {@code \{}},
+     * так же, как их считает {@link ParameterizedMessage}
+     */
+    static int placeholders(@Nullable String format) {
+        if (format == null) {
+            return 0;
+        }
+        int count = 0;
+        boolean escaped = false;
+        for (int i = 0; i < format.length() - 1; i++) {
+            char c = format.charAt(i);
+            if (c == '\\') {
+                escaped = !escaped;
+            } else if (c == '{') {
+                if (!escaped && format.charAt(i + 1) == '}') {
+                    count++;
+                    i++;
+                }
+                escaped = false;
+            } else {
+                escaped = false;
+            }
+        }
+        return count;
+    }
+
+    private static int digits(long value) {
+        int digits = value < 0 ? 2 : 1;
+        for (long rest = Math.abs(value / 10); rest > 0; rest /= 10) {
+            digits++;
+        }
+        return digits;
+    }
+
+    private static int length(@Nullable String value) {
+        return value != null ? value.length() : 0;
+    }
+}
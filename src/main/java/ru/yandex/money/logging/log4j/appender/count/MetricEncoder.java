@@ -0,0 +1,18 @@
+package ru.yandex.money.logging.log4j.appender.count;
+
+import javax.annotation.Nonnull;
+import java.nio.ByteBuffer;
+
+/**
+ * Кодирование метрики в байтовое представление для отправки в сокет.
+ */
+@FunctionalInterface
+interface MetricEncoder {
+
+    /**
+     * Записать метрику в буфер, начиная с текущей позиции буфера
+     *
+     * @throws java.nio.BufferOverflowException если в буфере недостаточно места
+     */
+    void encode(@Nonnull LevelMetric metric, @Nonnull ByteBuffer buffer);
+}
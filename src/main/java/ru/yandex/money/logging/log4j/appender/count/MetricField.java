@@ -0,0 +1,138 @@
+package ru.yandex.money.logging.log4j.appender.count;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Числовые поля метрики, доступные в шаблоне {@link org.apache.logging.log4j.core.layout.PatternLayout}
+ * через {@code %X{key}}.
+ */
+enum MetricField {
+
+    /**
+     * Количество событий с момента предыдущей отправки: %X{count}
+     */
+    COUNT("count") {
+        @Override
+        long get(@Nonnull LevelMetric metric) {
+            return metric.count;
+        }
+    },
+    /**
+     * Количество событий с момента создания счетчиков: %X{total}.
+     * Не уменьшается, пока не изменится %X{startId}, поэтому потеря отдельного пакета не теряет события.
+     * Для метрик, повторно отправленных из outbox, и метрик самых частых событий - 0.
+     */
+    TOTAL("total") {
+        @Override
+        long get(@Nonnull LevelMetric metric) {
+            return metric.total;
+        }
+    },
+    /**
+     * Идентификатор счетчиков, меняется при перезапуске аппендера: %X{startId}
+     */
+    START_ID("startId") {
+        @Override
+        long get(@Nonnull LevelMetric metric) {
+            return metric.startId;
+        }
+    },
+    /**
+     * Длительность интервала, за который накоплено %X{count}, мс: %X{interval}.
+     * Позволяет приемнику вычислить темп событий при непостоянном периоде отправки.
+     * Для метрик, повторно отправленных из outbox, - длина интервала outboxBucket,
+     * для метрик самых частых событий - 0.
+     */
+    INTERVAL("interval") {
+        @Override
+        long get(@Nonnull LevelMetric metric) {
+            return metric.interval;
+        }
+    },
+    /**
+     * Оценка объема событий с момента предыдущей отправки, байт: %X{bytes}. Учитывается при countBytes,
+     * см. {@link MessageSizeEstimator}. Для метрик, повторно отправленных из outbox, и метрик самых частых
+     * событий - 0.
+     */
+    BYTES("bytes") {
+        @Override
+        long get(@Nonnull LevelMetric metric) {
+            return metric.bytes;
+        }
+    },
+    /**
+     * Количество событий, не пересланных в нижестоящие аппендеры из-за превышения бюджета пересылки,
+     * с момента предыдущей отправки: %X{suppressed}. Без бюджета, для метрик, повторно отправленных из outbox,
+     * и метрик самых частых событий - 0.
+     */
+    SUPPRESSED("suppressed") {
+        @Override
+        long get(@Nonnull LevelMetric metric) {
+            return metric.suppressed;
+        }
+    },
+    /**
+     * Максимальный темп событий внутри периода отправки, событий в секунду: %X{peak}
+     */
+    PEAK("peak") {
+        @Override
+        long get(@Nonnull LevelMetric metric) {
+            return metric.peak;
+        }
+    },
+    /**
+     * Минимальный темп событий внутри периода отправки, событий в секунду: %X{min}
+     */
+    MIN("min") {
+        @Override
+        long get(@Nonnull LevelMetric metric) {
+            return metric.min;
+        }
+    },
+    /**
+     * Время, к которому относится метрика, мс с начала эпохи: %X{timestamp}.
+     * Для метрик, повторно отправленных из outbox, - начало интервала, в котором они были накоплены.
+     */
+    TIMESTAMP("timestamp") {
+        @Override
+        long get(@Nonnull LevelMetric metric) {
+            return metric.timestamp;
+        }
+    };
+
+    private static final MetricField[] VALUES = values();
+
+    @Nonnull
+    final String key;
+
+    MetricField(@Nonnull String key) {
+        this.key = key;
+    }
+
+    /**
+     * Получить значение поля метрики
+     */
+    abstract long get(@Nonnull LevelMetric metric);
+
+    /**
+     * Найти поле по названию параметра в контексте
+     */
+    @Nullable
+    static MetricField forKey(@Nonnull String key) {
+        for (MetricField field : VALUES) {
+            if (field.key.equals(key)) {
+                return field;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Все поля метрики
+     */
+    @Nonnull
+    static MetricField[] all() {
+        return VALUES;
+    }
+}
@@ -0,0 +1,220 @@
+package ru.yandex.money.logging.log4j.appender.count;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.core.util.Log4jThread;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * HTTP-эндпоинт, отдающий количество событий по уровням с момента старта аппендера
+ * в текстовом формате Prometheus:
+ * <pre>
+ * # TYPE log4j_events_total counter
+ * log4j_events_total{appender="STATSD",level="ERROR"} 12
+ * </pre>
+ * Значения читаются из тех же счетчиков, что и при отправке в сокет, и не зависят от нее,
+ * поэтому отправка и опрос могут использоваться одновременно.
+ * <p>
+ * Запросы обрабатываются по одному в потоке {@link HttpServer}, ответ формируется в переиспользуемом буфере,
+ * поэтому частые опросы не создают мусора, кроме объектов самого {@link HttpServer}.
+ */
+final class MetricsHttpEndpoint {
+
+    static final String PATH = "/metrics";
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    @Nonnull
+    private final LevelCounters counters;
+    @Nonnull
+    private final Logger log;
+    @Nullable
+    private final String host;
+    private final int port;
+    @Nonnull
+    private final byte[] header;
+    /**
+     * Начало строки метрики уровня: имя метрики и метки, переиспользуется между запросами
+     */
+    @Nonnull
+    private final Map<Level, byte[]> linePrefixes = new HashMap<>();
+    @Nonnull
+    private final String labelPrefix;
+    @Nonnull
+    private final String metricName;
+    @Nonnull
+    private byte[] buffer = new byte[1024];
+    private int size;
+    @Nullable
+    private HttpServer server;
+
+    /**
+     * @param host         адрес, на котором принимаются запросы, null - все адреса
+     * @param metricName   имя метрики
+     * @param appenderName имя аппендера, значение метки {@code appender}
+     */
+    MetricsHttpEndpoint(@Nonnull LevelCounters counters, @Nullable String host, int port, @Nonnull String metricName,
+                        @Nonnull String appenderName, @Nonnull Logger log) {
+        this.counters = requireNonNull(counters, "counters");
+        this.host = host;
+        this.port = port;
+        this.metricName = requireNonNull(metricName, "metricName");
+        this.log = requireNonNull(log, "log");
+        this.header = ("# HELP " + metricName + " Number of log events by level since appender start\n"
+                + "# TYPE " + metricName + " counter\n").getBytes(StandardCharsets.UTF_8);
+        this.labelPrefix = metricName + "{appender=\"" + escape(appenderName) + "\",level=\"";
+    }
+
+    /**
+     * Начать принимать запросы.
+     * <p>
+     * Поток {@link HttpServer} наследует признак daemon от запустившего его потока,
+     * поэтому сервер запускается из потока-демона, чтобы не мешать завершению JVM.
+     */
+    synchronized void start() throws IOException {
+        HttpServer newServer = HttpServer.create(host != null
+                ? new InetSocketAddress(host, port)
+                : new InetSocketAddress(port), 0);
+        newServer.createContext(PATH, this::handle);
+        AtomicReference<RuntimeException> error = new AtomicReference<>();
+        Thread starter = new Log4jThread(() -> {
+            try {
+                newServer.start();
+            } catch (RuntimeException e) {
+                error.set(e);
+            }
+        }, "socket-count-metrics-starter");
+        starter.setDaemon(true);
+        starter.start();
+        try {
+            starter.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (error.get() != null) {
+            newServer.stop(0);
+            throw error.get();
+        }
+        server = newServer;
+    }
+
+    /**
+     * Адрес, на котором принимаются запросы, null - эндпоинт не запущен
+     */
+    @Nullable
+    synchronized InetSocketAddress getAddress() {
+        return server != null ? server.getAddress() : null;
+    }
+
+    synchronized void stop() {
+        if (server != null) {
+            server.stop(0);
+            server = null;
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String method = exchange.getRequestMethod();
+            if (!"GET".equals(method) && !"HEAD".equals(method)) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            render();
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            if ("HEAD".equals(method)) {
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+            exchange.sendResponseHeaders(200, size);
+            OutputStream body = exchange.getResponseBody();
+            body.write(buffer, 0, size);
+        } catch (IOException | RuntimeException e) {
+            log.error("MetricsHttpEndpoint failed to process request", e);
+            throw e;
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Сформировать ответ в {@link #buffer}. Вызывается только из потока {@link HttpServer}.
+     */
+    private void render() {
+        size = 0;
+        append(header);
+        for (LevelCounter counter : counters.all()) {
+            append(linePrefix(counter.level));
+            appendLong(counter.sum());
+            ensureCapacity(1);
+            buffer[size++] = '\n';
+        }
+    }
+
+    @Nonnull
+    private byte[] linePrefix(@Nonnull Level level) {
+        byte[] prefix = linePrefixes.get(level);
+        if (prefix == null) {
+            prefix = (labelPrefix + escape(level.name()) + "\"} ").getBytes(StandardCharsets.UTF_8);
+            linePrefixes.put(level, prefix);
+        }
+        return prefix;
+    }
+
+    private void append(@Nonnull byte[] bytes) {
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buffer, size, bytes.length);
+        size += bytes.length;
+    }
+
+    private void appendLong(long value) {
+        ensureCapacity(20);
+        if (value == 0) {
+            buffer[size++] = '0';
+            return;
+        }
+        int start = size;
+        long rest = value;
+        while (rest > 0) {
+            buffer[size++] = (byte) ('0' + rest % 10);
+            rest /= 10;
+        }
+        for (int left = start, right = size - 1; left < right; left++, right--) {
+            byte digit = buffer[left];
+            buffer[left] = buffer[right];
+            buffer[right] = digit;
+        }
+    }
+
+    private void ensureCapacity(int length) {
+        if (size + length > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + length));
+        }
+    }
+
+    /**
+     * Экранирование значения метки Prometheus
+     */
+    @Nonnull
+    private static String escape(@Nonnull String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    @Override
+    public String toString() {
+        return metricName + "@" + (host != null ? host : "*") + ":" + port + PATH;
+    }
+}
@@ -0,0 +1,131 @@
+package ru.yandex.money.logging.log4j.appender.count;
+
+import org.apache.logging.log4j.Logger;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Запись метрик с сохранением неотправленных в {@link CountOutbox}.
+ * <p>
+ * Метрики одной отправки накапливаются и передаются в сокет в {@link #endBatch()}, перед ними повторно
+ * отправляются записи outbox в порядке их добавления. Если запись в сокет завершилась ошибкой,
+ * метрики отправки добавляются в outbox, а записи outbox остаются в нем до следующей успешной отправки.
+ * Так счетчики не теряются при недоступности приемника, в том числе при финальной отправке:
+ * записи outbox будут отправлены после следующего старта приложения.
+ * <p>
+ * Отправка целиком считается неуспешной при любой ошибке, поэтому если она была разбита на несколько пакетов
+ * ({@code batchSize}) и часть из них дошла до приемника, эти метрики будут отправлены повторно.
+ */
+class OutboxCountWriter implements CountWriter {
+
+    @Nonnull
+    private final CountWriter writer;
+    @Nonnull
+    private final CountOutbox outbox;
+    @Nonnull
+    private final Logger log;
+    /**
+     * Метрики текущей отправки, переиспользуются между отправками
+     */
+    @Nonnull
+    private LevelMetric[] batch = new LevelMetric[8];
+    private int batchSize;
+    /**
+     * Метрика для чтения записей outbox
+     */
+    private final LevelMetric stored = new LevelMetric();
+
+    OutboxCountWriter(@Nonnull CountWriter writer, @Nonnull CountOutbox outbox, @Nonnull Logger log) {
+        this.writer = requireNonNull(writer, "writer");
+        this.outbox = requireNonNull(outbox, "outbox");
+        this.log = requireNonNull(log, "log");
+    }
+
+    @Override
+    public void write(@Nonnull LevelMetric metric) {
+        if (batchSize == batch.length) {
+            batch = Arrays.copyOf(batch, batch.length * 2);
+        }
+        LevelMetric copy = batch[batchSize];
+        if (copy == null) {
+            copy = new LevelMetric();
+            batch[batchSize] = copy;
+        }
+        copy.level = metric.level;
+        copy.count = metric.count;
+        copy.total = metric.total;
+        copy.startId = metric.startId;
+        copy.interval = metric.interval;
+        copy.bytes = metric.bytes;
+        copy.suppressed = metric.suppressed;
+        copy.peak = metric.peak;
+        copy.min = metric.min;
+        copy.timestamp = metric.timestamp;
+        batchSize++;
+    }
+
+    @Override
+    public void endBatch() {
+        int storedRecords = outbox.size();
+        if (storedRecords == 0 && batchSize == 0) {
+            return;
+        }
+        try {
+            for (int i = 0; i < storedRecords; i++) {
+                outbox.read(i, stored);
+                writer.write(stored);
+            }
+            for (int i = 0; i < batchSize; i++) {
+                writer.write(batch[i]);
+            }
+            writer.endBatch();
+            if (storedRecords > 0) {
+                outbox.remove(storedRecords);
+                log.debug("{} stored metrics are sent from outbox", storedRecords);
+            }
+        } catch (RuntimeException e) {
+            long evicted = outbox.evicted();
+            for (int i = 0; i < batchSize; i++) {
+                if (!outbox.add(batch[i])) {
+                    log.warn("Level {} is lost: name is too long for outbox", batch[i].level);
+                }
+            }
+            if (outbox.evicted() > evicted) {
+                log.warn("Outbox is full, {} oldest metrics are lost", outbox.evicted() - evicted);
+            }
+            log.error("Failed to send metrics, they are stored in outbox: {}", outbox, e);
+        } finally {
+            for (int i = 0; i < batchSize; i++) {
+                batch[i].level = null;
+            }
+            batchSize = 0;
+        }
+    }
+
+    @Override
+    public long bytesWritten() {
+        return writer.bytesWritten();
+    }
+
+    @Override
+    public long datagramsDropped() {
+        return writer.datagramsDropped();
+    }
+
+    @Override
+    public void close() {
+        try {
+            writer.close();
+        } finally {
+            try {
+                outbox.close();
+            } catch (IOException e) {
+                log.error("Failed to close outbox", e);
+            }
+        }
+    }
+}
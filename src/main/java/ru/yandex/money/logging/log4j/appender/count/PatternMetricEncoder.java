@@ -0,0 +1,227 @@
+package ru.yandex.money.logging.log4j.appender.count;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.layout.PatternLayout;
+import org.apache.logging.log4j.core.util.OptionConverter;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Кодирование метрики по шаблону {@link PatternLayout}, заранее разобранному на литералы и подстановки.
+ * <p>
+ * Поддерживаются шаблоны, состоящие из текста и конвертеров {@code %level} ({@code %p}),
+ * {@code %X{key}} ({@code %mdc{key}}, {@code %MDC{key}}), {@code %n} и {@code %%}
+ * без модификаторов формата. Числа пишутся в буфер напрямую, без промежуточных строк,
+ * поэтому кодирование не создает мусора. Для остальных шаблонов {@link #compile(PatternLayout)}
+ * возвращает null, и используется обычное кодирование через layout.
+ * <p>
+ * Не потокобезопасен: используется только потоком отправки.
+ */
+final class PatternMetricEncoder implements MetricEncoder {
+
+    private static final char CONVERTER_CHAR = '%';
+
+    @Nonnull
+    private final Segment[] segments;
+    @Nonnull
+    private final Charset charset;
+    /**
+     * level -> название уровня в кодировке layout
+     */
+    private final Map<Level, byte[]> levelNames = new IdentityHashMap<>();
+    /**
+     * Буфер для цифр числа, заполняется с конца
+     */
+    private final byte[] digits = new byte[20];
+
+    private PatternMetricEncoder(@Nonnull List<Segment> segments, @Nonnull Charset charset) {
+        this.segments = segments.toArray(new Segment[0]);
+        this.charset = requireNonNull(charset, "charset");
+    }
+
+    /**
+     * Разобрать шаблон layout
+     *
+     * @return кодировщик или null, если шаблон содержит неподдерживаемые конструкции
+     */
+    @Nullable
+    static PatternMetricEncoder compile(@Nonnull PatternLayout layout) {
+        String pattern = layout.getConversionPattern();
+        Charset charset = layout.getCharset();
+        if (pattern == null || !isAsciiCompatible(charset)) {
+            return null;
+        }
+        List<Segment> segments = new ArrayList<>();
+        StringBuilder literal = new StringBuilder();
+        int i = 0;
+        while (i < pattern.length()) {
+            char c = pattern.charAt(i);
+            if (c != CONVERTER_CHAR) {
+                literal.append(c);
+                i++;
+                continue;
+            }
+            if (i + 1 < pattern.length() && pattern.charAt(i + 1) == CONVERTER_CHAR) {
+                literal.append(CONVERTER_CHAR);
+                i += 2;
+                continue;
+            }
+            int nameEnd = i + 1;
+            while (nameEnd < pattern.length() && Character.isLetter(pattern.charAt(nameEnd))) {
+                nameEnd++;
+            }
+            String name = pattern.substring(i + 1, nameEnd);
+            String option = null;
+            i = nameEnd;
+            if (i < pattern.length() && pattern.charAt(i) == '{') {
+                int optionEnd = pattern.indexOf('}', i);
+                if (optionEnd < 0) {
+                    return null;
+                }
+                option = pattern.substring(i + 1, optionEnd);
+                i = optionEnd + 1;
+            }
+            switch (name) {
+                case "n":
+                    if (option != null) {
+                        return null;
+                    }
+                    literal.append(System.lineSeparator());
+                    break;
+                case "level":
+                case "p":
+                    if (option != null) {
+                        return null;
+                    }
+                    addLiteral(segments, literal, charset);
+                    segments.add(new LevelSegment());
+                    break;
+                case "X":
+                case "mdc":
+                case "MDC":
+                    if (option == null || option.isEmpty() || option.indexOf(',') >= 0) {
+                        return null;
+                    }
+                    addLiteral(segments, literal, charset);
+                    MetricField field = MetricField.forKey(option.trim());
+                    // отсутствующий в контексте ключ PatternLayout выводит как пустую строку
+                    if (field != null) {
+                        segments.add(new FieldSegment(field));
+                    }
+                    break;
+                default:
+                    return null;
+            }
+        }
+        if (!addLiteral(segments, literal, charset)) {
+            return null;
+        }
+        return new PatternMetricEncoder(segments, charset);
+    }
+
+    private static boolean addLiteral(@Nonnull List<Segment> segments, @Nonnull StringBuilder literal,
+                                      @Nonnull Charset charset) {
+        if (literal.length() == 0) {
+            return true;
+        }
+        String text = literal.toString();
+        literal.setLength(0);
+        if (text.contains("${")) {
+            return false;
+        }
+        segments.add(new LiteralSegment(OptionConverter.convertSpecialChars(text).getBytes(charset)));
+        return true;
+    }
+
+    private static boolean isAsciiCompatible(@Nonnull Charset charset) {
+        String probe = "0123456789-";
+        return Arrays.equals(probe.getBytes(charset), probe.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    @Override
+    public void encode(@Nonnull LevelMetric metric, @Nonnull ByteBuffer buffer) {
+        for (Segment segment : segments) {
+            segment.encode(this, metric, buffer);
+        }
+    }
+
+    private void putLevel(@Nonnull Level level, @Nonnull ByteBuffer buffer) {
+        byte[] name = levelNames.get(level);
+        if (name == null) {
+            name = level.name().getBytes(charset);
+            levelNames.put(level, name);
+        }
+        buffer.put(name);
+    }
+
+    private void putLong(long value, @Nonnull ByteBuffer buffer) {
+        if (value == Long.MIN_VALUE) {
+            buffer.put(Long.toString(value).getBytes(StandardCharsets.US_ASCII));
+            return;
+        }
+        if (value < 0) {
+            buffer.put((byte) '-');
+            value = -value;
+        }
+        int pos = digits.length;
+        do {
+            digits[--pos] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        buffer.put(digits, pos, digits.length - pos);
+    }
+
+    /**
+     * Часть разобранного шаблона
+     */
+    private interface Segment {
+        void encode(@Nonnull PatternMetricEncoder encoder, @Nonnull LevelMetric metric, @Nonnull ByteBuffer buffer);
+    }
+
+    private static final class LiteralSegment implements Segment {
+        private final byte[] bytes;
+
+        LiteralSegment(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public void encode(@Nonnull PatternMetricEncoder encoder, @Nonnull LevelMetric metric,
+                           @Nonnull ByteBuffer buffer) {
+            buffer.put(bytes);
+        }
+    }
+
+    private static final class LevelSegment implements Segment {
+        @Override
+        public void encode(@Nonnull PatternMetricEncoder encoder, @Nonnull LevelMetric metric,
+                           @Nonnull ByteBuffer buffer) {
+            encoder.putLevel(metric.level, buffer);
+        }
+    }
+
+    private static final class FieldSegment implements Segment {
+        private final MetricField field;
+
+        FieldSegment(MetricField field) {
+            this.field = field;
+        }
+
+        @Override
+        public void encode(@Nonnull PatternMetricEncoder encoder, @Nonnull LevelMetric metric,
+                           @Nonnull ByteBuffer buffer) {
+            encoder.putLong(field.get(metric), buffer);
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package ru.yandex.money.logging.log4j.appender.count;
+
+import org.apache.logging.log4j.Level;
+
+import javax.annotation.Nonnull;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Метрики работы самого аппендера: время и количество отправок, записанные байты, ошибки записи,
+ * потерянные из-за ошибок события, отброшенные датаграммы и отставание отправок от расписания.
+ * <p>
+ * Значения накапливаются в примитивных полях без создания объектов и раз в {@code intervalMs}
+ * отправляются через отдельный {@link CountWriter} строками с ключами {@code <prefix>.<name>}
+ * (в шаблоне - {@code %X{key}}), после чего сбрасываются:
+ * <ul>
+ * <li>{@code flushes} - количество отправок;</li>
+ * <li>{@code flushTimeUs}, {@code flushTimeMaxUs} - суммарное и максимальное время отправки, мкс;</li>
+ * <li>{@code bytes} - байт, записанных в сокет при отправках уровней;</li>
+ * <li>{@code failures} - ошибок записи;</li>
+ * <li>{@code dropped} - событий, не отправленных из-за ошибок записи (верхняя оценка при склейке в пакеты);</li>
+ * <li>{@code datagramsDropped} - датаграмм, отброшенных из-за переполнения буфера отправки сокета;</li>
+ * <li>{@code lagMaxMs} - максимальное опоздание отправки относительно расписания, мс.</li>
+ * </ul>
+ * Для накопительных значений {@code %X{kind}} равен {@code c}, для максимумов - {@code g}, что соответствует
+ * типам метрик statsd. {@code %X{count}} - значение, {@code %X{interval}} - длительность интервала.
+ * <p>
+ * Не потокобезопасен: используется только из отправок {@link CountSender}, которые не выполняются конкурентно.
+ */
+final class SelfMetrics {
+
+    private static final String COUNTER = "c";
+    private static final String GAUGE = "g";
+
+    @Nonnull
+    private final CountWriter writer;
+    private final long intervalMs;
+    /**
+     * Метрика, переиспользуемая для всех строк
+     */
+    private final LevelMetric metric = new LevelMetric();
+    @Nonnull
+    private final String flushesKey;
+    @Nonnull
+    private final String flushTimeKey;
+    @Nonnull
+    private final String flushTimeMaxKey;
+    @Nonnull
+    private final String bytesKey;
+    @Nonnull
+    private final String failuresKey;
+    @Nonnull
+    private final String droppedKey;
+    @Nonnull
+    private final String datagramsDroppedKey;
+    @Nonnull
+    private final String lagMaxKey;
+
+    private long flushes;
+    private long flushNanos;
+    private long flushNanosMax;
+    private long failures;
+    private long dropped;
+    private long lagMaxMs;
+    /**
+     * Байт, записанных к моменту предыдущей отправки метрик
+     */
+    private long reportedBytes;
+    /**
+     * Датаграмм, отброшенных к моменту предыдущей отправки метрик
+     */
+    private long reportedDatagramsDropped;
+    private long reportedAtMs;
+
+    /**
+     * @param writer     запись строк метрик аппендера
+     * @param prefix     префикс ключей
+     * @param intervalMs интервал отправки метрик аппендера, мс
+     */
+    SelfMetrics(@Nonnull CountWriter writer, @Nonnull String prefix, long intervalMs) {
+        this.writer = requireNonNull(writer, "writer");
+        requireNonNull(prefix, "prefix");
+        if (intervalMs <= 0) {
+            throw new IllegalArgumentException("intervalMs must be positive: " + intervalMs);
+        }
+        this.intervalMs = intervalMs;
+        this.flushesKey = prefix + ".flushes";
+        this.flushTimeKey = prefix + ".flushTimeUs";
+        this.flushTimeMaxKey = prefix + ".flushTimeMaxUs";
+        this.bytesKey = prefix + ".bytes";
+        this.failuresKey = prefix + ".failures";
+        this.droppedKey = prefix + ".dropped";
+        this.datagramsDroppedKey = prefix + ".datagramsDropped";
+        this.lagMaxKey = prefix + ".lagMaxMs";
+        this.reportedAtMs = System.currentTimeMillis();
+        this.metric.level = Level.OFF;
+    }
+
+    /**
+     * Учесть отправку, длившуюся {@code nanos}
+     */
+    void recordFlush(long nanos) {
+        flushes++;
+        flushNanos += nanos;
+        flushNanosMax = Math.max(flushNanosMax, nanos);
+    }
+
+    /**
+     * Учесть ошибку записи, из-за которой не отправлены {@code droppedEvents} событий
+     */
+    void recordFailure(long droppedEvents) {
+        failures++;
+        dropped += droppedEvents;
+    }
+
+    /**
+     * Учесть опоздание отправки относительно расписания
+     */
+    void recordLag(long lagMs) {
+        lagMaxMs = Math.max(lagMaxMs, lagMs);
+    }
+
+    /**
+     * Отправить метрики, если с предыдущей отправки прошло не меньше {@code intervalMs}.
+     * Накопленные значения сбрасываются, даже если запись завершилась ошибкой.
+     *
+     * @param bytesWritten     байт, записанных в сокет при отправках уровней с момента создания
+     * @param datagramsDropped датаграмм, отброшенных при отправках уровней с момента создания
+     */
+    void writeIfDue(long nowMs, long bytesWritten, long datagramsDropped) {
+        long elapsedMs = nowMs - reportedAtMs;
+        if (elapsedMs < intervalMs) {
+            return;
+        }
+        metric.timestamp = nowMs;
+        metric.interval = elapsedMs;
+        try {
+            write(flushesKey, COUNTER, flushes);
+            write(flushTimeKey, COUNTER, flushNanos / 1000);
+            write(flushTimeMaxKey, GAUGE, flushNanosMax / 1000);
+            write(bytesKey, COUNTER, bytesWritten - reportedBytes);
+            write(failuresKey, COUNTER, failures);
+            write(droppedKey, COUNTER, dropped);
+            write(datagramsDroppedKey, COUNTER, datagramsDropped - reportedDatagramsDropped);
+            write(lagMaxKey, GAUGE, lagMaxMs);
+            writer.endBatch();
+        } finally {
+            reportedAtMs = nowMs;
+            reportedBytes = bytesWritten;
+            reportedDatagramsDropped = datagramsDropped;
+            flushes = 0;
+            flushNanos = 0;
+            flushNanosMax = 0;
+            failures = 0;
+            dropped = 0;
+            lagMaxMs = 0;
+        }
+    }
+
+    /**
+     * Закрыть запись строк метрик аппендера
+     */
+    void close() {
+        writer.close();
+    }
+
+    private void write(@Nonnull String key, @Nonnull String kind, long value) {
+        metric.key = key;
+        metric.kind = kind;
+        metric.count = value;
+        writer.write(metric);
+    }
+}
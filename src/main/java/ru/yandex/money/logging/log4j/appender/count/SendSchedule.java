@@ -0,0 +1,25 @@
+package ru.yandex.money.logging.log4j.appender.count;
+
+/**
+ * Расписание периодических отправок количества событий в сокет.
+ */
+interface SendSchedule {
+
+    /**
+     * Начать периодические отправки
+     */
+    void start();
+
+    /**
+     * Запросить досрочную отправку уровней, превысивших порог.
+     * Вызывается из потока, записавшего событие, поэтому не должен блокироваться.
+     */
+    void wakeUp();
+
+    /**
+     * Прекратить периодические отправки и выполнить финальную отправку
+     *
+     * @param timeoutMs сколько ждать завершения финальной отправки, 0 - без ограничения
+     */
+    void stop(long timeoutMs) throws InterruptedException;
+}
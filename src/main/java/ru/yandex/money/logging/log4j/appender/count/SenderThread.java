@@ -1,100 +1,114 @@
 package ru.yandex.money.logging.log4j.appender.count;
 
-import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.core.util.Log4jThread;
 
 import javax.annotation.Nonnull;
-import java.util.Map;
+import javax.annotation.Nullable;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.concurrent.atomic.LongAdder;
-import java.util.function.Consumer;
+import java.util.concurrent.locks.LockSupport;
 
 import static java.util.Objects.requireNonNull;
 
 /**
  * Поток, занимающийся отправкой количества событий в сокет.
+ * <p>
+ * Помимо отправок с периодом {@code periodMs}, по запросу {@link #wakeUp()} досрочно отправляет уровни,
+ * превысившие порог, но не чаще одного раза в {@code earlyFlushIntervalMs}.
+ * <p>
+ * Если задан {@link AdaptivePeriod}, период после каждой отправки пересчитывается по количеству
+ * отправленных событий и времени записи.
  *
  * @author churkin
  * @since 27.09.2018
  */
-class SenderThread extends Log4jThread {
+class SenderThread extends Log4jThread implements SendSchedule {
 
     private static final AtomicLong SENDER_THREAD_SEQUENCE = new AtomicLong(1);
 
     private volatile boolean shutdown = false;
     /**
-     * level -> счетчик событий по этому level
+     * Отправка количества событий в сокет
      */
     @Nonnull
-    private final Map<Level, LongAdder> counterMap;
+    private final CountSender sender;
     /**
      * Период между отправками количества событий в сокет
      */
     private final long periodMs;
-    @Nonnull
-    private final Logger log;
     /**
-     * Действие по отправке количества событий в сокет
+     * Подстройка периода отправки, null - период постоянный
+     */
+    @Nullable
+    private final AdaptivePeriod adaptivePeriod;
+    /**
+     * Минимальный интервал между досрочными отправками
      */
+    private final long earlyFlushIntervalMs;
     @Nonnull
-    private final Consumer<CountLogEvent> writeEventConsumer;
+    private final Logger log;
 
-    SenderThread(@Nonnull Map<Level, LongAdder> counterMap,
-                 long periodMs,
-                 @Nonnull Logger log,
-                 @Nonnull Consumer<CountLogEvent> writeEventConsumer) {
+    /**
+     * @param settings период отправки, минимальный интервал между досрочными отправками и подстройка периода
+     */
+    SenderThread(@Nonnull CountSender sender,
+                 @Nonnull CountSettings settings,
+                 @Nonnull Logger log) {
         super("socket-sender-" + SENDER_THREAD_SEQUENCE.getAndIncrement());
-        this.counterMap = requireNonNull(counterMap, "counterMap");
-        this.periodMs = periodMs;
+        this.sender = requireNonNull(sender, "sender");
+        this.periodMs = settings.sendPeriodMs;
+        this.adaptivePeriod = settings.newAdaptivePeriod();
+        this.earlyFlushIntervalMs = settings.earlyFlushIntervalMs;
         this.log = requireNonNull(log, "log");
-        this.writeEventConsumer = requireNonNull(writeEventConsumer, "writeEventConsumer");
         setDaemon(true);
     }
 
     @Override
     public void run() {
         long lastTimeMs = now();
+        long lastEarlyTimeMs = lastTimeMs - earlyFlushIntervalMs;
+        long currentPeriodMs = periodMs;
         while (!shutdown) {
             long currentTimeMs = now();
-            long scheduledTimeMs = lastTimeMs + periodMs;
-            if (currentTimeMs < scheduledTimeMs) {
-                try {
-                    Thread.sleep(scheduledTimeMs - currentTimeMs);
-                } catch (InterruptedException e) {
-                    break;
+            long scheduledTimeMs = lastTimeMs + currentPeriodMs;
+            if (currentTimeMs >= scheduledTimeMs) {
+                lastTimeMs = currentTimeMs;
+                sender.recordLag(currentTimeMs - scheduledTimeMs);
+                if (adaptivePeriod == null) {
+                    sender.writeEventsToSocket();
+                } else {
+                    long startNanos = System.nanoTime();
+                    long events = sender.writeEventsToSocket();
+                    currentPeriodMs = adaptivePeriod.next(events,
+                            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+                }
+                continue;
+            }
+            long earlyTimeMs = lastEarlyTimeMs + earlyFlushIntervalMs;
+            if (sender.hasUrgentEvents()) {
+                if (currentTimeMs >= earlyTimeMs) {
+                    lastEarlyTimeMs = currentTimeMs;
+                    sender.writeUrgentEventsToSocket();
+                    continue;
                 }
+                scheduledTimeMs = Math.min(scheduledTimeMs, earlyTimeMs);
+            }
+            LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(scheduledTimeMs - currentTimeMs));
+            if (Thread.interrupted()) {
+                break;
             }
-            lastTimeMs = now();
-            writeEventsToSocket();
         }
         // Process any remaining items in the queue.
-        log.trace("SenderThread shutting down. Processing remaining events: {}", counterMap);
-        writeEventsToSocket();
-        log.trace("SenderThread stopped. Queue has events remaining: {}", counterMap);
+        log.trace("SenderThread shutting down. Processing remaining events: {}", sender);
+        sender.writeEventsToSocket();
+        log.trace("SenderThread stopped. Queue has events remaining: {}", sender);
     }
 
     private long now() {
         return System.currentTimeMillis();
     }
 
-    private void writeEventsToSocket() {
-        for (Map.Entry<Level, LongAdder> entry : counterMap.entrySet()) {
-            LongAdder counter = entry.getValue();
-            // здесь не гарантируется точное значение count, оно может быть несколько меньше реального значения в момент reset,
-            // если идут конкуррентные обновления счетчика
-            long count = counter.sumThenReset();
-            if (count == 0) {
-                continue;
-            }
-            try {
-                writeEventConsumer.accept(new CountLogEvent(entry.getKey(), count));
-            } catch (RuntimeException e) {
-                log.error("SenderThread failed to process events", e);
-            }
-        }
-    }
-
     /**
      * Остановка потока
      */
@@ -104,4 +118,15 @@ class SenderThread extends Log4jThread {
             this.interrupt();
         }
     }
-}
\ No newline at end of file
+
+    @Override
+    public void wakeUp() {
+        LockSupport.unpark(this);
+    }
+
+    @Override
+    public void stop(long timeoutMs) throws InterruptedException {
+        shutdown();
+        join(timeoutMs);
+    }
+}
@@ -0,0 +1,107 @@
+package ru.yandex.money.logging.log4j.appender.count;
+
+import org.apache.logging.log4j.core.appender.AbstractManager;
+import org.apache.logging.log4j.core.appender.ManagerFactory;
+import org.apache.logging.log4j.core.net.AbstractSocketManager;
+
+import javax.annotation.Nonnull;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Именованные счетчики, общие для нескольких экземпляров {@link SocketLogLevelCountAppender}.
+ * <p>
+ * Хранятся в реестре менеджеров log4j ({@link AbstractManager}) с подсчетом ссылок, поэтому при переконфигурации
+ * новый аппендер с тем же именем счетчиков получает уже работающие счетчики, поток отправки и сокет:
+ * log4j запускает новую конфигурацию до остановки старой, и счетчики продолжают считать без потерь и без
+ * перезапуска потоков. Реестр общий для всех {@link org.apache.logging.log4j.core.LoggerContext}, загруженных
+ * одним log4j-core, поэтому аппендеры разных контекстов (например, веб-приложений одного сервера) с одним
+ * именем счетчиков отправляют одну метрику на все контексты.
+ * <p>
+ * Параметры счетчиков и отправки ({@link CountPipeline#settings}) берутся из аппендера, создавшего их;
+ * параметры следующих аппендеров с тем же именем не применяются, пока счетчики не будут освобождены всеми
+ * аппендерами. Следующие аппендеры получают ссылку на менеджер сокета счетчиков
+ * ({@link #acquireSocketManager()}), а не создают собственный.
+ */
+final class SharedCountManager extends AbstractManager {
+
+    private static final String NAME_PREFIX = "SocketLogLevelCount:";
+    private static final ManagerFactory<SharedCountManager, FactoryData> FACTORY = (name, data) -> {
+        AbstractSocketManager manager = data.managerFactory.get();
+        try {
+            return new SharedCountManager(name, data.pipelineFactory.apply(manager), data.managerFactory);
+        } catch (RuntimeException e) {
+            manager.stop(0, TimeUnit.MILLISECONDS);
+            throw e;
+        }
+    };
+
+    @Nonnull
+    final CountPipeline pipeline;
+    /**
+     * Получение ссылки на менеджер сокета основного адреса счетчиков
+     */
+    @Nonnull
+    private final Supplier<AbstractSocketManager> managerFactory;
+
+    private SharedCountManager(@Nonnull String name, @Nonnull CountPipeline pipeline,
+                               @Nonnull Supplier<AbstractSocketManager> managerFactory) {
+        super(null, name);
+        this.pipeline = requireNonNull(pipeline, "pipeline");
+        this.managerFactory = requireNonNull(managerFactory, "managerFactory");
+    }
+
+    /**
+     * Получить счетчики по имени, увеличив количество ссылок на них
+     *
+     * @param name            имя счетчиков
+     * @param pipelineFactory создание счетчиков с менеджером сокета основного адреса, если их еще нет.
+     *                        Вызывается под блокировкой реестра log4j.
+     * @param managerFactory  получение ссылки на менеджер сокета основного адреса из реестра log4j.
+     *                        Сохраняется в счетчиках, если они создаются этим вызовом.
+     */
+    @Nonnull
+    static SharedCountManager getCountManager(@Nonnull String name,
+                                              @Nonnull Function<AbstractSocketManager, CountPipeline> pipelineFactory,
+                                              @Nonnull Supplier<AbstractSocketManager> managerFactory) {
+        return getManager(NAME_PREFIX + name, FACTORY, new FactoryData(pipelineFactory, managerFactory));
+    }
+
+    /**
+     * Получить еще одну ссылку на менеджер сокета основного адреса счетчиков. Менеджер не освобождается,
+     * пока на него ссылаются счетчики, поэтому возвращается тот же экземпляр, в который пишут счетчики.
+     */
+    @Nonnull
+    AbstractSocketManager acquireSocketManager() {
+        return managerFactory.get();
+    }
+
+    /**
+     * Вызывается log4j при освобождении последней ссылки
+     */
+    @Override
+    protected boolean releaseSub(long timeout, TimeUnit timeUnit) {
+        pipeline.stop(timeout, timeUnit);
+        return true;
+    }
+
+    /**
+     * Данные для создания счетчиков
+     */
+    private static final class FactoryData {
+
+        @Nonnull
+        private final Function<AbstractSocketManager, CountPipeline> pipelineFactory;
+        @Nonnull
+        private final Supplier<AbstractSocketManager> managerFactory;
+
+        private FactoryData(@Nonnull Function<AbstractSocketManager, CountPipeline> pipelineFactory,
+                            @Nonnull Supplier<AbstractSocketManager> managerFactory) {
+            this.pipelineFactory = pipelineFactory;
+            this.managerFactory = managerFactory;
+        }
+    }
+}
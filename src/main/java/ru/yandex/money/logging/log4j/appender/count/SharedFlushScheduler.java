@@ -0,0 +1,238 @@
+package ru.yandex.money.logging.log4j.appender.count;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.core.util.Log4jThreadFactory;
+
+import javax.annotation.Nonnull;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Общий на всю JVM планировщик отправок количества событий.
+ * <p>
+ * Все аппендеры, зарегистрированные в планировщике, отправляют метрики из одного потока,
+ * вместо того чтобы держать по собственному {@link SenderThread}. Отправки выравниваются
+ * по границам, кратным периоду отправки в астрономическом времени (например, при периоде 10с -
+ * в 00, 10, 20... секунд каждой минуты), поэтому отправки разных аппендеров не расходятся между собой
+ * и попадают в соответствующие интервалы агрегации приемника (statsd, Graphite).
+ * <p>
+ * Досрочные отправки уровней, превысивших порог, выполняются в том же потоке без выравнивания,
+ * но не чаще одного раза в {@code earlyFlushIntervalMs} для каждого аппендера.
+ * <p>
+ * Отправки всех аппендеров выполняются последовательно, поэтому медленная запись одного аппендера
+ * (например, блокирующая запись в TCP-сокет) задерживает отправки остальных. Ошибка отправки аппендера
+ * записывается в лог и не отменяет его следующие отправки.
+ * <p>
+ * Финальная отправка при отмене регистрации также выполняется потоком планировщика, а вызывающий поток ждет
+ * ее не дольше таймаута остановки аппендера, как и при остановке {@link SenderThread}.
+ * <p>
+ * Поток планировщика создается при регистрации первого аппендера и завершается
+ * после отмены регистрации последнего.
+ */
+final class SharedFlushScheduler {
+
+    private static final String THREAD_NAME_PREFIX = "socket-count-scheduler";
+
+    private static ScheduledExecutorService executor;
+    private static int registrations;
+
+    private SharedFlushScheduler() {
+    }
+
+    /**
+     * Создать расписание отправок для аппендера с периодом {@link CountSettings#sendPeriodMs}
+     * и досрочными отправками не чаще {@link CountSettings#earlyFlushIntervalMs}.
+     * Отправки начинаются после {@link SendSchedule#start()}.
+     */
+    @Nonnull
+    static SendSchedule schedule(@Nonnull CountSender sender, @Nonnull CountSettings settings, @Nonnull Logger log) {
+        return new Registration(sender, settings.sendPeriodMs, settings.earlyFlushIntervalMs, log);
+    }
+
+    /**
+     * Момент ближайшей отправки: следующее после now время, кратное периоду
+     */
+    static long nextAlignedTimeMs(long nowMs, long periodMs) {
+        return (nowMs / periodMs + 1) * periodMs;
+    }
+
+    /**
+     * Момент отправки, следующей за отправкой, запланированной на scheduledAtMs. Задержки планировщика
+     * отсчитываются по {@link System#nanoTime()}, поэтому отправка может начаться чуть раньше границы
+     * по астрономическому времени; следующая отправка все равно планируется на следующую границу,
+     * чтобы одна граница не отправлялась дважды.
+     */
+    static long nextScheduledTimeMs(long nowMs, long scheduledAtMs, long periodMs) {
+        return nextAlignedTimeMs(Math.max(nowMs, scheduledAtMs), periodMs);
+    }
+
+    @Nonnull
+    private static synchronized ScheduledExecutorService acquire() {
+        if (executor == null) {
+            ScheduledThreadPoolExecutor newExecutor = new ScheduledThreadPoolExecutor(1,
+                    Log4jThreadFactory.createDaemonThreadFactory(THREAD_NAME_PREFIX));
+            newExecutor.setRemoveOnCancelPolicy(true);
+            executor = newExecutor;
+        }
+        registrations++;
+        return executor;
+    }
+
+    private static synchronized void release() {
+        if (--registrations == 0) {
+            executor.shutdown();
+            executor = null;
+        }
+    }
+
+    /**
+     * Регистрация аппендера в планировщике
+     */
+    private static final class Registration implements SendSchedule, Runnable {
+
+        @Nonnull
+        private final CountSender sender;
+        private final long periodMs;
+        private final long earlyFlushIntervalMs;
+        @Nonnull
+        private final Logger log;
+        /**
+         * Досрочная отправка уже запланирована
+         */
+        private final AtomicBoolean earlyScheduled = new AtomicBoolean();
+        private volatile ScheduledExecutorService registeredExecutor;
+        private volatile ScheduledFuture<?> future;
+        /**
+         * Время запланированной отправки
+         */
+        private long scheduledAtMs;
+        /**
+         * Регистрация отменена. Устанавливается без захвата монитора регистрации,
+         * чтобы остановка не ждала текущую отправку дольше таймаута.
+         */
+        private final AtomicBoolean stopped = new AtomicBoolean();
+        private volatile long lastEarlyTimeMs;
+
+        Registration(@Nonnull CountSender sender, long periodMs, long earlyFlushIntervalMs, @Nonnull Logger log) {
+            this.sender = requireNonNull(sender, "sender");
+            this.periodMs = periodMs;
+            this.earlyFlushIntervalMs = earlyFlushIntervalMs;
+            this.log = requireNonNull(log, "log");
+        }
+
+        @Override
+        public synchronized void start() {
+            registeredExecutor = acquire();
+            scheduledAtMs = System.currentTimeMillis();
+            scheduleNext();
+        }
+
+        @Override
+        public synchronized void run() {
+            if (stopped.get()) {
+                return;
+            }
+            try {
+                sender.recordLag(Math.max(0, System.currentTimeMillis() - scheduledAtMs));
+                sender.writeEventsToSocket();
+            } catch (RuntimeException e) {
+                log.error("SharedFlushScheduler failed to process events", e);
+            } finally {
+                scheduleNext();
+            }
+        }
+
+        /**
+         * Планирование досрочной отправки не захватывает монитор регистрации,
+         * чтобы поток, записавший событие, не ждал завершения текущей отправки
+         */
+        @Override
+        public void wakeUp() {
+            ScheduledExecutorService currentExecutor = registeredExecutor;
+            if (currentExecutor == null || stopped.get() || !earlyScheduled.compareAndSet(false, true)) {
+                return;
+            }
+            long delayMs = Math.max(0, lastEarlyTimeMs + earlyFlushIntervalMs - System.currentTimeMillis());
+            try {
+                currentExecutor.schedule(this::runEarly, delayMs, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException ignored) {
+                // планировщик остановлен, события будут отправлены финальной отправкой
+                earlyScheduled.set(false);
+            }
+        }
+
+        private synchronized void runEarly() {
+            if (stopped.get()) {
+                return;
+            }
+            lastEarlyTimeMs = System.currentTimeMillis();
+            try {
+                sender.writeUrgentEventsToSocket();
+            } catch (RuntimeException e) {
+                log.error("SharedFlushScheduler failed to process events", e);
+            } finally {
+                earlyScheduled.set(false);
+            }
+            // порог мог быть превышен повторно во время отправки
+            if (sender.hasUrgentEvents()) {
+                wakeUp();
+            }
+        }
+
+        private void scheduleNext() {
+            if (stopped.get()) {
+                return;
+            }
+            long nowMs = System.currentTimeMillis();
+            scheduledAtMs = nextScheduledTimeMs(nowMs, scheduledAtMs, periodMs);
+            future = registeredExecutor.schedule(this, scheduledAtMs - nowMs, TimeUnit.MILLISECONDS);
+            // остановка могла отменить предыдущую отправку, пока планировалась эта
+            if (stopped.get()) {
+                future.cancel(false);
+            }
+        }
+
+        /**
+         * Финальная отправка выполняется потоком планировщика после завершения его текущей отправки,
+         * вызывающий поток ждет ее не дольше timeoutMs
+         */
+        @Override
+        public void stop(long timeoutMs) throws InterruptedException {
+            ScheduledExecutorService currentExecutor = registeredExecutor;
+            if (currentExecutor == null || !stopped.compareAndSet(false, true)) {
+                return;
+            }
+            future.cancel(false);
+            Future<?> finalFlush = currentExecutor.submit(this::flushOnStop);
+            release();
+            try {
+                if (timeoutMs > 0) {
+                    finalFlush.get(timeoutMs, TimeUnit.MILLISECONDS);
+                } else {
+                    finalFlush.get();
+                }
+            } catch (TimeoutException e) {
+                log.warn("SharedFlushScheduler final flush did not complete in {} ms", timeoutMs);
+            } catch (ExecutionException e) {
+                log.error("SharedFlushScheduler failed to process events", e.getCause());
+            }
+        }
+
+        private synchronized void flushOnStop() {
+            try {
+                sender.writeEventsToSocket();
+            } catch (RuntimeException e) {
+                log.error("SharedFlushScheduler failed to process events", e);
+            }
+        }
+    }
+}
@@ -7,22 +7,38 @@ import org.apache.logging.log4j.core.Layout;
 import org.apache.logging.log4j.core.LogEvent;
 import org.apache.logging.log4j.core.appender.AbstractOutputStreamAppender;
 import org.apache.logging.log4j.core.appender.SocketAppender;
+import org.apache.logging.log4j.core.config.AppenderControl;
+import org.apache.logging.log4j.core.config.AppenderRef;
+import org.apache.logging.log4j.core.config.Configuration;
 import org.apache.logging.log4j.core.config.plugins.Plugin;
 import org.apache.logging.log4j.core.config.plugins.PluginAliases;
 import org.apache.logging.log4j.core.config.plugins.PluginBuilderAttribute;
 import org.apache.logging.log4j.core.config.plugins.PluginBuilderFactory;
 import org.apache.logging.log4j.core.config.plugins.PluginElement;
+import org.apache.logging.log4j.core.layout.PatternLayout;
 import org.apache.logging.log4j.core.layout.SerializedLayout;
 import org.apache.logging.log4j.core.net.AbstractSocketManager;
 import org.apache.logging.log4j.core.net.Protocol;
 import org.apache.logging.log4j.core.net.ssl.SslConfiguration;
+import org.apache.logging.log4j.message.Message;
+import org.apache.logging.log4j.util.PropertiesUtil;
 
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.io.Serializable;
+import java.net.InetSocketAddress;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.LongAdder;
-import java.util.stream.Collectors;
+import java.util.function.Supplier;
 
 /**
  * Аппендер к log4j, агрегирующий логи по уровню (level) и отправляющий метрику с их количеством в сокет.
@@ -34,52 +50,191 @@ import java.util.stream.Collectors;
 public class SocketLogLevelCountAppender extends SocketAppender {
 
     private static final long DEFAULT_SEND_PERIOD_MS = 1000;
+    private static final long DEFAULT_TARGET_COUNT = 1000;
+    static final long DEFAULT_DNS_REFRESH_INTERVAL_MS = 60_000;
+    private static final long DEFAULT_EARLY_FLUSH_INTERVAL_MS = 1000;
+    private static final String DEFAULT_METRICS_NAME = "log4j_events_total";
+    private static final int DEFAULT_OUTBOX_SIZE = 64 * 1024;
+    private static final long DEFAULT_OUTBOX_BUCKET_MS = 60_000;
+    private static final String DEFAULT_SELF_METRICS_PREFIX = "log4j.count";
+    private static final String DEFAULT_SELF_METRICS_PATTERN = "%X{key}:%X{count}|%X{kind}";
+    private static final int DEFAULT_MAX_LOGGER_PREFIXES = 256;
+    /**
+     * Системное свойство log4j, отключающее JMX
+     */
+    private static final String PROPERTY_DISABLE_JMX = "log4j2.disable.jmx";
 
+    /**
+     * Счетчики и их отправка: собственные или общие с другими аппендерами
+     */
+    private final CountPipeline pipeline;
+    /**
+     * Общие счетчики, null - счетчики принадлежат только этому аппендеру
+     */
+    @Nullable
+    private final SharedCountManager sharedCounters;
     /**
      * level -> счетчик событий по этому level
      */
-    private final Map<Level, LongAdder> counterMap;
+    private final LevelCounters counters;
+    /**
+     * Расписание отправок потоком, записавшим событие, null - отправки выполняет отдельный поток
+     */
+    @Nullable
+    private final LazyFlushSchedule lazyFlush;
+    /**
+     * События считает {@link LevelCountFilter}, а не {@link #append(LogEvent)}
+     */
+    private volatile boolean countedByFilter;
     /**
-     * Период ожидания остановки аппендера
+     * Отслеживаются самые частые шаблоны сообщений и логгеры
      */
-    private final long shutdownTimeoutMs;
+    private final boolean heavyHitters;
     /**
-     * Поток, занимающийся отправкой количества событий в сокет
+     * Учитывать оценку объема событий в байтах
      */
-    private final SenderThread senderThread;
+    private final boolean countBytes;
+    /**
+     * Счетчики по префиксам имени логгера, null - не собираются
+     */
+    @Nullable
+    private final LoggerPrefixCounters loggerPrefixes;
+    /**
+     * Ссылки на нижестоящие аппендеры, в которые пересылаются события в пределах бюджета
+     */
+    private final AppenderRef[] appenderRefs;
+    /**
+     * Конфигурация, в которой ищутся нижестоящие аппендеры, null - пересылка не используется
+     */
+    @Nullable
+    private final Configuration configuration;
+    /**
+     * Нижестоящие аппендеры, определяются при старте
+     */
+    private AppenderControl[] appenderControls = new AppenderControl[0];
 
     private SocketLogLevelCountAppender(String name,
                                         Layout<? extends Serializable> layout,
                                         Filter filter,
                                         boolean ignoreExceptions,
-                                        long shutdownTimeoutMs,
-                                        long sendPeriodMs,
+                                        CountPipeline pipeline,
+                                        @Nullable SharedCountManager sharedCounters,
+                                        AppenderRef[] appenderRefs,
+                                        @Nullable Configuration configuration,
                                         boolean immediateFlush,
                                         AbstractSocketManager manager) {
         super(name, layout, filter, manager, ignoreExceptions, immediateFlush, null);
-        this.counterMap = Arrays.stream(Level.values())
-                .collect(Collectors.toMap(level -> level, level -> new LongAdder()));
-        this.shutdownTimeoutMs = shutdownTimeoutMs;
-        this.senderThread = new SenderThread(counterMap, sendPeriodMs, LOGGER, this::writeByteArrayToManager);
+        this.pipeline = pipeline;
+        this.sharedCounters = sharedCounters;
+        this.counters = pipeline.counters;
+        this.lazyFlush = pipeline.lazyFlush;
+        this.heavyHitters = pipeline.heavyHitterWriter != null;
+        this.loggerPrefixes = pipeline.loggerPrefixes;
+        this.countBytes = pipeline.settings.countBytes;
+        this.appenderRefs = appenderRefs;
+        this.configuration = configuration;
+    }
+
+    /**
+     * Создать запись метрик, кодирующую их в переиспользуемый буфер
+     *
+     * @return запись или null, если достаточно записи событий через layout в менеджер сокета
+     */
+    @Nullable
+    static CountWriter createEncodingWriter(Layout<? extends Serializable> layout,
+                                            @Nullable MetricEncoder encoder,
+                                            int batchSize,
+                                            @Nullable TransportConfig nioTransport,
+                                            AbstractSocketManager manager) {
+        if (nioTransport != null) {
+            return new DatagramChannelCountWriter(encoder != null ? encoder : new LayoutMetricEncoder(layout),
+                    nioTransport.host, nioTransport.port, batchSize, nioTransport.dnsRefreshIntervalMs, LOGGER);
+        }
+        if (encoder != null || batchSize > 0) {
+            return new ManagerCountWriter(encoder != null ? encoder : new LayoutMetricEncoder(layout),
+                    manager, batchSize);
+        }
+        return null;
+    }
+
+    /**
+     * Создать кодировщик метрик, минующий {@link PatternLayout}
+     *
+     * @return кодировщик или null, если шаблон layout не поддерживается
+     */
+    static MetricEncoder createPatternEncoder(Layout<? extends Serializable> layout) {
+        PatternMetricEncoder encoder = layout instanceof PatternLayout
+                ? PatternMetricEncoder.compile((PatternLayout) layout)
+                : null;
+        if (encoder != null) {
+            // проверяем, что результат совпадает с PatternLayout: replace, header и т.п. не поддерживаются
+            LevelMetric sample = new LevelMetric();
+            sample.level = Level.INFO;
+            sample.count = 1234567890L;
+            ByteBuffer buffer = ByteBuffer.allocate(4096);
+            try {
+                encoder.encode(sample, buffer);
+                byte[] expected = layout.toByteArray(new CountLogEvent(sample));
+                if (Arrays.equals(expected, Arrays.copyOf(buffer.array(), buffer.position()))) {
+                    return encoder;
+                }
+            } catch (BufferOverflowException ignored) {
+                // слишком длинный шаблон, используем PatternLayout
+            }
+        }
+        LOGGER.warn("Layout {} is not supported by direct encoding, PatternLayout is used instead", layout);
+        return null;
+    }
+
+    /**
+     * Статистика количества событий по уровням: текущий период, с момента старта и сглаженный темп.
+     * Чтение статистики не влияет на запись событий.
+     */
+    @Nonnull
+    public LevelCountStatistics getStatistics() {
+        return pipeline.statistics;
+    }
+
+    /**
+     * Адрес HTTP-эндпоинта для опроса количества событий, null - эндпоинт не запущен
+     */
+    @Nullable
+    InetSocketAddress getMetricsAddress() {
+        return pipeline.getMetricsAddress();
     }
 
     @Override
     public void start() {
-        senderThread.start();
+        if (configuration != null) {
+            Map<String, Appender> appenders = configuration.getAppenders();
+            List<AppenderControl> controls = new ArrayList<>();
+            for (AppenderRef appenderRef : appenderRefs) {
+                Appender appender = appenders.get(appenderRef.getRef());
+                if (appender != null) {
+                    controls.add(new AppenderControl(appender, appenderRef.getLevel(), appenderRef.getFilter()));
+                } else {
+                    LOGGER.error("No appender named {} was configured for SocketCountAppender {}",
+                            appenderRef.getRef(), getName());
+                }
+            }
+            appenderControls = controls.toArray(new AppenderControl[0]);
+        }
+        pipeline.start();
         super.start();
     }
 
     @Override
     public boolean stop(final long timeout, final TimeUnit timeUnit) {
         setStopping();
-        super.stop(timeout, timeUnit, false);
         LOGGER.trace("SocketCountAppender stopping");
-        senderThread.shutdown();
-        try {
-            senderThread.join(shutdownTimeoutMs);
-        } catch (final InterruptedException ex) {
-            LOGGER.warn("Interrupted while stopping SocketCountAppender {}", getName());
+        if (sharedCounters != null) {
+            // финальная отправка выполняется при освобождении общих счетчиков последним аппендером
+            sharedCounters.stop(timeout, timeUnit);
+        } else {
+            pipeline.stop(timeout, timeUnit);
         }
+        // менеджер сокета освобождается после финальной отправки, иначе она уйдет в закрытый сокет
+        super.stop(timeout, timeUnit, false);
         LOGGER.trace("SocketCountAppender stopped");
         setStopped();
         return true;
@@ -90,7 +245,78 @@ public class SocketLogLevelCountAppender extends SocketAppender {
         if (!isStarted()) {
             throw new IllegalStateException("SocketCountAppender " + getName() + " is not active");
         }
-        counterMap.get(logEvent.getLevel()).increment();
+        if (!countedByFilter) {
+            if (heavyHitters) {
+                Message message = logEvent.getMessage();
+                counters.increment(logEvent.getLevel(), message != null ? message.getFormat() : null,
+                        logEvent.getLoggerName());
+            } else {
+                counters.increment(logEvent.getLevel());
+            }
+            if (countBytes) {
+                counters.addBytes(logEvent.getLevel(), MessageSizeEstimator.estimate(logEvent));
+            }
+            if (loggerPrefixes != null) {
+                loggerPrefixes.increment(logEvent.getLevel(), logEvent.getLoggerName());
+            }
+            if (lazyFlush != null) {
+                lazyFlush.onEvent();
+            }
+        }
+        if (appenderControls.length > 0) {
+            forward(logEvent);
+        }
+    }
+
+    /**
+     * Переслать уже учтенное событие в нижестоящие аппендеры, если оно укладывается в бюджет периода
+     */
+    private void forward(final LogEvent logEvent) {
+        if (!counters.tryForward(logEvent.getLevel())) {
+            return;
+        }
+        for (AppenderControl control : appenderControls) {
+            control.callAppender(logEvent);
+        }
+    }
+
+    /**
+     * Учесть событие, отфильтрованное {@link LevelCountFilter} до создания {@link LogEvent}
+     */
+    void count(Level level, @Nullable String format, @Nullable String loggerName) {
+        if (heavyHitters) {
+            counters.increment(level, format, loggerName);
+        } else {
+            counters.increment(level);
+        }
+        if (loggerPrefixes != null) {
+            loggerPrefixes.increment(level, loggerName);
+        }
+        if (lazyFlush != null) {
+            lazyFlush.onEvent();
+        }
+    }
+
+    /**
+     * Перестать считать события в {@link #append(LogEvent)}: их считает {@link LevelCountFilter}
+     */
+    void countByFilter() {
+        countedByFilter = true;
+    }
+
+    /**
+     * Параметры собственного UDP-транспорта аппендера
+     */
+    static final class TransportConfig {
+        final String host;
+        final int port;
+        final long dnsRefreshIntervalMs;
+
+        private TransportConfig(String host, int port, long dnsRefreshIntervalMs) {
+            this.host = host;
+            this.port = port;
+            this.dnsRefreshIntervalMs = dnsRefreshIntervalMs;
+        }
     }
 
     @PluginBuilderFactory
@@ -129,12 +355,234 @@ public class SocketLogLevelCountAppender extends SocketAppender {
         @PluginAliases({"SslConfig"})
         private SslConfiguration sslConfiguration;
 
+        /**
+         * Дополнительные адреса отправки метрик с общими счетчиками
+         */
+        @PluginElement("Destinations")
+        private CountDestination[] destinations;
+
+        /**
+         * Нижестоящие аппендеры, в которые пересылаются события в пределах бюджета forwardBudgets
+         */
+        @PluginElement("AppenderRef")
+        private AppenderRef[] appenderRefs;
+
+        /**
+         * Имя счетчиков, общих для аппендеров разных конфигураций и контекстов log4j.
+         * Не задано - у аппендера собственные счетчики.
+         */
+        @PluginBuilderAttribute
+        private String sharedCounters;
+
+        /**
+         * Бюджеты пересылки событий в нижестоящие аппендеры за период отправки, например
+         * {@code ERROR=100, WARN=1000}. События уровней без бюджета пересылаются все.
+         */
+        @PluginBuilderAttribute
+        private String forwardBudgets;
+
         @PluginBuilderAttribute
         private long shutdownTimeout = 0L;
 
         @PluginBuilderAttribute
         private long sendPeriod = DEFAULT_SEND_PERIOD_MS;
 
+        /**
+         * Минимальный период отправки при подстройке периода, мс. 0 - равен sendPeriod.
+         */
+        @PluginBuilderAttribute
+        private long minSendPeriod;
+
+        /**
+         * Максимальный период отправки при подстройке периода, мс. 0 - период постоянный.
+         */
+        @PluginBuilderAttribute
+        private long maxSendPeriod;
+
+        /**
+         * Желаемое количество событий за одну отправку при подстройке периода
+         */
+        @PluginBuilderAttribute
+        private long targetCount = DEFAULT_TARGET_COUNT;
+
+        /**
+         * Максимальный размер пакета в байтах, в который склеиваются метрики одной отправки.
+         * 0 - каждая метрика пишется в сокет отдельно.
+         */
+        @PluginBuilderAttribute
+        private int batchSize;
+
+        /**
+         * Отправлять метрики кадрами двоичного формата {@link CountFrame} вместо layout
+         */
+        @PluginBuilderAttribute
+        private boolean binaryFormat;
+
+        /**
+         * Идентификатор аппендера в кадрах двоичного формата, по умолчанию - имя аппендера
+         */
+        @PluginBuilderAttribute
+        private String appenderId;
+
+        /**
+         * Отправлять при каждой отправке все уровни, в которых были события, с общим количеством в %X{total}
+         */
+        @PluginBuilderAttribute
+        private boolean cumulative;
+
+        /**
+         * Учитывать оценку объема событий в байтах, доступную в шаблоне как %X{bytes}
+         */
+        @PluginBuilderAttribute
+        private boolean countBytes;
+
+        /**
+         * Пороги количества событий за период, при превышении которых уровень отправляется досрочно,
+         * например {@code ERROR>=100, FATAL>=1}
+         */
+        @PluginBuilderAttribute
+        private String thresholds;
+
+        /**
+         * Количество самых частых шаблонов сообщений и логгеров каждого уровня, отправляемых за период.
+         * 0 - не отслеживаются.
+         */
+        @PluginBuilderAttribute
+        private int heavyHitters;
+
+        /**
+         * Шаблон {@link PatternLayout} метрик самых частых событий
+         */
+        @PluginBuilderAttribute
+        private String heavyHitterPattern;
+
+        /**
+         * Количество сегментов имени логгера в префиксе, по которому считаются события. 0 - не считаются.
+         */
+        @PluginBuilderAttribute
+        private int loggerDepth;
+
+        /**
+         * Максимальное количество префиксов имени логгера, события остальных учитываются в префиксе other
+         */
+        @PluginBuilderAttribute
+        private int maxLoggerPrefixes = DEFAULT_MAX_LOGGER_PREFIXES;
+
+        /**
+         * Шаблон {@link PatternLayout} метрик префиксов имени логгера
+         */
+        @PluginBuilderAttribute
+        private String loggerPattern;
+
+        /**
+         * Интервал отправки метрик самого аппендера, мс. 0 - не отправляются.
+         */
+        @PluginBuilderAttribute
+        private long selfMetricsInterval;
+
+        /**
+         * Префикс ключей метрик самого аппендера
+         */
+        @PluginBuilderAttribute
+        private String selfMetricsPrefix = DEFAULT_SELF_METRICS_PREFIX;
+
+        /**
+         * Шаблон {@link PatternLayout} метрик самого аппендера
+         */
+        @PluginBuilderAttribute
+        private String selfMetricsPattern = DEFAULT_SELF_METRICS_PATTERN;
+
+        /**
+         * Минимальный интервал между досрочными отправками по превышению порогов, мс
+         */
+        @PluginBuilderAttribute
+        private long earlyFlushInterval = DEFAULT_EARLY_FLUSH_INTERVAL_MS;
+
+        /**
+         * Длительность слота для определения всплесков внутри периода отправки, мс.
+         * Максимальный и минимальный по слотам темп событий доступны в шаблоне как %X{peak} и %X{min}.
+         * 0 - всплески не отслеживаются, %X{peak} и %X{min} равны среднему темпу за период.
+         */
+        @PluginBuilderAttribute
+        private long burstSlot;
+
+        /**
+         * Кодировать метрики напрямую в буфер по заранее разобранному шаблону {@link PatternLayout}.
+         * Для неподдерживаемых шаблонов используется сам PatternLayout.
+         */
+        @PluginBuilderAttribute
+        private boolean directEncoding;
+
+        /**
+         * Отправлять метрики из общего на всю JVM потока с отправками, выровненными по границам периода,
+         * вместо собственного потока аппендера
+         */
+        @PluginBuilderAttribute
+        private boolean sharedScheduler;
+
+        /**
+         * Отправлять метрики из потока, записавшего событие, когда наступил период отправки,
+         * без собственного потока аппендера
+         */
+        @PluginBuilderAttribute
+        private boolean lazyFlush;
+
+        /**
+         * Отправлять метрики по UDP через собственный неблокирующий {@link java.nio.channels.DatagramChannel},
+         * минуя менеджер сокета log4j
+         */
+        @PluginBuilderAttribute
+        private boolean nioTransport;
+
+        /**
+         * Период обновления адреса хоста через DNS для nioTransport, мс. 0 - адрес не обновляется
+         */
+        @PluginBuilderAttribute
+        private long dnsRefreshInterval = DEFAULT_DNS_REFRESH_INTERVAL_MS;
+
+        /**
+         * Регистрировать статистику аппендера в JMX. Не действует, если JMX отключен в log4j
+         * через {@code log4j2.disable.jmx}.
+         */
+        @PluginBuilderAttribute
+        private boolean jmx;
+
+        /**
+         * Порт HTTP-эндпоинта, отдающего количество событий по уровням в формате Prometheus. 0 - не используется.
+         */
+        @PluginBuilderAttribute
+        private int metricsPort;
+
+        /**
+         * Адрес HTTP-эндпоинта, не задан - все адреса
+         */
+        @PluginBuilderAttribute
+        private String metricsHost;
+
+        /**
+         * Имя метрики в ответе HTTP-эндпоинта
+         */
+        @PluginBuilderAttribute
+        private String metricsName = DEFAULT_METRICS_NAME;
+
+        /**
+         * Файл для хранения метрик, которые не удалось отправить. Не задан - метрики при ошибке отправки теряются.
+         */
+        @PluginBuilderAttribute
+        private String outboxFile;
+
+        /**
+         * Размер файла outboxFile, байт
+         */
+        @PluginBuilderAttribute
+        private int outboxSize = DEFAULT_OUTBOX_SIZE;
+
+        /**
+         * Длина интервала, в котором метрики одного уровня объединяются в outboxFile, мс
+         */
+        @PluginBuilderAttribute
+        private long outboxBucket = DEFAULT_OUTBOX_BUCKET_MS;
+
         @SuppressWarnings("resource")
         @Override
         public SocketLogLevelCountAppender build() {
@@ -160,11 +608,335 @@ public class SocketLogLevelCountAppender extends SocketAppender {
                 return null;
             }
 
-            AbstractSocketManager manager = createSocketManager(name, actualProtocol, host, port,
-                    connectTimeout, sslConfiguration, reconnectDelayMillis, immediateFail, layout, getBufferSize());
+            long actualMinSendPeriod = 0;
+            if (maxSendPeriod != 0 || minSendPeriod != 0) {
+                actualMinSendPeriod = minSendPeriod != 0 ? minSendPeriod : sendPeriod;
+                if (actualMinSendPeriod <= 0 || actualMinSendPeriod > sendPeriod || maxSendPeriod < sendPeriod) {
+                    SocketLogLevelCountAppender.LOGGER.error("Illegal minSendPeriod or maxSendPeriod " +
+                            "for SocketCountAppender: {} <= {} <= {}", minSendPeriod, sendPeriod, maxSendPeriod);
+                    return null;
+                }
+                if (targetCount <= 0) {
+                    SocketLogLevelCountAppender.LOGGER.error("Illegal targetCount for SocketCountAppender: {}",
+                            targetCount);
+                    return null;
+                }
+                if (sharedScheduler || lazyFlush) {
+                    SocketLogLevelCountAppender.LOGGER.error("maxSendPeriod is not supported with sharedScheduler " +
+                            "or lazyFlush for SocketCountAppender");
+                    return null;
+                }
+            }
+
+            if (burstSlot < 0 || burstSlot > 0 && burstSlot >= sendPeriod) {
+                SocketLogLevelCountAppender.LOGGER.error("Illegal burstSlot for SocketCountAppender: {}", burstSlot);
+                return null;
+            }
+
+            if (batchSize < 0) {
+                SocketLogLevelCountAppender.LOGGER.error("Illegal batchSize for SocketCountAppender: {}", batchSize);
+                return null;
+            }
+
+            Map<String, Long> levelThresholds;
+            try {
+                levelThresholds = LevelCounters.parseThresholds(thresholds);
+            } catch (IllegalArgumentException e) {
+                SocketLogLevelCountAppender.LOGGER.error("Illegal thresholds for SocketCountAppender: {}", thresholds, e);
+                return null;
+            }
+
+            Map<String, Long> levelBudgets;
+            try {
+                levelBudgets = LevelCounters.parseBudgets(forwardBudgets);
+            } catch (IllegalArgumentException e) {
+                SocketLogLevelCountAppender.LOGGER.error("Illegal forwardBudgets for SocketCountAppender: {}",
+                        forwardBudgets, e);
+                return null;
+            }
+            AppenderRef[] actualAppenderRefs = appenderRefs != null ? appenderRefs : new AppenderRef[0];
+            if (!levelBudgets.isEmpty() && actualAppenderRefs.length == 0) {
+                SocketLogLevelCountAppender.LOGGER.error("No AppenderRef provided for forwardBudgets " +
+                        "of SocketCountAppender");
+                return null;
+            }
+            if (actualAppenderRefs.length > 0 && getConfiguration() == null) {
+                SocketLogLevelCountAppender.LOGGER.error("No configuration provided to resolve AppenderRef " +
+                        "of SocketCountAppender");
+                return null;
+            }
+
+            if (binaryFormat && heavyHitters > 0) {
+                SocketLogLevelCountAppender.LOGGER.error("heavyHitters are not supported with binaryFormat " +
+                        "for SocketCountAppender");
+                return null;
+            }
+
+            if (cumulative && binaryFormat) {
+                SocketLogLevelCountAppender.LOGGER.error("cumulative is not supported with binaryFormat " +
+                        "for SocketCountAppender");
+                return null;
+            }
+            if (countBytes && binaryFormat) {
+                SocketLogLevelCountAppender.LOGGER.error("countBytes is not supported with binaryFormat " +
+                        "for SocketCountAppender");
+                return null;
+            }
+            if (cumulative && outboxFile != null) {
+                SocketLogLevelCountAppender.LOGGER.error("outboxFile is not supported with cumulative " +
+                        "for SocketCountAppender");
+                return null;
+            }
+
+            Layout<? extends Serializable> heavyHitterLayout = null;
+            if (heavyHitters < 0) {
+                SocketLogLevelCountAppender.LOGGER.error("Illegal heavyHitters for SocketCountAppender: {}",
+                        heavyHitters);
+                return null;
+            }
+            if (heavyHitters > 0) {
+                if (heavyHitterPattern == null) {
+                    SocketLogLevelCountAppender.LOGGER.error("No heavyHitterPattern provided for SocketCountAppender");
+                    return null;
+                }
+                heavyHitterLayout = PatternLayout.newBuilder()
+                        .withPattern(heavyHitterPattern)
+                        .withConfiguration(getConfiguration())
+                        .withCharset(layout instanceof PatternLayout ? ((PatternLayout) layout).getCharset() : null)
+                        .build();
+            }
+
+            Layout<? extends Serializable> selfMetricsLayout = null;
+            if (selfMetricsInterval < 0) {
+                SocketLogLevelCountAppender.LOGGER.error("Illegal selfMetricsInterval for SocketCountAppender: {}",
+                        selfMetricsInterval);
+                return null;
+            }
+            if (selfMetricsInterval > 0) {
+                if (binaryFormat) {
+                    SocketLogLevelCountAppender.LOGGER.error("selfMetricsInterval is not supported with binaryFormat " +
+                            "for SocketCountAppender");
+                    return null;
+                }
+                if (selfMetricsPrefix == null || selfMetricsPrefix.isEmpty() || selfMetricsPattern == null) {
+                    SocketLogLevelCountAppender.LOGGER.error("No selfMetricsPrefix or selfMetricsPattern provided " +
+                            "for SocketCountAppender");
+                    return null;
+                }
+                selfMetricsLayout = PatternLayout.newBuilder()
+                        .withPattern(selfMetricsPattern)
+                        .withConfiguration(getConfiguration())
+                        .withCharset(layout instanceof PatternLayout ? ((PatternLayout) layout).getCharset() : null)
+                        .build();
+            }
+
+            Layout<? extends Serializable> loggerLayout = null;
+            if (loggerDepth < 0 || loggerDepth > 0 && maxLoggerPrefixes <= 0) {
+                SocketLogLevelCountAppender.LOGGER.error("Illegal loggerDepth or maxLoggerPrefixes " +
+                        "for SocketCountAppender: {}, {}", loggerDepth, maxLoggerPrefixes);
+                return null;
+            }
+            if (loggerDepth > 0) {
+                if (binaryFormat) {
+                    SocketLogLevelCountAppender.LOGGER.error("loggerDepth is not supported with binaryFormat " +
+                            "for SocketCountAppender");
+                    return null;
+                }
+                if (loggerPattern == null) {
+                    SocketLogLevelCountAppender.LOGGER.error("No loggerPattern provided for SocketCountAppender");
+                    return null;
+                }
+                loggerLayout = PatternLayout.newBuilder()
+                        .withPattern(loggerPattern)
+                        .withConfiguration(getConfiguration())
+                        .withCharset(layout instanceof PatternLayout ? ((PatternLayout) layout).getCharset() : null)
+                        .build();
+            }
+
+            if (earlyFlushInterval <= 0) {
+                SocketLogLevelCountAppender.LOGGER.error("Illegal earlyFlushInterval for SocketCountAppender: {}",
+                        earlyFlushInterval);
+                return null;
+            }
+
+            if (lazyFlush && sharedScheduler) {
+                SocketLogLevelCountAppender.LOGGER.error("lazyFlush and sharedScheduler cannot be used together " +
+                        "for SocketCountAppender");
+                return null;
+            }
+
+            if (nioTransport && binaryFormat) {
+                SocketLogLevelCountAppender.LOGGER.warn("nioTransport is not supported with binaryFormat, " +
+                        "socket manager is used");
+            }
+            if (nioTransport && actualProtocol != Protocol.UDP) {
+                SocketLogLevelCountAppender.LOGGER.warn("nioTransport is supported only for UDP, {} is used via socket manager",
+                        actualProtocol);
+            }
+            TransportConfig transportConfig = nioTransport && !binaryFormat && actualProtocol == Protocol.UDP
+                    ? new TransportConfig(host, port, dnsRefreshInterval)
+                    : null;
+
+            boolean jmxEnabled = jmx && !PropertiesUtil.getProperties().getBooleanProperty(PROPERTY_DISABLE_JMX);
+
+            if (metricsPort < 0 || metricsPort > 0xFFFF) {
+                SocketLogLevelCountAppender.LOGGER.error("Illegal metricsPort for SocketCountAppender: {}", metricsPort);
+                return null;
+            }
+            if (metricsPort > 0 && (metricsName == null || !metricsName.matches("[a-zA-Z_:][a-zA-Z0-9_:]*"))) {
+                SocketLogLevelCountAppender.LOGGER.error("Illegal metricsName for SocketCountAppender: {}", metricsName);
+                return null;
+            }
+
+            if (outboxFile != null) {
+                if (outboxSize < CountOutbox.HEADER_SIZE + CountOutbox.RECORD_SIZE) {
+                    SocketLogLevelCountAppender.LOGGER.error("Illegal outboxSize for SocketCountAppender: {}", outboxSize);
+                    return null;
+                }
+                if (outboxBucket <= 0) {
+                    SocketLogLevelCountAppender.LOGGER.error("Illegal outboxBucket for SocketCountAppender: {}",
+                            outboxBucket);
+                    return null;
+                }
+            }
+
+            if (sharedCounters != null && sharedCounters.isEmpty()) {
+                SocketLogLevelCountAppender.LOGGER.error("Empty sharedCounters for SocketCountAppender");
+                return null;
+            }
+
+            CountSettings settings = CountSettings.newBuilder()
+                    .withLayout(layout)
+                    .withAddress(actualProtocol, host, port)
+                    .withConnection(connectTimeout, reconnectDelayMillis, immediateFail)
+                    .withShutdownTimeoutMs(shutdownTimeout)
+                    .withSendPeriodMs(sendPeriod)
+                    .withAdaptivePeriod(actualMinSendPeriod, maxSendPeriod, targetCount)
+                    .withBurstSlotMs(burstSlot)
+                    .withThresholds(levelThresholds)
+                    .withForwardBudgets(levelBudgets)
+                    .withEarlyFlushIntervalMs(earlyFlushInterval)
+                    .withHeavyHitters(heavyHitters, heavyHitterLayout)
+                    .withSelfMetrics(selfMetricsInterval, selfMetricsPrefix, selfMetricsLayout)
+                    .withLoggerPrefixes(loggerDepth, maxLoggerPrefixes, loggerLayout)
+                    .withCountBytes(countBytes)
+                    .withBatchSize(batchSize)
+                    .withBinaryAppenderId(binaryFormat ? (appenderId != null ? appenderId : name) : null)
+                    .withCumulative(cumulative)
+                    .withDirectEncoding(directEncoding)
+                    .withSharedScheduler(sharedScheduler)
+                    .withLazyFlush(lazyFlush)
+                    .withNioTransport(transportConfig)
+                    .withJmx(jmxEnabled)
+                    .withMetricsEndpoint(metricsHost, metricsPort, metricsName)
+                    .withOutbox(outboxFile, outboxSize, outboxBucket)
+                    .withDestinations(destinations != null ? Arrays.asList(destinations) : Collections.emptyList())
+                    .build();
+
+            // заголовок layout дописывается менеджером в начало каждой датаграммы, в двоичном формате он не нужен
+            Layout<? extends Serializable> managerLayout = binaryFormat ? PatternLayout.createDefaultLayout() : layout;
+            SslConfiguration managerSslConfiguration = sslConfiguration;
+            int bufferSize = getBufferSize();
+            Supplier<AbstractSocketManager> managerFactory = () -> createSocketManager(name, settings.protocol,
+                    settings.host, settings.port, settings.connectTimeout, managerSslConfiguration,
+                    settings.reconnectDelayMillis, settings.immediateFail, managerLayout, bufferSize);
+
+            AbstractSocketManager manager;
+            CountPipeline pipeline;
+            SharedCountManager counters = null;
+            if (sharedCounters != null) {
+                try {
+                    // общие счетчики держат собственную ссылку на менеджер сокета, чтобы пережить этот аппендер
+                    counters = SharedCountManager.getCountManager(sharedCounters,
+                            socketManager -> createPipeline(name, settings, socketManager, true), managerFactory);
+                } catch (RuntimeException e) {
+                    SocketLogLevelCountAppender.LOGGER.error("Could not create counters for SocketCountAppender {}",
+                            name, e);
+                    return null;
+                }
+                pipeline = counters.pipeline;
+                if (!pipeline.settings.equals(settings)) {
+                    SocketLogLevelCountAppender.LOGGER.warn("SocketCountAppender {} uses sharedCounters {} created " +
+                            "with other parameters, its parameters are ignored until the counters are released",
+                            name, sharedCounters);
+                }
+                try {
+                    // аппендер пишет в менеджер сокета общих счетчиков, а не создает собственный
+                    manager = counters.acquireSocketManager();
+                } catch (RuntimeException e) {
+                    SocketLogLevelCountAppender.LOGGER.error("Could not create socket manager " +
+                            "for SocketCountAppender {}", name, e);
+                    counters.stop(0, TimeUnit.MILLISECONDS);
+                    return null;
+                }
+            } else {
+                manager = managerFactory.get();
+                try {
+                    pipeline = createPipeline(name, settings, manager, false);
+                } catch (RuntimeException e) {
+                    SocketLogLevelCountAppender.LOGGER.error("Could not create counters for SocketCountAppender {}",
+                            name, e);
+                    manager.stop(0, TimeUnit.MILLISECONDS);
+                    return null;
+                }
+            }
+
+            return new SocketLogLevelCountAppender(name, layout, getFilter(), isIgnoreExceptions(), pipeline,
+                    counters, actualAppenderRefs, actualAppenderRefs.length > 0 ? getConfiguration() : null,
+                    !isBufferedIo() || immediateFlush, manager);
+        }
+
+        /**
+         * Создать счетчики и их отправку
+         *
+         * @param manager      менеджер сокета основного адреса
+         * @param ownsManager  освобождать менеджер сокета основного адреса при остановке счетчиков
+         * @throws UncheckedIOException если не удалось открыть outboxFile
+         */
+        private CountPipeline createPipeline(String name,
+                                             CountSettings settings,
+                                             AbstractSocketManager manager,
+                                             boolean ownsManager) {
+            CountOutbox outbox = null;
+            if (settings.outboxFile != null) {
+                try {
+                    outbox = CountOutbox.open(Paths.get(settings.outboxFile), settings.outboxSize,
+                            settings.outboxBucketMs);
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Could not open outbox " + settings.outboxFile, e);
+                }
+            }
 
-            return new SocketLogLevelCountAppender(name, layout, getFilter(), isIgnoreExceptions(), shutdownTimeout,
-                    sendPeriod, !isBufferedIo() || immediateFlush, manager);
+            List<CountWriter> destinationWriters = new ArrayList<>();
+            List<AbstractSocketManager> socketManagers = new ArrayList<>();
+            for (CountDestination destination : settings.destinations) {
+                AbstractSocketManager destinationManager = createSocketManager(name, destination.protocol,
+                        destination.host, destination.port, destination.connectTimeout,
+                        destination.sslConfiguration, destination.reconnectDelayMillis, destination.immediateFail,
+                        destination.layout, getBufferSize());
+                TransportConfig destinationTransport = destination.nioTransport
+                        && destination.protocol == Protocol.UDP
+                        ? new TransportConfig(destination.host, destination.port, destination.dnsRefreshInterval)
+                        : null;
+                MetricEncoder encoder = destination.directEncoding
+                        ? createPatternEncoder(destination.layout)
+                        : null;
+                CountWriter destinationWriter = createEncodingWriter(destination.layout, encoder,
+                        destination.batchSize, destinationTransport, destinationManager);
+                if (destinationWriter == null) {
+                    destinationWriter = new ManagerCountWriter(new LayoutMetricEncoder(destination.layout),
+                            destinationManager, 0);
+                }
+                destinationWriters.add(new AsyncCountWriter(destinationWriter, settings.shutdownTimeoutMs,
+                        SocketLogLevelCountAppender.LOGGER));
+                socketManagers.add(destinationManager);
+            }
+            if (ownsManager) {
+                socketManagers.add(manager);
+            }
+
+            return new CountPipeline(name, SocketLogLevelCountAppender.LOGGER, settings, outbox, destinationWriters,
+                    socketManagers, manager);
         }
 
         public int getConnectTimeout() {
@@ -226,6 +998,26 @@ public class SocketLogLevelCountAppender extends SocketAppender {
             return asBuilder();
         }
 
+        public B withDestinations(final CountDestination... destinations) {
+            this.destinations = destinations;
+            return asBuilder();
+        }
+
+        public B withAppenderRefs(final AppenderRef... appenderRefs) {
+            this.appenderRefs = appenderRefs;
+            return asBuilder();
+        }
+
+        public B withForwardBudgets(String forwardBudgets) {
+            this.forwardBudgets = forwardBudgets;
+            return asBuilder();
+        }
+
+        public B withSharedCounters(String sharedCounters) {
+            this.sharedCounters = sharedCounters;
+            return asBuilder();
+        }
+
         public B withShutdownTimeout(long shutdownTimeout) {
             this.shutdownTimeout = shutdownTimeout;
             return asBuilder();
@@ -235,6 +1027,161 @@ public class SocketLogLevelCountAppender extends SocketAppender {
             this.sendPeriod = sendPeriod;
             return asBuilder();
         }
+
+        public B withMinSendPeriod(long minSendPeriod) {
+            this.minSendPeriod = minSendPeriod;
+            return asBuilder();
+        }
+
+        public B withMaxSendPeriod(long maxSendPeriod) {
+            this.maxSendPeriod = maxSendPeriod;
+            return asBuilder();
+        }
+
+        public B withTargetCount(long targetCount) {
+            this.targetCount = targetCount;
+            return asBuilder();
+        }
+
+        public B withBurstSlot(long burstSlot) {
+            this.burstSlot = burstSlot;
+            return asBuilder();
+        }
+
+        public B withBatchSize(int batchSize) {
+            this.batchSize = batchSize;
+            return asBuilder();
+        }
+
+        public B withBinaryFormat(boolean binaryFormat) {
+            this.binaryFormat = binaryFormat;
+            return asBuilder();
+        }
+
+        public B withAppenderId(String appenderId) {
+            this.appenderId = appenderId;
+            return asBuilder();
+        }
+
+        public B withCumulative(boolean cumulative) {
+            this.cumulative = cumulative;
+            return asBuilder();
+        }
+
+        public B withCountBytes(boolean countBytes) {
+            this.countBytes = countBytes;
+            return asBuilder();
+        }
+
+        public B withLoggerDepth(int loggerDepth) {
+            this.loggerDepth = loggerDepth;
+            return asBuilder();
+        }
+
+        public B withMaxLoggerPrefixes(int maxLoggerPrefixes) {
+            this.maxLoggerPrefixes = maxLoggerPrefixes;
+            return asBuilder();
+        }
+
+        public B withLoggerPattern(String loggerPattern) {
+            this.loggerPattern = loggerPattern;
+            return asBuilder();
+        }
+
+        public B withThresholds(String thresholds) {
+            this.thresholds = thresholds;
+            return asBuilder();
+        }
+
+        public B withEarlyFlushInterval(long earlyFlushInterval) {
+            this.earlyFlushInterval = earlyFlushInterval;
+            return asBuilder();
+        }
+
+        public B withHeavyHitters(int heavyHitters) {
+            this.heavyHitters = heavyHitters;
+            return asBuilder();
+        }
+
+        public B withHeavyHitterPattern(String heavyHitterPattern) {
+            this.heavyHitterPattern = heavyHitterPattern;
+            return asBuilder();
+        }
+
+        public B withSelfMetricsInterval(long selfMetricsInterval) {
+            this.selfMetricsInterval = selfMetricsInterval;
+            return asBuilder();
+        }
+
+        public B withSelfMetricsPrefix(String selfMetricsPrefix) {
+            this.selfMetricsPrefix = selfMetricsPrefix;
+            return asBuilder();
+        }
+
+        public B withSelfMetricsPattern(String selfMetricsPattern) {
+            this.selfMetricsPattern = selfMetricsPattern;
+            return asBuilder();
+        }
+
+        public B withDirectEncoding(boolean directEncoding) {
+            this.directEncoding = directEncoding;
+            return asBuilder();
+        }
+
+        public B withSharedScheduler(boolean sharedScheduler) {
+            this.sharedScheduler = sharedScheduler;
+            return asBuilder();
+        }
+
+        public B withLazyFlush(boolean lazyFlush) {
+            this.lazyFlush = lazyFlush;
+            return asBuilder();
+        }
+
+        public B withNioTransport(boolean nioTransport) {
+            this.nioTransport = nioTransport;
+            return asBuilder();
+        }
+
+        public B withDnsRefreshInterval(long dnsRefreshInterval) {
+            this.dnsRefreshInterval = dnsRefreshInterval;
+            return asBuilder();
+        }
+
+        public B withJmx(boolean jmx) {
+            this.jmx = jmx;
+            return asBuilder();
+        }
+
+        public B withMetricsPort(int metricsPort) {
+            this.metricsPort = metricsPort;
+            return asBuilder();
+        }
+
+        public B withMetricsHost(String metricsHost) {
+            this.metricsHost = metricsHost;
+            return asBuilder();
+        }
+
+        public B withMetricsName(String metricsName) {
+            this.metricsName = metricsName;
+            return asBuilder();
+        }
+
+        public B withOutboxFile(String outboxFile) {
+            this.outboxFile = outboxFile;
+            return asBuilder();
+        }
+
+        public B withOutboxSize(int outboxSize) {
+            this.outboxSize = outboxSize;
+            return asBuilder();
+        }
+
+        public B withOutboxBucket(long outboxBucket) {
+            this.outboxBucket = outboxBucket;
+            return asBuilder();
+        }
     }
 
 }
@@ -0,0 +1,47 @@
+package ru.yandex.money.logging.log4j.appender.count;
+
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+
+public class AdaptivePeriodTest {
+
+    @Test(description = "Без событий период увеличивается вдвое до максимума")
+    public void test_quiet() {
+        AdaptivePeriod period = new AdaptivePeriod(100, 10, 300, 1000);
+        assertEquals(period.next(0, 0), 200L);
+        assertEquals(period.next(0, 0), 300L);
+        assertEquals(period.next(0, 0), 300L);
+    }
+
+    @Test(description = "При большом количестве событий период уменьшается не более чем вдвое за отправку")
+    public void test_busy() {
+        AdaptivePeriod period = new AdaptivePeriod(100, 10, 300, 1000);
+        assertEquals(period.next(100_000, 0), 50L);
+        assertEquals(period.next(10_000, 0), 25L);
+        assertEquals(period.next(10_000, 0), 12L);
+        assertEquals(period.next(10_000, 0), 10L);
+    }
+
+    @Test(description = "Количество событий около желаемого не меняет период")
+    public void test_steady() {
+        AdaptivePeriod period = new AdaptivePeriod(100, 10, 300, 1000);
+        assertEquals(period.next(600, 0), 100L);
+        assertEquals(period.next(1900, 0), 100L);
+        assertEquals(period.next(400, 0), 200L);
+        assertEquals(period.next(3000, 0), 100L);
+    }
+
+    @Test(description = "Медленная запись увеличивает период даже при большом количестве событий")
+    public void test_slowWrite() {
+        AdaptivePeriod period = new AdaptivePeriod(100, 10, 300, 1000);
+        assertEquals(period.next(100_000, 40), 160L);
+        assertEquals(period.next(1000, 100), 300L);
+        assertEquals(period.next(1000, 10), 300L);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void test_illegalBounds() {
+        new AdaptivePeriod(100, 200, 300, 1000);
+    }
+}
@@ -0,0 +1,134 @@
+package ru.yandex.money.logging.log4j.appender.count;
+
+import org.apache.logging.log4j.Level;
+import org.testng.annotations.Test;
+
+import javax.annotation.Nonnull;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class CountFrameDecoderTest {
+
+    @Test(description = "Кадр содержит идентификаторы, время и количество по уровням")
+    public void test_roundTrip() {
+        List<ByteBuffer> frames = new ArrayList<>();
+        BinaryFrameCountWriter writer = new BinaryFrameCountWriter("app", 42L, 0, collect(frames));
+        writer.write(metric(Level.INFO, 3, 1000L));
+        writer.write(metric(Level.ERROR, 300, 1000L));
+        writer.endBatch();
+
+        CountFrameDecoder decoder = new CountFrameDecoder();
+        assertEquals(frames.size(), 1);
+        CountFrame frame = decoder.decode(frames.get(0));
+        assertEquals(frame.getAppenderId(), "app");
+        assertEquals(frame.getStreamId(), 42L);
+        assertEquals(frame.getSequence(), 0L);
+        assertEquals(frame.getTimestamp(), 1000L);
+        assertEquals(frame.size(), 2);
+        assertEquals(frame.getCount(Level.INFO), 3L);
+        assertEquals(frame.getCount(Level.ERROR), 300L);
+        assertEquals(frame.getCount(Level.WARN), 0L);
+        assertFalse(frames.get(0).hasRemaining());
+    }
+
+    @Test(description = "Пропущенные номера кадров учитываются как потерянные, перезапуск потока - нет")
+    public void test_gaps() {
+        List<ByteBuffer> frames = new ArrayList<>();
+        BinaryFrameCountWriter writer = new BinaryFrameCountWriter("app", 1L, 0, collect(frames));
+        for (int i = 0; i < 5; i++) {
+            writer.write(metric(Level.INFO, 1, 1000L + i));
+            writer.endBatch();
+        }
+        // отправка без событий тоже отправляет кадр
+        writer.endBatch();
+        BinaryFrameCountWriter restarted = new BinaryFrameCountWriter("app", 2L, 0, collect(frames));
+        restarted.endBatch();
+        assertEquals(frames.size(), 7);
+
+        CountFrameDecoder decoder = new CountFrameDecoder();
+        assertEquals(decoder.decode(frames.get(0)).getLostBefore(), 0L);
+        assertEquals(decoder.decode(frames.get(3)).getLostBefore(), 2L);
+        CountFrame late = decoder.decode(frames.get(2));
+        assertTrue(late.isLate());
+        CountFrame empty = decoder.decode(frames.get(5));
+        assertEquals(empty.getLostBefore(), 1L);
+        assertEquals(empty.size(), 0);
+        assertEquals(decoder.decode(frames.get(6)).getLostBefore(), 0L);
+
+        assertEquals(decoder.getFrames(), 5L);
+        assertEquals(decoder.getLostFrames(), 3L);
+        assertEquals(decoder.getLateFrames(), 1L);
+    }
+
+    @Test(description = "Метрики с разным временем и не помещающиеся в maxFrameSize идут разными кадрами")
+    public void test_split() {
+        List<ByteBuffer> frames = new ArrayList<>();
+        BinaryFrameCountWriter writer = new BinaryFrameCountWriter("app", 1L, 16, collect(frames));
+        writer.write(metric(Level.WARN, 1, 1000L));
+        writer.write(metric(Level.INFO, 2, 2000L));
+        writer.write(metric(Level.ERROR, 3, 2000L));
+        writer.endBatch();
+
+        CountFrameDecoder decoder = new CountFrameDecoder();
+        assertEquals(frames.size(), 3);
+        CountFrame first = decoder.decode(frames.get(0));
+        assertEquals(first.getTimestamp(), 1000L);
+        assertEquals(first.getCount(Level.WARN), 1L);
+        CountFrame second = decoder.decode(frames.get(1));
+        assertEquals(second.getTimestamp(), 2000L);
+        assertEquals(second.getCount(Level.INFO), 2L);
+        CountFrame third = decoder.decode(frames.get(2));
+        assertEquals(third.getTimestamp(), 2000L);
+        assertEquals(third.getCount(Level.ERROR), 3L);
+        assertEquals(decoder.getLostFrames(), 0L);
+    }
+
+    @Test(description = "Неполный кадр не разбирается, позиция буфера не меняется")
+    public void test_incomplete() {
+        List<ByteBuffer> frames = new ArrayList<>();
+        BinaryFrameCountWriter writer = new BinaryFrameCountWriter("app", 1L, 0, collect(frames));
+        writer.write(metric(Level.INFO, 1, 1000L));
+        writer.endBatch();
+        ByteBuffer frame = frames.get(0);
+        ByteBuffer partial = ByteBuffer.wrap(frame.array(), frame.position(), frame.remaining() - 1);
+
+        CountFrameDecoder decoder = new CountFrameDecoder();
+        int position = partial.position();
+        assertNull(decoder.decode(partial));
+        assertEquals(partial.position(), position);
+        assertEquals(decoder.decode(frame).getCount(Level.INFO), 1L);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void test_notFrame() {
+        new CountFrameDecoder().decode(ByteBuffer.wrap("\u0003log.INFO.1|".getBytes()));
+    }
+
+    /**
+     * Сохраняет копии кадров, так как буфер записи переиспользуется
+     */
+    @Nonnull
+    private static Consumer<ByteBuffer> collect(@Nonnull List<ByteBuffer> frames) {
+        return frame -> {
+            ByteBuffer copy = ByteBuffer.allocate(frame.remaining());
+            copy.put(frame).flip();
+            frames.add(copy);
+        };
+    }
+
+    @Nonnull
+    private static LevelMetric metric(@Nonnull Level level, long count, long timestamp) {
+        LevelMetric metric = new LevelMetric();
+        metric.level = level;
+        metric.count = count;
+        metric.timestamp = timestamp;
+        return metric;
+    }
+}
@@ -0,0 +1,115 @@
+package ru.yandex.money.logging.log4j.appender.count;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.status.StatusLogger;
+import org.testng.annotations.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class CountOutboxTest {
+
+    private static final int SIZE = CountOutbox.HEADER_SIZE + 3 * CountOutbox.RECORD_SIZE;
+
+    @Test(description = "Метрики одного уровня в одном интервале объединяются, записи переживают переоткрытие файла")
+    public void test_coalesceAndReopen() throws Exception {
+        Path file = Files.createTempDirectory("outbox").resolve("outbox.bin");
+        try (CountOutbox outbox = CountOutbox.open(file, SIZE, 1000)) {
+            outbox.add(metric(Level.ERROR, 2, 1100));
+            outbox.add(metric(Level.WARN, 1, 1200));
+            outbox.add(metric(Level.ERROR, 3, 1900));
+            outbox.add(metric(Level.ERROR, 4, 2100));
+            assertEquals(outbox.size(), 3);
+        }
+        try (CountOutbox outbox = CountOutbox.open(file, SIZE, 1000)) {
+            assertEquals(read(outbox), "ERROR=5@1000, WARN=1@1000, ERROR=4@2000");
+            outbox.remove(1);
+        }
+        // при изменении размера записи переносятся в новое кольцо
+        try (CountOutbox outbox = CountOutbox.open(file, SIZE + CountOutbox.RECORD_SIZE, 1000)) {
+            assertEquals(read(outbox), "WARN=1@1000, ERROR=4@2000");
+        }
+    }
+
+    @Test(description = "При заполнении вытесняются самые старые записи")
+    public void test_evictOldest() throws Exception {
+        Path file = Files.createTempDirectory("outbox").resolve("outbox.bin");
+        try (CountOutbox outbox = CountOutbox.open(file, SIZE, 1000)) {
+            for (int i = 1; i <= 5; i++) {
+                outbox.add(metric(Level.INFO, i, i * 1000));
+            }
+            assertEquals(outbox.evicted(), 2L);
+            assertEquals(read(outbox), "INFO=3@3000, INFO=4@4000, INFO=5@5000");
+        }
+    }
+
+    @Test(description = "Метрики неуспешной отправки сохраняются и отправляются перед метриками следующей")
+    public void test_replay() throws Exception {
+        Path file = Files.createTempDirectory("outbox").resolve("outbox.bin");
+        List<String> sent = new ArrayList<>();
+        boolean[] fail = {true};
+        CountWriter socket = new CountWriter() {
+            private final List<String> batch = new ArrayList<>();
+
+            @Override
+            public void write(LevelMetric metric) {
+                batch.add(metric.level + "=" + metric.count);
+            }
+
+            @Override
+            public void endBatch() {
+                try {
+                    if (fail[0]) {
+                        throw new IllegalStateException("receiver is down");
+                    }
+                    sent.addAll(batch);
+                } finally {
+                    batch.clear();
+                }
+            }
+        };
+        OutboxCountWriter writer = new OutboxCountWriter(socket, CountOutbox.open(file, SIZE, 60_000),
+                StatusLogger.getLogger());
+
+        writer.write(metric(Level.ERROR, 2, 1000));
+        writer.write(metric(Level.INFO, 5, 1000));
+        writer.endBatch();
+        writer.write(metric(Level.ERROR, 1, 2000));
+        writer.endBatch();
+        assertTrue(sent.isEmpty());
+
+        fail[0] = false;
+        writer.write(metric(Level.WARN, 7, 3000));
+        writer.endBatch();
+        assertEquals(sent.toString(), "[ERROR=3, INFO=5, WARN=7]");
+
+        writer.endBatch();
+        assertEquals(sent.size(), 3);
+        writer.close();
+    }
+
+    private static LevelMetric metric(Level level, long count, long timestamp) {
+        LevelMetric metric = new LevelMetric();
+        metric.level = level;
+        metric.count = count;
+        metric.peak = count;
+        metric.min = count;
+        metric.timestamp = timestamp;
+        return metric;
+    }
+
+    private static String read(CountOutbox outbox) {
+        StringBuilder result = new StringBuilder();
+        LevelMetric metric = new LevelMetric();
+        for (int i = 0; i < outbox.size(); i++) {
+            outbox.read(i, metric);
+            result.append(i > 0 ? ", " : "").append(metric).append('@').append(metric.timestamp);
+        }
+        return result.toString();
+    }
+}
@@ -0,0 +1,74 @@
+package ru.yandex.money.logging.log4j.appender.count;
+
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+
+public class HeavyHittersTest {
+
+    @Test
+    public void test_slotsFor() {
+        assertEquals(HeavyHitters.slotsFor(0), 4);
+        assertEquals(HeavyHitters.slotsFor(1), 8);
+        assertEquals(HeavyHitters.slotsFor(3), 32);
+        assertEquals(HeavyHitters.slotsFor(4), 32);
+        assertEquals(HeavyHitters.slotsFor(5), 64);
+    }
+
+    @Test(description = "Самые частые ключи выбираются в порядке убывания количества")
+    public void test_top() {
+        HeavyHitters hitters = new HeavyHitters(HeavyHitters.slotsFor(2));
+        for (int i = 0; i < 100; i++) {
+            hitters.add("frequent");
+        }
+        for (int i = 0; i < 50; i++) {
+            hitters.add("often");
+        }
+        for (int i = 0; i < 3; i++) {
+            hitters.add("rare");
+        }
+
+        String[] keys = new String[2];
+        long[] counts = new long[2];
+        assertEquals(hitters.top(keys, counts), 2);
+        assertEquals(keys[0], "frequent");
+        assertEquals(counts[0], 100L);
+        assertEquals(keys[1], "often");
+        assertEquals(counts[1], 50L);
+    }
+
+    @Test(description = "Редкие ключи вытесняются, частые остаются в таблице")
+    public void test_eviction() {
+        HeavyHitters hitters = new HeavyHitters(16);
+        for (int round = 0; round < 100; round++) {
+            hitters.add("frequent");
+            for (int i = 0; i < 10; i++) {
+                hitters.add("rare-" + round + "-" + i);
+            }
+        }
+
+        String[] keys = new String[1];
+        long[] counts = new long[1];
+        assertEquals(hitters.top(keys, counts), 1);
+        assertEquals(keys[0], "frequent");
+        assertEquals(counts[0] >= 100L, true);
+    }
+
+    @Test(description = "Счетчики обнуляются при каждой выборке")
+    public void test_resetPerPeriod() {
+        HeavyHitters hitters = new HeavyHitters(8);
+        hitters.add("key");
+        hitters.add("key");
+
+        String[] keys = new String[3];
+        long[] counts = new long[3];
+        assertEquals(hitters.top(keys, counts), 1);
+        assertEquals(counts[0], 2L);
+        assertEquals(hitters.top(keys, counts), 0);
+
+        hitters.add("key");
+        assertEquals(hitters.top(keys, counts), 1);
+        assertEquals(keys[0], "key");
+        assertEquals(counts[0], 1L);
+    }
+}
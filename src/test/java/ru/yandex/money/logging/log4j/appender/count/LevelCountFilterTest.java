@@ -0,0 +1,68 @@
+package ru.yandex.money.logging.log4j.appender.count;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.Logger;
+import org.apache.logging.log4j.core.LoggerContext;
+import org.apache.logging.log4j.core.config.DefaultConfiguration;
+import org.apache.logging.log4j.core.filter.AbstractFilterable;
+import org.apache.logging.log4j.core.layout.PatternLayout;
+import org.apache.logging.log4j.core.net.Protocol;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+
+public class LevelCountFilterTest {
+
+    @Test(description = "Фильтр конфигурации считает события включенных уровней в потоке логирования, без LogEvent")
+    public void test_countBeforeLogEvent() throws Exception {
+        SocketLogLevelCountAppender appender = SocketLogLevelCountAppender.createBuilder()
+                .withName("COUNT")
+                .withHost("localhost")
+                .withPort(11000)
+                .withProtocol(Protocol.UDP)
+                .withSendPeriod(60_000)
+                .withLayout(PatternLayout.newBuilder()
+                        .withPattern("log.%level.%X{count}|")
+                        .build())
+                .build();
+        DefaultConfiguration configuration = new DefaultConfiguration();
+        configuration.addAppender(appender);
+        LevelCountFilter filter = LevelCountFilter.newBuilder()
+                .withAppender("COUNT")
+                .withConfiguration(configuration)
+                .build();
+        ((AbstractFilterable) configuration).addFilter(filter);
+        LoggerContext context = new LoggerContext("LevelCountFilterTest");
+        context.start(configuration);
+        try {
+            Logger logger = context.getLogger("test");
+            logger.setLevel(Level.WARN);
+
+            logger.error("error");
+            logger.warn("warn {}", 1);
+            logger.warn("warn {} {} {}", 1, 2, 3);
+            logger.info("disabled");
+            logger.isErrorEnabled();
+            logger.isEnabled(Level.ERROR);
+
+            LevelCountStatistics statistics = appender.getStatistics();
+            assertEquals(statistics.getCurrentCount(Level.ERROR), 1L);
+            assertEquals(statistics.getCurrentCount(Level.WARN), 2L);
+            assertEquals(statistics.getCurrentCount(Level.INFO), 0L);
+
+            // событие, дошедшее до аппендера, повторно не учитывается
+            appender.append(new CountLogEvent(metric(Level.ERROR)));
+            assertEquals(statistics.getCurrentCount(Level.ERROR), 1L);
+        } finally {
+            context.stop(1, TimeUnit.SECONDS);
+        }
+    }
+
+    private static LevelMetric metric(Level level) {
+        LevelMetric metric = new LevelMetric();
+        metric.level = level;
+        return metric;
+    }
+}
@@ -0,0 +1,166 @@
+package ru.yandex.money.logging.log4j.appender.count;
+
+import org.apache.logging.log4j.Level;
+import org.testng.annotations.Test;
+
+import java.util.Collections;
+import java.util.Map;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertThrows;
+import static org.testng.Assert.assertTrue;
+
+public class LevelCounterTest {
+
+    @Test(description = "Всплеск внутри периода отправки виден по максимальному темпу слота")
+    public void test_burst() throws Exception {
+        long slotMs = 20;
+        LevelCounter counter = new LevelCounter(Level.ERROR, CountSettings.newBuilder()
+                .withSendPeriodMs(200)
+                .withBurstSlotMs(slotMs)
+                .build());
+        LevelMetric metric = new LevelMetric();
+
+        for (int i = 0; i < 100; i++) {
+            counter.increment();
+        }
+        Thread.sleep(150);
+        counter.increment();
+        counter.snapshot(metric, System.currentTimeMillis());
+
+        assertEquals(metric.count, 101L);
+        // всплеск мог попасть на границу двух слотов
+        assertTrue(metric.peak >= 50 * 1000 / slotMs, "peak: " + metric.peak);
+        assertEquals(metric.min, 0L);
+
+        counter.increment();
+        counter.snapshot(metric, System.currentTimeMillis());
+        assertEquals(metric.count, 1L);
+    }
+
+    @Test(description = "Без слотов максимальный и минимальный темп равны среднему")
+    public void test_noSlots() throws Exception {
+        LevelCounter counter = new LevelCounter(Level.INFO);
+        LevelMetric metric = new LevelMetric();
+        long startMs = System.currentTimeMillis();
+        for (int i = 0; i < 10; i++) {
+            counter.increment();
+        }
+        counter.snapshot(metric, startMs + 5000);
+
+        assertEquals(metric.count, 10L);
+        assertTrue(metric.peak >= 1 && metric.peak <= 2, "peak: " + metric.peak);
+        assertEquals(metric.min, metric.peak);
+    }
+
+    @Test(description = "Превышение порога сообщается один раз до следующей отправки")
+    public void test_threshold() {
+        LevelCounter counter = new LevelCounter(Level.ERROR, CountSettings.newBuilder()
+                .withThresholds(Collections.singletonMap("ERROR", 3L))
+                .build());
+        LevelMetric metric = new LevelMetric();
+
+        assertFalse(counter.increment());
+        assertFalse(counter.increment());
+        assertTrue(counter.increment());
+        assertFalse(counter.increment());
+        assertTrue(counter.takeUrgent());
+        assertFalse(counter.takeUrgent());
+
+        counter.snapshot(metric, System.currentTimeMillis());
+        assertEquals(metric.count, 4L);
+        assertFalse(counter.increment());
+        assertFalse(counter.increment());
+        assertTrue(counter.increment());
+    }
+
+    @Test
+    public void test_parseThresholds() {
+        Map<String, Long> thresholds = LevelCounters.parseThresholds(" error>=100, FATAL >= 1");
+        assertEquals(thresholds.get("ERROR"), Long.valueOf(100));
+        assertEquals(thresholds.get("FATAL"), Long.valueOf(1));
+        assertTrue(LevelCounters.parseThresholds(null).isEmpty());
+        assertThrows(IllegalArgumentException.class, () -> LevelCounters.parseThresholds("ERROR=100"));
+        assertThrows(IllegalArgumentException.class, () -> LevelCounters.parseThresholds("ERROR>=0"));
+        assertThrows(IllegalArgumentException.class, () -> LevelCounters.parseThresholds("ERROR>=many"));
+    }
+
+    @Test(description = "События сверх бюджета не пересылаются и учитываются как подавленные до следующей отправки")
+    public void test_budget() {
+        LevelCounter counter = new LevelCounter(Level.ERROR, CountSettings.newBuilder()
+                .withForwardBudgets(Collections.singletonMap("ERROR", 2L))
+                .build());
+        LevelMetric metric = new LevelMetric();
+
+        for (int i = 0; i < 5; i++) {
+            counter.increment();
+            assertEquals(counter.tryForward(), i < 2);
+        }
+        counter.snapshot(metric, System.currentTimeMillis());
+        assertEquals(metric.count, 5L);
+        assertEquals(metric.suppressed, 3L);
+
+        // досрочная отправка не возвращает бюджет
+        counter.increment();
+        assertFalse(counter.tryForward());
+        counter.snapshot(metric, System.currentTimeMillis());
+        assertEquals(metric.count, 1L);
+        assertEquals(metric.suppressed, 1L);
+
+        counter.resetBudget();
+        counter.increment();
+        assertTrue(counter.tryForward());
+        counter.snapshot(metric, System.currentTimeMillis());
+        assertEquals(metric.count, 1L);
+        assertEquals(metric.suppressed, 0L);
+    }
+
+    @Test
+    public void test_budgetWithSlots() {
+        LevelCounter counter = new LevelCounter(Level.ERROR, CountSettings.newBuilder()
+                .withSendPeriodMs(100)
+                .withBurstSlotMs(1)
+                .withForwardBudgets(Collections.singletonMap("ERROR", 1000L))
+                .build());
+        int forwarded = 0;
+        for (int i = 0; i < 10_000; i++) {
+            counter.increment();
+            if (counter.tryForward()) {
+                forwarded++;
+            }
+        }
+        // исчерпание бюджета проверяется выборочно, в среднем раз в 32 события
+        assertTrue(forwarded >= 1000 && forwarded < 1500, "forwarded: " + forwarded);
+    }
+
+    @Test
+    public void test_noBudget() {
+        LevelCounter counter = new LevelCounter(Level.ERROR);
+        LevelMetric metric = new LevelMetric();
+        for (int i = 0; i < 100; i++) {
+            counter.increment();
+            assertTrue(counter.tryForward());
+        }
+        counter.snapshot(metric, System.currentTimeMillis());
+        assertEquals(metric.suppressed, 0L);
+    }
+
+    @Test
+    public void test_parseBudgets() {
+        Map<String, Long> budgets = LevelCounters.parseBudgets(" error=100, DEBUG = 0");
+        assertEquals(budgets.get("ERROR"), Long.valueOf(100));
+        assertEquals(budgets.get("DEBUG"), Long.valueOf(0));
+        assertTrue(LevelCounters.parseBudgets("").isEmpty());
+        assertThrows(IllegalArgumentException.class, () -> LevelCounters.parseBudgets("ERROR>=100"));
+        assertThrows(IllegalArgumentException.class, () -> LevelCounters.parseBudgets("ERROR=-1"));
+        assertThrows(IllegalArgumentException.class, () -> LevelCounters.parseBudgets("=1"));
+    }
+
+    @Test
+    public void test_slotCount() {
+        assertEquals(LevelCounters.slotCountFor(1000, 100), 16);
+        assertEquals(LevelCounters.slotCountFor(10, 5), 4);
+        assertEquals(LevelCounters.slotCountFor(10000, 100), 128);
+    }
+}
@@ -0,0 +1,63 @@
+package ru.yandex.money.logging.log4j.appender.count;
+
+import org.apache.logging.log4j.Level;
+import org.testng.annotations.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+public class LoggerPrefixCountersTest {
+
+    @Test(description = "События учитываются в префиксе имени логгера заданной глубины")
+    public void test_depth() {
+        Map<String, Long> values = new HashMap<>();
+        LoggerPrefixCounters prefixes = new LoggerPrefixCounters(collect(values), 3, 100);
+
+        prefixes.increment(Level.INFO, "ru.yandex.money.payments.Processor");
+        prefixes.increment(Level.INFO, "ru.yandex.money.payments.Refunds");
+        prefixes.increment(Level.ERROR, "ru.yandex.money.Gateway");
+        prefixes.increment(Level.INFO, "ru.yandex");
+        prefixes.increment(Level.INFO, "");
+        prefixes.increment(Level.INFO, null);
+        prefixes.write(System.currentTimeMillis());
+
+        assertEquals(values.get("INFO ru.yandex.money").longValue(), 2L);
+        assertEquals(values.get("ERROR ru.yandex.money").longValue(), 1L);
+        assertEquals(values.get("INFO ru.yandex").longValue(), 1L);
+        assertEquals(values.get("INFO " + LoggerPrefixCounters.ROOT).longValue(), 1L);
+        assertEquals(values.get("INFO " + LoggerPrefixCounters.OTHER).longValue(), 1L);
+        assertEquals(values.size(), 5, "values: " + values);
+
+        values.clear();
+        prefixes.increment(Level.INFO, "ru.yandex.money.payments.Processor");
+        prefixes.write(System.currentTimeMillis());
+        assertEquals(values.get("INFO ru.yandex.money").longValue(), 1L);
+        assertEquals(values.size(), 1, "values: " + values);
+    }
+
+    @Test(description = "Префиксы сверх лимита учитываются в other, поиск существующих не создает узлов")
+    public void test_maxNodes() {
+        Map<String, Long> values = new HashMap<>();
+        LoggerPrefixCounters prefixes = new LoggerPrefixCounters(collect(values), 2, 3);
+
+        for (int i = 0; i < 100; i++) {
+            prefixes.increment(Level.WARN, "com.example" + i + ".Service");
+        }
+        assertEquals(prefixes.size(), 3);
+        assertSame(prefixes.find("com.example0.Service"), prefixes.find("com.example0.Other"));
+        prefixes.write(System.currentTimeMillis());
+
+        assertEquals(values.get("WARN com.example0").longValue(), 1L);
+        assertEquals(values.get("WARN com.example1").longValue(), 1L);
+        assertEquals(values.get("WARN " + LoggerPrefixCounters.OTHER).longValue(), 98L);
+        assertTrue(!values.containsKey("WARN com"), "values: " + values);
+    }
+
+    private static CountWriter collect(Map<String, Long> values) {
+        return metric -> values.merge(metric.level + " " + metric.logger, metric.count, Long::sum);
+    }
+}
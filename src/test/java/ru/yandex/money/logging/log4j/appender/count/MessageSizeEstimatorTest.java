@@ -0,0 +1,54 @@
+package ru.yandex.money.logging.log4j.appender.count;
+
+import org.apache.logging.log4j.message.Message;
+import org.apache.logging.log4j.message.ObjectMessage;
+import org.apache.logging.log4j.message.ParameterizedMessage;
+import org.apache.logging.log4j.message.ReusableMessageFactory;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+
+public class MessageSizeEstimatorTest {
+
+    @Test(description = "Строки и целые числа в параметрах оцениваются точно, без форматирования")
+    public void test_exact() {
+        assertEquals(MessageSizeEstimator.estimate(new SimpleMessage("simple")), 6L);
+        assertExact(new ParameterizedMessage("user {} paid {} rub", "alice", 1500L));
+        assertExact(new ParameterizedMessage("balance {}", -42));
+        assertExact(new ParameterizedMessage("value {}", (Object) null));
+        assertExact(ReusableMessageFactory.INSTANCE.newMessage("user {} paid {} rub", "bob", 7));
+        assertExact(new ObjectMessage(new StringBuilder("formattable")));
+    }
+
+    @Test(description = "Исключение последним параметром и лишние параметры не уменьшают оценку")
+    public void test_parametersWithoutPlaceholder() {
+        RuntimeException thrown = new RuntimeException("failed");
+        assertExact(new ParameterizedMessage("payment {} failed", "42", thrown));
+        assertExact(ReusableMessageFactory.INSTANCE.newMessage("payment {} failed", "42", thrown));
+        assertExact(new ParameterizedMessage("no placeholders", "extra"));
+        assertEquals(MessageSizeEstimator.placeholders("{} \\{} {}{"), 2);
+    }
+
+    @Test(description = "Параметры других типов оцениваются фиксированной длиной")
+    public void test_otherParameter() {
+        assertEquals(MessageSizeEstimator.estimate(new ParameterizedMessage("at {}", new Object())),
+                (long) "at ".length() + MessageSizeEstimator.PARAMETER_LENGTH);
+    }
+
+    @Test(description = "Объем исключения растет с глубиной цепочки причин")
+    public void test_throwable() {
+        IllegalStateException cause = new IllegalStateException("cause");
+        RuntimeException thrown = new RuntimeException("top", cause);
+        long top = RuntimeException.class.getName().length() + "top".length()
+                + MessageSizeEstimator.TOP_FRAMES * MessageSizeEstimator.FRAME_LENGTH;
+        long causeSize = IllegalStateException.class.getName().length() + "cause".length()
+                + MessageSizeEstimator.CAUSE_FRAMES * MessageSizeEstimator.FRAME_LENGTH;
+        assertEquals(MessageSizeEstimator.estimate(thrown), top + causeSize);
+    }
+
+    private static void assertExact(Message message) {
+        assertEquals(MessageSizeEstimator.estimate(message), (long) message.getFormattedMessage().length(),
+                message.getFormattedMessage());
+    }
+}
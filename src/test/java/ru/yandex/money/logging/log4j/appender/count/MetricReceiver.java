@@ -0,0 +1,188 @@
+package ru.yandex.money.logging.log4j.appender.count;
+
+import org.apache.logging.log4j.core.net.Protocol;
+
+import javax.annotation.Nonnull;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Прием метрик аппендера по UDP или TCP для тестов и нагрузочного стенда.
+ * <p>
+ * Принятые данные разбиваются на строки по переводу строки, для UDP концом строки является и конец датаграммы.
+ * Каждая непустая строка передается в {@code lineConsumer} в потоке приема.
+ */
+public class MetricReceiver {
+    private static final int MAX_DATAGRAM_SIZE = 65536;
+
+    @Nonnull
+    private final Protocol protocol;
+    @Nonnull
+    private final InetAddress host;
+    private final int port;
+    @Nonnull
+    private final Consumer<String> lineConsumer;
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    private final LongAdder packets = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final List<Socket> connections = new CopyOnWriteArrayList<>();
+    private final List<Thread> threads = new CopyOnWriteArrayList<>();
+    private DatagramSocket datagramSocket;
+    private ServerSocket serverSocket;
+
+    /**
+     * @param port порт приема, 0 - любой свободный, см. {@link #getPort()}
+     */
+    public MetricReceiver(@Nonnull Protocol protocol, @Nonnull InetAddress host, int port,
+                          @Nonnull Consumer<String> lineConsumer) {
+        if (protocol != Protocol.UDP && protocol != Protocol.TCP) {
+            throw new IllegalArgumentException("Unsupported protocol: " + protocol);
+        }
+        this.protocol = protocol;
+        this.host = host;
+        this.port = port;
+        this.lineConsumer = lineConsumer;
+    }
+
+    public void start() {
+        try {
+            if (protocol == Protocol.UDP) {
+                datagramSocket = new DatagramSocket(port, host);
+                startThread(this::receiveDatagrams, "metric-receiver-udp");
+            } else {
+                serverSocket = new ServerSocket(port, 50, host);
+                startThread(this::acceptConnections, "metric-receiver-tcp");
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Порт, на котором принимаются метрики
+     */
+    public int getPort() {
+        return protocol == Protocol.UDP ? datagramSocket.getLocalPort() : serverSocket.getLocalPort();
+    }
+
+    /**
+     * Количество принятых датаграмм (UDP) или прочитанных из соединений фрагментов (TCP)
+     */
+    public long getPackets() {
+        return packets.sum();
+    }
+
+    /**
+     * Количество принятых байт
+     */
+    public long getBytes() {
+        return bytes.sum();
+    }
+
+    private void startThread(@Nonnull Runnable task, @Nonnull String name) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        threads.add(thread);
+        thread.start();
+    }
+
+    private void receiveDatagrams() {
+        byte[] buffer = new byte[MAX_DATAGRAM_SIZE];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        while (!closed.get()) {
+            try {
+                packet.setLength(buffer.length);
+                datagramSocket.receive(packet);
+            } catch (IOException e) {
+                if (closed.get()) {
+                    return;
+                }
+                throw new RuntimeException(e);
+            }
+            packets.increment();
+            bytes.add(packet.getLength());
+            String message = new String(packet.getData(), packet.getOffset(), packet.getLength(),
+                    StandardCharsets.UTF_8);
+            for (String line : message.split("\n")) {
+                if (!line.isEmpty()) {
+                    lineConsumer.accept(line);
+                }
+            }
+        }
+    }
+
+    private void acceptConnections() {
+        while (!closed.get()) {
+            Socket connection;
+            try {
+                connection = serverSocket.accept();
+            } catch (IOException e) {
+                if (closed.get()) {
+                    return;
+                }
+                throw new RuntimeException(e);
+            }
+            connections.add(connection);
+            startThread(() -> receiveLines(connection), "metric-receiver-tcp-connection");
+        }
+    }
+
+    private void receiveLines(@Nonnull Socket connection) {
+        byte[] buffer = new byte[8192];
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        try (InputStream in = connection.getInputStream()) {
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                packets.increment();
+                bytes.add(read);
+                for (int i = 0; i < read; i++) {
+                    if (buffer[i] != '\n') {
+                        line.write(buffer[i]);
+                    } else if (line.size() > 0) {
+                        lineConsumer.accept(new String(line.toByteArray(), StandardCharsets.UTF_8));
+                        line.reset();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            if (!closed.get()) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    public void stop() {
+        closed.set(true);
+        try {
+            if (datagramSocket != null) {
+                datagramSocket.close();
+            }
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+            for (Socket connection : connections) {
+                connection.close();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+}
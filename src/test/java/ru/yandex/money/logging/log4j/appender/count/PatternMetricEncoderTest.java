@@ -0,0 +1,60 @@
+package ru.yandex.money.logging.log4j.appender.count;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.layout.PatternLayout;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+
+public class PatternMetricEncoderTest {
+
+    @DataProvider
+    public static Object[][] supportedPatterns() {
+        return new Object[][]{
+                {"log.%level.%X{count}|"},
+                {"kassa.logs.%p:%mdc{count}|c%n"},
+                {"%%%p\\t%MDC{count}%X{unknown}"},
+                {"%X{count}"},
+        };
+    }
+
+    @Test(dataProvider = "supportedPatterns")
+    public void test_sameAsPatternLayout(String pattern) {
+        PatternLayout layout = PatternLayout.newBuilder().withPattern(pattern).build();
+        PatternMetricEncoder encoder = PatternMetricEncoder.compile(layout);
+        assertNotNull(encoder, pattern);
+
+        for (long count : new long[]{0L, 7L, -15L, 1234567890123L, Long.MAX_VALUE, Long.MIN_VALUE}) {
+            LevelMetric metric = new LevelMetric();
+            metric.level = Level.WARN;
+            metric.count = count;
+            ByteBuffer buffer = ByteBuffer.allocate(256);
+            encoder.encode(metric, buffer);
+
+            assertEquals(new String(Arrays.copyOf(buffer.array(), buffer.position())),
+                    new String(layout.toByteArray(new CountLogEvent(metric))));
+        }
+    }
+
+    @DataProvider
+    public static Object[][] unsupportedPatterns() {
+        return new Object[][]{
+                {"%-5level:%X{count}"},
+                {"%d %level:%X{count}"},
+                {"%level{length=1}:%X{count}"},
+                {"%X{count,level}"},
+                {"%X{count"},
+        };
+    }
+
+    @Test(dataProvider = "unsupportedPatterns")
+    public void test_unsupported(String pattern) {
+        assertNull(PatternMetricEncoder.compile(PatternLayout.newBuilder().withPattern(pattern).build()));
+    }
+}
@@ -0,0 +1,118 @@
+package ru.yandex.money.logging.log4j.appender.count;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.status.StatusLogger;
+import org.testng.annotations.Test;
+
+import javax.annotation.Nonnull;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class SelfMetricsTest {
+
+    @Test(description = "Ошибка записи метрики учитывает ошибку и события уровня как потерянные")
+    public void test_writeFailure() throws Exception {
+        LevelCounters counters = new LevelCounters();
+        for (int i = 0; i < 3; i++) {
+            counters.get(Level.INFO).increment();
+        }
+        Map<String, Long> values = new HashMap<>();
+        CountSender sender = new CountSender(counters, StatusLogger.getLogger(), metric -> {
+            throw new IllegalStateException("receiver is down");
+        }, null, new SelfMetrics(collect(values), "self", 1), null, CountSettings.DEFAULT);
+
+        sender.recordLag(5);
+        Thread.sleep(2);
+        sender.writeEventsToSocket();
+
+        assertEquals(values.get("self.flushes:c").longValue(), 1L);
+        assertEquals(values.get("self.failures:c").longValue(), 1L);
+        assertEquals(values.get("self.dropped:c").longValue(), 3L);
+        assertEquals(values.get("self.lagMaxMs:g").longValue(), 5L);
+        assertEquals(values.get("self.bytes:c").longValue(), 0L);
+        assertTrue(values.get("self.flushTimeUs:c") >= values.get("self.flushTimeMaxUs:g"), "values: " + values);
+    }
+
+    @Test(description = "Ошибка отправки пакета учитывает все события пакета как потерянные")
+    public void test_batchFailure() throws Exception {
+        LevelCounters counters = new LevelCounters();
+        counters.get(Level.INFO).increment();
+        counters.get(Level.ERROR).increment();
+        counters.get(Level.ERROR).increment();
+        Map<String, Long> values = new HashMap<>();
+        CountSender sender = new CountSender(counters, StatusLogger.getLogger(), new CountWriter() {
+            @Override
+            public void write(@Nonnull LevelMetric metric) {
+            }
+
+            @Override
+            public void endBatch() {
+                throw new IllegalStateException("receiver is down");
+            }
+        }, null, new SelfMetrics(collect(values), "self", 1), null, CountSettings.DEFAULT);
+
+        Thread.sleep(2);
+        sender.writeEventsToSocket();
+
+        assertEquals(values.get("self.failures:c").longValue(), 1L);
+        assertEquals(values.get("self.dropped:c").longValue(), 3L);
+        assertEquals(values.get("self.lagMaxMs:g").longValue(), 0L);
+    }
+
+    @Test(description = "Датаграммы, отброшенные из-за переполнения буфера сокета, учитываются за интервал")
+    public void test_datagramsDropped() throws Exception {
+        AtomicLong datagramsDropped = new AtomicLong(4);
+        Map<String, Long> values = new HashMap<>();
+        CountSender sender = new CountSender(new LevelCounters(), StatusLogger.getLogger(), new CountWriter() {
+            @Override
+            public void write(@Nonnull LevelMetric metric) {
+            }
+
+            @Override
+            public long datagramsDropped() {
+                return datagramsDropped.get();
+            }
+        }, null, new SelfMetrics(collect(values), "self", 1), null, CountSettings.DEFAULT);
+
+        Thread.sleep(2);
+        sender.writeEventsToSocket();
+        assertEquals(values.get("self.datagramsDropped:c").longValue(), 4L);
+
+        datagramsDropped.addAndGet(2);
+        Thread.sleep(2);
+        sender.writeEventsToSocket();
+        assertEquals(values.get("self.datagramsDropped:c").longValue(), 2L);
+    }
+
+    /**
+     * Сохраняет значения по ключу и виду метрики: {@code self.flushes:c -> 1}
+     */
+    @Nonnull
+    @Test(description = "Закрытие метрик аппендера закрывает их запись")
+    public void test_close() {
+        AtomicBoolean closed = new AtomicBoolean();
+        SelfMetrics selfMetrics = new SelfMetrics(new CountWriter() {
+            @Override
+            public void write(@Nonnull LevelMetric metric) {
+            }
+
+            @Override
+            public void close() {
+                closed.set(true);
+            }
+        }, "self", 1);
+
+        selfMetrics.close();
+
+        assertTrue(closed.get());
+    }
+
+    private static CountWriter collect(@Nonnull Map<String, Long> values) {
+        return metric -> values.put(metric.key + ":" + metric.kind, metric.count);
+    }
+}
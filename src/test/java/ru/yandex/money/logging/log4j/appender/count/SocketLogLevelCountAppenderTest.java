@@ -3,33 +3,55 @@ package ru.yandex.money.logging.log4j.appender.count;
 import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.core.AbstractLogEvent;
 import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.appender.AbstractAppender;
+import org.apache.logging.log4j.core.appender.AbstractManager;
+import org.apache.logging.log4j.core.config.AppenderRef;
+import org.apache.logging.log4j.core.config.DefaultConfiguration;
 import org.apache.logging.log4j.core.layout.PatternLayout;
 import org.apache.logging.log4j.core.net.Protocol;
 import org.apache.logging.log4j.message.Message;
+import org.apache.logging.log4j.message.ParameterizedMessage;
 import org.apache.logging.log4j.message.SimpleMessage;
+import org.apache.logging.log4j.status.StatusLogger;
 import org.apache.logging.log4j.util.ReadOnlyStringMap;
 import org.apache.logging.log4j.util.SortedArrayStringMap;
 import org.testng.annotations.Test;
 
 import javax.annotation.Nonnull;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.HttpURLConnection;
 import java.net.InetAddress;
-import java.net.SocketException;
+import java.net.InetSocketAddress;
+import java.net.URL;
 import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.LongAdder;
-import java.util.function.Consumer;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
 
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
 import static org.testng.Assert.assertTrue;
 
 /**
@@ -48,6 +70,10 @@ public class SocketLogLevelCountAppenderTest {
     }
 
     private static final AtomicInteger PORT = new AtomicInteger(11111);
+    /**
+     * Предельное время ожидания метрик, обычно они приходят за единицы миллисекунд
+     */
+    private static final long AWAIT_TIMEOUT_MS = 5000;
 
     @Test
     public void test_differentLevels() throws Exception {
@@ -67,7 +93,7 @@ public class SocketLogLevelCountAppenderTest {
         Map<Level, LongAdder> counterMap = new ConcurrentHashMap<>();
         Arrays.stream(Level.values()).forEach(level -> counterMap.put(level, new LongAdder()));
 
-        UdpServer udpServer = new UdpServer(HOST, port, message -> {
+        MetricReceiver udpServer = new MetricReceiver(Protocol.UDP, HOST, port, message -> {
             LevelAndCount levelAndCount = getLevelAndCount(message);
             counterMap.get(levelAndCount.getLevel()).add(levelAndCount.getCount());
         });
@@ -87,13 +113,912 @@ public class SocketLogLevelCountAppenderTest {
         assertEquals(counterMap.get(Level.WARN).sum(), 1L);
     }
 
-    @Test(description = "Проверяем обработку событий: 100000 событий в 10 потоков за 100мс с потерей не более 0.01% событий",
+    @Test(description = "Пользовательские уровни логирования считаются так же, как стандартные")
+    public void test_customLevels() throws Exception {
+        checkCustomLevels(false);
+    }
+
+    @Test(description = "Пользовательские уровни логирования кодируются без PatternLayout так же, как стандартные")
+    public void test_customLevelsDirectEncoding() throws Exception {
+        checkCustomLevels(true);
+    }
+
+    private void checkCustomLevels(boolean directEncoding) throws Exception {
+        Level notice = Level.forName("NOTICE", 350);
+        Level verbose = Level.forName("VERBOSE", Level.INFO.intLevel());
+        int port = PORT.incrementAndGet();
+        SocketLogLevelCountAppender appender = SocketLogLevelCountAppender.createBuilder()
+                .withName("name")
+                .withHost(HOST.getHostAddress())
+                .withPort(port)
+                .withProtocol(Protocol.UDP)
+                .withSendPeriod(10)
+                .withDirectEncoding(directEncoding)
+                .withLayout(PatternLayout.newBuilder()
+                        .withPattern("log.%level.%X{count}|") // log.NOTICE.3|
+                        .build())
+                .build();
+        appender.start();
+
+        Map<Level, LongAdder> counterMap = new ConcurrentHashMap<>();
+        MetricReceiver udpServer = startCountReceiver(port, counterMap);
+
+        appender.append(createLogEvent(notice));
+        appender.append(createLogEvent(notice));
+        appender.append(createLogEvent(verbose));
+        appender.append(createLogEvent(Level.INFO));
+        appender.append(createLogEvent(Level.ALL));
+
+        awaitCount(counterMap, notice, 2L, AWAIT_TIMEOUT_MS);
+        awaitCount(counterMap, verbose, 1L, AWAIT_TIMEOUT_MS);
+        awaitCount(counterMap, Level.INFO, 1L, AWAIT_TIMEOUT_MS);
+        awaitCount(counterMap, Level.ALL, 1L, AWAIT_TIMEOUT_MS);
+
+        udpServer.stop();
+        appender.stop(100, TimeUnit.MILLISECONDS);
+    }
+
+    @Test(description = "Метрики всех уровней одной отправки уходят одним пакетом")
+    public void test_batching() throws Exception {
+        int port = PORT.incrementAndGet();
+        SocketLogLevelCountAppender appender = SocketLogLevelCountAppender.createBuilder()
+                .withName("name")
+                .withHost(HOST.getHostAddress())
+                .withPort(port)
+                .withProtocol(Protocol.UDP)
+                .withSendPeriod(10000)
+                .withBatchSize(512)
+                .withLayout(PatternLayout.newBuilder()
+                        .withPattern("log.%level.%X{count}|") // log.INFO.3|
+                        .build())
+                .build();
+
+        Map<Level, LongAdder> counterMap = new ConcurrentHashMap<>();
+        MetricReceiver udpServer = startCountReceiver(port, counterMap);
+        appender.start();
+
+        appender.append(createLogEvent(Level.INFO));
+        appender.append(createLogEvent(Level.WARN));
+        appender.append(createLogEvent(Level.ERROR));
+        appender.append(createLogEvent(Level.INFO));
+
+        appender.stop(100, TimeUnit.MILLISECONDS);
+        awaitCount(counterMap, Level.INFO, 2L, AWAIT_TIMEOUT_MS);
+        awaitCount(counterMap, Level.WARN, 1L, AWAIT_TIMEOUT_MS);
+        awaitCount(counterMap, Level.ERROR, 1L, AWAIT_TIMEOUT_MS);
+        udpServer.stop();
+
+        assertEquals(udpServer.getPackets(), 1L);
+    }
+
+    @Test(description = "Собственный NIO-транспорт отправляет метрики одной отправки одной датаграммой")
+    public void test_nioTransport() throws Exception {
+        int port = PORT.incrementAndGet();
+        SocketLogLevelCountAppender appender = SocketLogLevelCountAppender.createBuilder()
+                .withName("name")
+                .withHost(HOST.getHostAddress())
+                .withPort(port)
+                .withProtocol(Protocol.UDP)
+                .withSendPeriod(10000)
+                .withBatchSize(30)
+                .withNioTransport(true)
+                .withDirectEncoding(true)
+                .withLayout(PatternLayout.newBuilder()
+                        .withPattern("log.%level.%X{count}|") // log.INFO.3|
+                        .build())
+                .build();
+
+        Map<Level, LongAdder> counterMap = new ConcurrentHashMap<>();
+        MetricReceiver udpServer = startCountReceiver(port, counterMap);
+        appender.start();
+
+        appender.append(createLogEvent(Level.INFO));
+        appender.append(createLogEvent(Level.WARN));
+        appender.append(createLogEvent(Level.ERROR));
+        appender.append(createLogEvent(Level.INFO));
+
+        appender.stop(100, TimeUnit.MILLISECONDS);
+        awaitCount(counterMap, Level.INFO, 2L, AWAIT_TIMEOUT_MS);
+        awaitCount(counterMap, Level.WARN, 1L, AWAIT_TIMEOUT_MS);
+        awaitCount(counterMap, Level.ERROR, 1L, AWAIT_TIMEOUT_MS);
+        udpServer.stop();
+
+        // "log.ERROR.1|\nlog.WARN.1|" - 24 байта, третья строка в пакет из 30 байт не помещается
+        assertEquals(udpServer.getPackets(), 2L);
+    }
+
+    @Test(description = "Аппендеры с общим планировщиком отправляют метрики из одного потока")
+    public void test_sharedScheduler() throws Exception {
+        int port = PORT.incrementAndGet();
+        SocketLogLevelCountAppender first = createSharedSchedulerAppender(port);
+        SocketLogLevelCountAppender second = createSharedSchedulerAppender(port);
+
+        Map<Level, LongAdder> counterMap = new ConcurrentHashMap<>();
+        MetricReceiver udpServer = startCountReceiver(port, counterMap);
+        first.start();
+        second.start();
+
+        first.append(createLogEvent(Level.INFO));
+        second.append(createLogEvent(Level.INFO));
+        second.append(createLogEvent(Level.ERROR));
+
+        awaitCount(counterMap, Level.INFO, 2L, AWAIT_TIMEOUT_MS);
+        awaitCount(counterMap, Level.ERROR, 1L, AWAIT_TIMEOUT_MS);
+        assertEquals(countSchedulerThreads(), 1L);
+
+        first.stop(100, TimeUnit.MILLISECONDS);
+        second.append(createLogEvent(Level.ERROR));
+        second.stop(100, TimeUnit.MILLISECONDS);
+        awaitCount(counterMap, Level.ERROR, 2L, AWAIT_TIMEOUT_MS);
+        udpServer.stop();
+
+        // поток планировщика завершается после финальной отправки асинхронно
+        await(() -> countSchedulerThreads() == 0, AWAIT_TIMEOUT_MS);
+        assertEquals(countSchedulerThreads(), 0L);
+    }
+
+    private static SocketLogLevelCountAppender createSharedSchedulerAppender(int port) {
+        return SocketLogLevelCountAppender.createBuilder()
+                .withName("name")
+                .withHost(HOST.getHostAddress())
+                .withPort(port)
+                .withProtocol(Protocol.UDP)
+                .withSendPeriod(10)
+                .withSharedScheduler(true)
+                .withLayout(PatternLayout.newBuilder()
+                        .withPattern("log.%level.%X{count}|") // log.INFO.3|
+                        .build())
+                .build();
+    }
+
+    private static long countSchedulerThreads() {
+        return Thread.getAllStackTraces().keySet().stream()
+                .filter(thread -> thread.getName().contains("socket-count-scheduler"))
+                .filter(Thread::isAlive)
+                .count();
+    }
+
+    @Test(description = "Без собственного потока метрики отправляет поток, записавший событие после окончания периода")
+    public void test_lazyFlush() throws Exception {
+        int port = PORT.incrementAndGet();
+        SocketLogLevelCountAppender appender = SocketLogLevelCountAppender.createBuilder()
+                .withName("name")
+                .withHost(HOST.getHostAddress())
+                .withPort(port)
+                .withProtocol(Protocol.UDP)
+                .withSendPeriod(20)
+                .withLazyFlush(true)
+                .withLayout(PatternLayout.newBuilder()
+                        .withPattern("log.%level.%X{count}|") // log.INFO.3|
+                        .build())
+                .build();
+        appender.start();
+
+        Map<Level, LongAdder> counterMap = new ConcurrentHashMap<>();
+        MetricReceiver udpServer = startCountReceiver(port, counterMap);
+
+        appender.append(createLogEvent(Level.INFO));
+        // ожидание здесь - окончание периода отправки, а не доставка метрик
+        Thread.sleep(50);
+        assertTrue(counterMap.isEmpty(), "sent without events: " + counterMap);
+
+        appender.append(createLogEvent(Level.WARN));
+        awaitCount(counterMap, Level.INFO, 1L, AWAIT_TIMEOUT_MS);
+        awaitCount(counterMap, Level.WARN, 1L, AWAIT_TIMEOUT_MS);
+
+        appender.append(createLogEvent(Level.ERROR));
+        appender.stop(100, TimeUnit.MILLISECONDS);
+        awaitCount(counterMap, Level.ERROR, 1L, AWAIT_TIMEOUT_MS);
+        udpServer.stop();
+    }
+
+    @Test(description = "Количество событий с момента старта доступно по HTTP в формате Prometheus одновременно с отправкой")
+    public void test_metricsEndpoint() throws Exception {
+        int port = PORT.incrementAndGet();
+        int metricsPort = PORT.incrementAndGet();
+        SocketLogLevelCountAppender appender = SocketLogLevelCountAppender.createBuilder()
+                .withName("name")
+                .withHost(HOST.getHostAddress())
+                .withPort(port)
+                .withProtocol(Protocol.UDP)
+                .withSendPeriod(10)
+                .withMetricsHost("127.0.0.1")
+                .withMetricsPort(metricsPort)
+                .withLayout(PatternLayout.newBuilder()
+                        .withPattern("log.%level.%X{count}|") // log.INFO.3|
+                        .build())
+                .build();
+        appender.start();
+        assertEquals(appender.getMetricsAddress().getPort(), metricsPort);
+
+        Map<Level, LongAdder> counterMap = new ConcurrentHashMap<>();
+        MetricReceiver udpServer = startCountReceiver(port, counterMap);
+
+        appender.append(createLogEvent(Level.INFO));
+        appender.append(createLogEvent(Level.ERROR));
+        awaitCount(counterMap, Level.INFO, 1L, AWAIT_TIMEOUT_MS);
+        awaitCount(counterMap, Level.ERROR, 1L, AWAIT_TIMEOUT_MS);
+        appender.append(createLogEvent(Level.INFO));
+        awaitCount(counterMap, Level.INFO, 2L, AWAIT_TIMEOUT_MS);
+
+        URL url = new URL("http://127.0.0.1:" + metricsPort + "/metrics");
+        String first = readUrl(url);
+        String second = readUrl(url);
+        appender.stop(100, TimeUnit.MILLISECONDS);
+        udpServer.stop();
+
+        assertTrue(first.contains("# TYPE log4j_events_total counter\n"), first);
+        assertTrue(first.contains("log4j_events_total{appender=\"name\",level=\"INFO\"} 2\n"), first);
+        assertTrue(first.contains("log4j_events_total{appender=\"name\",level=\"ERROR\"} 1\n"), first);
+        assertTrue(first.contains("log4j_events_total{appender=\"name\",level=\"WARN\"} 0\n"), first);
+        assertEquals(second, first);
+        assertEquals(appender.getMetricsAddress(), null);
+    }
+
+    @Nonnull
+    private static String readUrl(@Nonnull URL url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        try (InputStream in = connection.getInputStream()) {
+            assertEquals(connection.getResponseCode(), 200);
+            assertTrue(connection.getContentType().startsWith("text/plain; version=0.0.4"));
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                out.write(buffer, 0, read);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    @Test(description = "Двоичный формат: кадры с номерами, приемник учитывает потери")
+    public void test_binaryFormat() throws Exception {
+        int port = PORT.incrementAndGet();
+        Map<Level, LongAdder> counterMap = new ConcurrentHashMap<>();
+        CountFrameReceiver receiver = new CountFrameReceiver(new InetSocketAddress(HOST, port), frame -> {
+            assertEquals(frame.getAppenderId(), "app-1");
+            for (Level level : Level.values()) {
+                counterMap.computeIfAbsent(level, key -> new LongAdder()).add(frame.getCount(level));
+            }
+        });
+        SocketLogLevelCountAppender appender = SocketLogLevelCountAppender.createBuilder()
+                .withName("name")
+                .withHost(HOST.getHostAddress())
+                .withPort(port)
+                .withProtocol(Protocol.UDP)
+                .withSendPeriod(10)
+                .withBinaryFormat(true)
+                .withAppenderId("app-1")
+                .build();
+        appender.start();
+
+        appender.append(createLogEvent(Level.INFO));
+        appender.append(createLogEvent(Level.ERROR));
+        awaitCount(counterMap, Level.ERROR, 1L, AWAIT_TIMEOUT_MS);
+        // кадры отправляются и без событий
+        await(() -> receiver.getFrames() > 2, AWAIT_TIMEOUT_MS);
+        appender.append(createLogEvent(Level.INFO));
+
+        appender.stop(100, TimeUnit.MILLISECONDS);
+        awaitCount(counterMap, Level.INFO, 2L, AWAIT_TIMEOUT_MS);
+        receiver.close();
+
+        assertEquals(counterMap.get(Level.ERROR).sum(), 1L);
+        assertTrue(receiver.getFrames() > 2, "frames: " + receiver.getFrames());
+        assertEquals(receiver.getLostFrames(), 0L);
+        assertEquals(receiver.getMalformedDatagrams(), 0L);
+    }
+
+    @Test(description = "В накопительном режиме каждая отправка содержит общее количество по всем встреченным уровням")
+    public void test_cumulative() throws Exception {
+        int port = PORT.incrementAndGet();
+        SocketLogLevelCountAppender appender = SocketLogLevelCountAppender.createBuilder()
+                .withName("name")
+                .withHost(HOST.getHostAddress())
+                .withPort(port)
+                .withProtocol(Protocol.UDP)
+                .withSendPeriod(10)
+                .withCumulative(true)
+                .withLayout(PatternLayout.newBuilder()
+                        .withPattern("total.%level.%X{total}.%X{startId}|") // total.INFO.3.1540000000000|
+                        .build())
+                .build();
+        appender.start();
+
+        Map<Level, Long> totalMap = new ConcurrentHashMap<>();
+        Map<Level, LongAdder> messageMap = new ConcurrentHashMap<>();
+        Set<Long> startIds = ConcurrentHashMap.newKeySet();
+        MetricReceiver udpServer = new MetricReceiver(Protocol.UDP, HOST, port, message -> {
+            String[] parts = message.substring(0, message.length() - 1).split("\\.");
+            Level level = Level.valueOf(parts[1]);
+            totalMap.merge(level, Long.valueOf(parts[2]), Math::max);
+            messageMap.computeIfAbsent(level, key -> new LongAdder()).increment();
+            startIds.add(Long.valueOf(parts[3]));
+        });
+        udpServer.start();
+
+        appender.append(createLogEvent(Level.INFO));
+        appender.append(createLogEvent(Level.INFO));
+        await(() -> totalMap.getOrDefault(Level.INFO, 0L) == 2L, AWAIT_TIMEOUT_MS);
+        appender.append(createLogEvent(Level.ERROR));
+
+        appender.stop(100, TimeUnit.MILLISECONDS);
+        await(() -> totalMap.containsKey(Level.ERROR)
+                && messageMap.get(Level.INFO).sum() > messageMap.get(Level.ERROR).sum(), AWAIT_TIMEOUT_MS);
+        udpServer.stop();
+
+        assertEquals(totalMap.get(Level.INFO).longValue(), 2L);
+        assertEquals(totalMap.get(Level.ERROR).longValue(), 1L);
+        assertFalse(totalMap.containsKey(Level.WARN));
+        // уровень без новых событий отправляется при каждой отправке
+        assertTrue(messageMap.get(Level.INFO).sum() > messageMap.get(Level.ERROR).sum(),
+                "messages: " + messageMap);
+        assertEquals(startIds.size(), 1);
+        assertTrue(startIds.iterator().next() > 0);
+    }
+
+    @Test(description = "В нижестоящий аппендер пересылаются события в пределах бюджета, остальные - в %X{suppressed}")
+    public void test_forwardBudgets() throws Exception {
+        int port = PORT.incrementAndGet();
+        List<Level> forwarded = new CopyOnWriteArrayList<>();
+        AbstractAppender downstream = new AbstractAppender("downstream", null, null) {
+            @Override
+            public void append(LogEvent event) {
+                forwarded.add(event.getLevel());
+            }
+        };
+        downstream.start();
+        DefaultConfiguration configuration = new DefaultConfiguration();
+        configuration.addAppender(downstream);
+        SocketLogLevelCountAppender appender = SocketLogLevelCountAppender.createBuilder()
+                .withName("name")
+                .withHost(HOST.getHostAddress())
+                .withPort(port)
+                .withProtocol(Protocol.UDP)
+                .withSendPeriod(60_000)
+                .setConfiguration(configuration)
+                .withAppenderRefs(AppenderRef.createAppenderRef("downstream", null, null))
+                .withForwardBudgets("ERROR=2")
+                .withLayout(PatternLayout.newBuilder()
+                        .withPattern("%level.%X{count}.%X{suppressed}|") // ERROR.5.3|
+                        .build())
+                .build();
+        appender.start();
+
+        Map<Level, String> received = new ConcurrentHashMap<>();
+        MetricReceiver udpServer = new MetricReceiver(Protocol.UDP, HOST, port, message -> {
+            String[] parts = message.substring(0, message.length() - 1).split("\\.", 2);
+            received.put(Level.valueOf(parts[0]), parts[1]);
+        });
+        udpServer.start();
+
+        for (int i = 0; i < 5; i++) {
+            appender.append(createLogEvent(Level.ERROR));
+        }
+        for (int i = 0; i < 3; i++) {
+            appender.append(createLogEvent(Level.INFO));
+        }
+
+        appender.stop(100, TimeUnit.MILLISECONDS);
+        await(() -> received.size() == 2, AWAIT_TIMEOUT_MS);
+        udpServer.stop();
+        downstream.stop();
+
+        assertEquals(forwarded.stream().filter(Level.ERROR::equals).count(), 2L);
+        assertEquals(forwarded.stream().filter(Level.INFO::equals).count(), 3L);
+        assertEquals(received.get(Level.ERROR), "5.3");
+        assertEquals(received.get(Level.INFO), "3.0");
+    }
+
+    @Test(description = "Аппендер новой конфигурации продолжает общие счетчики без потерь и финальной отправки старого")
+    public void test_sharedCounters() throws Exception {
+        int port = PORT.incrementAndGet();
+        Map<Level, LongAdder> counterMap = new ConcurrentHashMap<>();
+        MetricReceiver udpServer = startCountReceiver(port, counterMap);
+
+        SocketLogLevelCountAppender oldAppender = createSharedAppender("shared-" + port, port);
+        oldAppender.start();
+        oldAppender.append(createLogEvent(Level.INFO));
+        oldAppender.append(createLogEvent(Level.INFO));
+
+        // log4j запускает новую конфигурацию до остановки старой
+        SocketLogLevelCountAppender newAppender = createSharedAppender("shared-" + port, port);
+        newAppender.start();
+        assertTrue(newAppender.getStatistics() == oldAppender.getStatistics());
+        oldAppender.stop(100, TimeUnit.MILLISECONDS);
+        newAppender.append(createLogEvent(Level.INFO));
+
+        newAppender.stop(100, TimeUnit.MILLISECONDS);
+        awaitCount(counterMap, Level.INFO, 3L, AWAIT_TIMEOUT_MS);
+        udpServer.stop();
+
+        // финальная отправка старого аппендера пришла бы отдельным пакетом раньше отправки нового
+        assertEquals(udpServer.getPackets(), 1L);
+    }
+
+    @Test(description = "Аппендер с другими параметрами общих счетчиков пишет в их менеджер сокета, а не создает свой")
+    public void test_sharedCountersSettings() throws Exception {
+        int port = PORT.incrementAndGet();
+        int otherPort = PORT.incrementAndGet();
+        SocketLogLevelCountAppender appender = createSharedAppender("shared-" + port, port);
+        appender.start();
+        SocketLogLevelCountAppender otherAppender = createSharedAppender("shared-" + port, otherPort);
+        otherAppender.start();
+
+        assertTrue(otherAppender.getStatistics() == appender.getStatistics());
+        assertTrue(otherAppender.getManager() == appender.getManager());
+        assertFalse(AbstractManager.hasManager("UDP:" + HOST.getHostAddress() + ":" + otherPort));
+
+        otherAppender.stop(100, TimeUnit.MILLISECONDS);
+        appender.stop(100, TimeUnit.MILLISECONDS);
+        assertFalse(AbstractManager.hasManager("UDP:" + HOST.getHostAddress() + ":" + port));
+    }
+
+    private static SocketLogLevelCountAppender createSharedAppender(String sharedCounters, int port) {
+        return SocketLogLevelCountAppender.createBuilder()
+                .withName("name")
+                .withHost(HOST.getHostAddress())
+                .withPort(port)
+                .withProtocol(Protocol.UDP)
+                .withSendPeriod(60_000)
+                .withSharedCounters(sharedCounters)
+                .withLayout(PatternLayout.newBuilder()
+                        .withPattern("log.%level.%X{count}|")
+                        .build())
+                .build();
+    }
+
+    @Test(description = "Оценка объема событий в %X{bytes}")
+    public void test_countBytes() throws Exception {
+        int port = PORT.incrementAndGet();
+        SocketLogLevelCountAppender appender = SocketLogLevelCountAppender.createBuilder()
+                .withName("name")
+                .withHost(HOST.getHostAddress())
+                .withPort(port)
+                .withProtocol(Protocol.UDP)
+                .withSendPeriod(60_000)
+                .withCountBytes(true)
+                .withLayout(PatternLayout.newBuilder()
+                        .withPattern("%level.%X{count}.%X{bytes}|") // WARN.2.20|
+                        .build())
+                .build();
+        appender.start();
+
+        Map<Level, String> received = new ConcurrentHashMap<>();
+        MetricReceiver udpServer = new MetricReceiver(Protocol.UDP, HOST, port, message -> {
+            String[] parts = message.substring(0, message.length() - 1).split("\\.", 2);
+            received.put(Level.valueOf(parts[0]), parts[1]);
+        });
+        udpServer.start();
+
+        // "slow value" - 10 символов
+        appender.append(new FakeLogEvent(Level.WARN, "slow {}", "db"));
+        appender.append(new FakeLogEvent(Level.WARN, "slow {}", "http"));
+        appender.append(createLogEvent(Level.INFO));
+
+        appender.stop(100, TimeUnit.MILLISECONDS);
+        await(() -> received.size() == 2, AWAIT_TIMEOUT_MS);
+        udpServer.stop();
+
+        assertEquals(received.get(Level.WARN), "2.20");
+        assertEquals(received.get(Level.INFO), "1.0");
+    }
+
+    @Test(description = "Без событий период отправки растет до maxSendPeriod, %X{interval} - фактический интервал")
+    public void test_adaptivePeriod() throws Exception {
+        int port = PORT.incrementAndGet();
+        SocketLogLevelCountAppender appender = SocketLogLevelCountAppender.createBuilder()
+                .withName("name")
+                .withHost(HOST.getHostAddress())
+                .withPort(port)
+                .withProtocol(Protocol.UDP)
+                .withSendPeriod(10)
+                .withMaxSendPeriod(80)
+                .withTargetCount(1000)
+                .withLayout(PatternLayout.newBuilder()
+                        .withPattern("interval.%level.%X{count}.%X{interval}|") // interval.INFO.1.10|
+                        .build())
+                .build();
+
+        Map<Level, Long> intervalMap = new ConcurrentHashMap<>();
+        MetricReceiver udpServer = new MetricReceiver(Protocol.UDP, HOST, port, message -> {
+            String[] parts = message.substring(0, message.length() - 1).split("\\.");
+            intervalMap.put(Level.valueOf(parts[1]), Long.valueOf(parts[3]));
+        });
+        udpServer.start();
+        appender.start();
+
+        appender.append(createLogEvent(Level.INFO));
+        // ожидание здесь - отправки без событий, за которые растет период
+        Thread.sleep(400);
+        appender.append(createLogEvent(Level.WARN));
+        // WARN должен уйти очередной отправкой по расписанию, а не финальной
+        await(() -> intervalMap.containsKey(Level.WARN), AWAIT_TIMEOUT_MS);
+        appender.stop(100, TimeUnit.MILLISECONDS);
+        udpServer.stop();
+
+        assertTrue(intervalMap.get(Level.INFO) < 40, "intervals: " + intervalMap);
+        assertTrue(intervalMap.get(Level.WARN) >= 40 && intervalMap.get(Level.WARN) <= 200,
+                "intervals: " + intervalMap);
+    }
+
+    @Test(description = "Границы периода отправки проверяются при создании аппендера")
+    public void test_adaptivePeriodBounds() {
+        assertNull(SocketLogLevelCountAppender.createBuilder()
+                .withName("name")
+                .withSendPeriod(100)
+                .withMinSendPeriod(200)
+                .withMaxSendPeriod(300)
+                .build());
+        assertNull(SocketLogLevelCountAppender.createBuilder()
+                .withName("name")
+                .withSendPeriod(100)
+                .withMaxSendPeriod(300)
+                .withLazyFlush(true)
+                .build());
+    }
+
+    @Test(description = "Метрики самого аппендера отправляются с заданным префиксом через тот же сокет")
+    public void test_selfMetrics() throws Exception {
+        int port = PORT.incrementAndGet();
+        SocketLogLevelCountAppender appender = SocketLogLevelCountAppender.createBuilder()
+                .withName("name")
+                .withHost(HOST.getHostAddress())
+                .withPort(port)
+                .withProtocol(Protocol.UDP)
+                .withSendPeriod(10)
+                .withSelfMetricsInterval(50)
+                .withSelfMetricsPrefix("self.name")
+                .withLayout(PatternLayout.newBuilder()
+                        .withPattern("log.%level.%X{count}|") // log.INFO.3|
+                        .build())
+                .build();
+
+        Map<String, LongAdder> selfMap = new ConcurrentHashMap<>();
+        LongAdder levelBytes = new LongAdder();
+        MetricReceiver udpServer = new MetricReceiver(Protocol.UDP, HOST, port, line -> {
+            if (line.startsWith("self.name.")) {
+                // self.name.flushes:12|c
+                String key = line.substring(0, line.indexOf(':'));
+                long value = Long.parseLong(line.substring(line.indexOf(':') + 1, line.indexOf('|')));
+                selfMap.computeIfAbsent(key, k -> new LongAdder()).add(value);
+            } else {
+                levelBytes.add(line.getBytes(StandardCharsets.UTF_8).length);
+            }
+        });
+        udpServer.start();
+        appender.start();
+
+        appender.append(createLogEvent(Level.INFO));
+        appender.append(createLogEvent(Level.ERROR));
+        // lagMaxMs записывается последним в отправке метрик аппендера
+        await(() -> selfMap.containsKey("self.name.lagMaxMs"), AWAIT_TIMEOUT_MS);
+        appender.stop(100, TimeUnit.MILLISECONDS);
+        udpServer.stop();
+
+        assertTrue(selfMap.get("self.name.flushes").sum() > 0, "self metrics: " + selfMap);
+        assertEquals(selfMap.get("self.name.bytes").sum(), levelBytes.sum());
+        assertEquals(selfMap.get("self.name.failures").sum(), 0L);
+        assertEquals(selfMap.get("self.name.dropped").sum(), 0L);
+        assertTrue(selfMap.containsKey("self.name.lagMaxMs"), "self metrics: " + selfMap);
+        assertTrue(selfMap.containsKey("self.name.flushTimeMaxUs"), "self metrics: " + selfMap);
+    }
+
+    @Test(description = "Отправки общим планировщиком выравниваются по границам, кратным периоду")
+    public void test_alignedSendTime() {
+        assertEquals(SharedFlushScheduler.nextAlignedTimeMs(12_345L, 10_000L), 20_000L);
+        assertEquals(SharedFlushScheduler.nextAlignedTimeMs(20_000L, 10_000L), 30_000L);
+        assertEquals(SharedFlushScheduler.nextAlignedTimeMs(19_999L, 10L), 20_000L);
+    }
+
+    @Test(description = "Ошибка отправки общим планировщиком не отменяет следующие отправки")
+    public void test_sharedSchedulerFailure() throws Exception {
+        AtomicInteger flushes = new AtomicInteger();
+        CountSender sender = new CountSender(new LevelCounters(), StatusLogger.getLogger(), metric -> {
+        }) {
+            @Override
+            long writeEventsToSocket() {
+                flushes.incrementAndGet();
+                throw new IllegalStateException("receiver is down");
+            }
+        };
+        SendSchedule schedule = SharedFlushScheduler.schedule(sender,
+                CountSettings.newBuilder().withSendPeriodMs(10).withEarlyFlushIntervalMs(10).build(),
+                StatusLogger.getLogger());
+        schedule.start();
+        await(() -> flushes.get() > 2, AWAIT_TIMEOUT_MS);
+        schedule.stop(100);
+
+        assertTrue(flushes.get() > 2, "flushes: " + flushes);
+    }
+
+    @Test(description = "Отправка общим планировщиком раньше границы периода не планирует ту же границу повторно")
+    public void test_sharedSchedulerEarlyTick() throws Exception {
+        assertEquals(SharedFlushScheduler.nextScheduledTimeMs(19_999L, 20_000L, 10_000L), 30_000L);
+        assertEquals(SharedFlushScheduler.nextScheduledTimeMs(20_001L, 20_000L, 10_000L), 30_000L);
+        assertEquals(SharedFlushScheduler.nextScheduledTimeMs(31_000L, 20_000L, 10_000L), 40_000L);
+
+        AtomicInteger flushes = new AtomicInteger();
+        List<Long> lags = new CopyOnWriteArrayList<>();
+        CountSender sender = new CountSender(new LevelCounters(), StatusLogger.getLogger(), metric -> {
+        }) {
+            @Override
+            long writeEventsToSocket() {
+                flushes.incrementAndGet();
+                return 0;
+            }
+
+            @Override
+            void recordLag(long lagMs) {
+                lags.add(lagMs);
+            }
+        };
+        SendSchedule schedule = SharedFlushScheduler.schedule(sender,
+                CountSettings.newBuilder().withSendPeriodMs(60_000).withEarlyFlushIntervalMs(60_000).build(),
+                StatusLogger.getLogger());
+        schedule.start();
+        // отправка до наступления запланированной границы
+        ((Runnable) schedule).run();
+        schedule.stop(100);
+
+        assertEquals(flushes.get(), 2);
+        assertEquals(lags, Collections.singletonList(0L));
+    }
+
+    @Test(description = "Остановка общего планировщика ждет финальную отправку не дольше таймаута")
+    public void test_sharedSchedulerStopTimeout() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        CountSender sender = new CountSender(new LevelCounters(), StatusLogger.getLogger(), metric -> {
+        }) {
+            @Override
+            long writeEventsToSocket() {
+                try {
+                    // запись в недоступный приемник
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return 0;
+            }
+        };
+        SendSchedule schedule = SharedFlushScheduler.schedule(sender,
+                CountSettings.newBuilder().withSendPeriodMs(60_000).withEarlyFlushIntervalMs(60_000).build(),
+                StatusLogger.getLogger());
+        schedule.start();
+
+        long startNanos = System.nanoTime();
+        schedule.stop(100);
+        long stopMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        release.countDown();
+
+        assertTrue(stopMs < 1_000, "stop took " + stopMs + " ms");
+    }
+
+    @Test(description = "Уровень, превысивший порог, отправляется досрочно, остальные - по расписанию")
+    public void test_thresholds() throws Exception {
+        for (boolean sharedScheduler : new boolean[]{false, true}) {
+            int port = PORT.incrementAndGet();
+            SocketLogLevelCountAppender appender = SocketLogLevelCountAppender.createBuilder()
+                    .withName("name")
+                    .withHost(HOST.getHostAddress())
+                    .withPort(port)
+                    .withProtocol(Protocol.UDP)
+                    .withSendPeriod(60_000)
+                    .withSharedScheduler(sharedScheduler)
+                    .withThresholds("ERROR>=10")
+                    .withEarlyFlushInterval(50)
+                    .withLayout(PatternLayout.newBuilder()
+                            .withPattern("log.%level.%X{count}|") // log.ERROR.10|
+                            .build())
+                    .build();
+            appender.start();
+
+            Map<Level, LongAdder> counterMap = new ConcurrentHashMap<>();
+            MetricReceiver udpServer = startCountReceiver(port, counterMap);
+
+            for (int i = 0; i < 9; i++) {
+                appender.append(createLogEvent(Level.ERROR));
+                appender.append(createLogEvent(Level.INFO));
+            }
+            // отправки не ожидается, поэтому проверяем отсутствие метрик через интервал досрочной отправки
+            Thread.sleep(100);
+            assertTrue(counterMap.isEmpty(), "sent before threshold: " + counterMap);
+
+            appender.append(createLogEvent(Level.ERROR));
+            awaitCount(counterMap, Level.ERROR, 10L, AWAIT_TIMEOUT_MS);
+            assertFalse(counterMap.containsKey(Level.INFO));
+
+            // повторное превышение порога сразу после досрочной отправки ждет earlyFlushInterval
+            for (int i = 0; i < 10; i++) {
+                appender.append(createLogEvent(Level.ERROR));
+            }
+            awaitCount(counterMap, Level.ERROR, 20L, AWAIT_TIMEOUT_MS);
+
+            appender.stop(100, TimeUnit.MILLISECONDS);
+            awaitCount(counterMap, Level.INFO, 9L, AWAIT_TIMEOUT_MS);
+            udpServer.stop();
+        }
+    }
+
+    @Test(description = "Одни и те же счетчики отправляются на все адреса, каждый со своим layout")
+    public void test_destinations() throws Exception {
+        int port = PORT.incrementAndGet();
+        int destinationPort = PORT.incrementAndGet();
+        SocketLogLevelCountAppender appender = SocketLogLevelCountAppender.createBuilder()
+                .withName("name")
+                .withHost(HOST.getHostAddress())
+                .withPort(port)
+                .withProtocol(Protocol.UDP)
+                .withSendPeriod(10)
+                .withLayout(PatternLayout.newBuilder()
+                        .withPattern("log.%level.%X{count}|") // log.INFO.3|
+                        .build())
+                .withDestinations(CountDestination.newBuilder()
+                        .withHost(HOST.getHostAddress())
+                        .withPort(destinationPort)
+                        .withProtocol(Protocol.UDP)
+                        .withBatchSize(512)
+                        .withLayout(PatternLayout.newBuilder()
+                                .withPattern("copy.%level.%X{count}|")
+                                .build())
+                        .build())
+                .build();
+        appender.start();
+
+        Map<Level, LongAdder> counterMap = new ConcurrentHashMap<>();
+        MetricReceiver udpServer = startCountReceiver(port, counterMap);
+        // copy.INFO.2| разбирается так же, как log.INFO.2|
+        Map<Level, LongAdder> destinationCounterMap = new ConcurrentHashMap<>();
+        MetricReceiver destinationServer = startCountReceiver(destinationPort, destinationCounterMap);
+
+        appender.append(createLogEvent(Level.INFO));
+        appender.append(createLogEvent(Level.WARN));
+        appender.append(createLogEvent(Level.INFO));
+
+        awaitCount(counterMap, Level.INFO, 2L, AWAIT_TIMEOUT_MS);
+        awaitCount(counterMap, Level.WARN, 1L, AWAIT_TIMEOUT_MS);
+        awaitCount(destinationCounterMap, Level.INFO, 2L, AWAIT_TIMEOUT_MS);
+        awaitCount(destinationCounterMap, Level.WARN, 1L, AWAIT_TIMEOUT_MS);
+        appender.stop(100, TimeUnit.MILLISECONDS);
+        udpServer.stop();
+        destinationServer.stop();
+    }
+
+    @Test(description = "Статистика аппендера доступна из кода и по JMX")
+    @SuppressWarnings("unchecked")
+    public void test_statistics() throws Exception {
+        int port = PORT.incrementAndGet();
+        SocketLogLevelCountAppender appender = SocketLogLevelCountAppender.createBuilder()
+                .withName("statistics")
+                .withHost(HOST.getHostAddress())
+                .withPort(port)
+                .withProtocol(Protocol.UDP)
+                .withSendPeriod(60_000)
+                .withJmx(true)
+                .withLayout(PatternLayout.newBuilder()
+                        .withPattern("log.%level.%X{count}|")
+                        .build())
+                .build();
+        appender.start();
+
+        appender.append(createLogEvent(Level.ERROR));
+        appender.append(createLogEvent(Level.ERROR));
+        appender.append(createLogEvent(Level.INFO));
+
+        LevelCountStatistics statistics = appender.getStatistics();
+        assertEquals(statistics.getCurrentCount(Level.ERROR), 2L);
+        assertEquals(statistics.getTotalCount(Level.INFO), 1L);
+        assertEquals(statistics.getLastFlushTimestamp(), 0L);
+        // запрос уровня без событий не регистрирует его счетчик
+        Level notice = Level.forName("STATISTICS_NOTICE", 350);
+        assertEquals(statistics.getCurrentCount(notice), 0L);
+        assertEquals(statistics.getOneMinuteRate(notice), 0.0);
+        assertFalse(statistics.getCurrentCounts().containsKey(notice.name()));
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("ru.yandex.money.logging:type=SocketLogLevelCount,name=statistics");
+        TabularData current = (TabularData) server.getAttribute(name, "CurrentCounts");
+        Map<Object, Object> currentCounts = ((Collection<CompositeData>) current.values()).stream()
+                .collect(Collectors.toMap(entry -> entry.get("key"), entry -> entry.get("value")));
+        assertEquals(currentCounts.get("ERROR"), 2L);
+        assertEquals(currentCounts.get("WARN"), 0L);
+
+        appender.stop(100, TimeUnit.MILLISECONDS);
+
+        assertEquals(statistics.getCurrentCount(Level.ERROR), 0L);
+        assertEquals(statistics.getTotalCount(Level.ERROR), 2L);
+        assertTrue(statistics.getLastFlushTimestamp() > 0);
+        assertFalse(server.isRegistered(name));
+    }
+
+    @Test(description = "Самые частые шаблоны сообщений и логгеры отправляются отдельными строками")
+    public void test_heavyHitters() throws Exception {
+        int port = PORT.incrementAndGet();
+        SocketLogLevelCountAppender appender = SocketLogLevelCountAppender.createBuilder()
+                .withName("name")
+                .withHost(HOST.getHostAddress())
+                .withPort(port)
+                .withProtocol(Protocol.UDP)
+                .withSendPeriod(10)
+                .withLayout(PatternLayout.newBuilder()
+                        .withPattern("log.%level.%X{count}|") // log.INFO.3|
+                        .build())
+                .withHeavyHitters(1)
+                .withHeavyHitterPattern("top.%level.%X{kind}.%X{key}.%X{count}|") // top.WARN.format.key.3|
+                .build();
+        appender.start();
+
+        Map<String, LongAdder> topMap = new ConcurrentHashMap<>();
+        MetricReceiver udpServer = new MetricReceiver(Protocol.UDP, HOST, port, message -> {
+            if (message.startsWith("top.")) {
+                String[] parts = message.substring(0, message.length() - 1).split("\\.");
+                topMap.computeIfAbsent(parts[1] + "." + parts[2] + "." + parts[3], key -> new LongAdder())
+                        .add(Long.parseLong(parts[4]));
+            }
+        });
+        udpServer.start();
+
+        appender.append(new FakeLogEvent(Level.WARN, "slow {}", "db"));
+        appender.append(new FakeLogEvent(Level.WARN, "slow {}", "http"));
+        appender.append(new FakeLogEvent(Level.WARN, "timeout", "http"));
+
+        awaitCount(topMap, "WARN.format.slow {}", 2L, AWAIT_TIMEOUT_MS);
+        awaitCount(topMap, "WARN.logger.http", 2L, AWAIT_TIMEOUT_MS);
+        appender.stop(100, TimeUnit.MILLISECONDS);
+        udpServer.stop();
+
+        assertFalse(topMap.containsKey("WARN.format.timeout"));
+        assertFalse(topMap.containsKey("WARN.logger.db"));
+    }
+
+    @Test(description = "События учитываются по префиксам имени логгера, %X{logger} - префикс")
+    public void test_loggerPrefixes() throws Exception {
+        int port = PORT.incrementAndGet();
+        SocketLogLevelCountAppender appender = SocketLogLevelCountAppender.createBuilder()
+                .withName("name")
+                .withHost(HOST.getHostAddress())
+                .withPort(port)
+                .withProtocol(Protocol.UDP)
+                .withSendPeriod(10)
+                .withLayout(PatternLayout.newBuilder()
+                        .withPattern("log.%level.%X{count}|") // log.INFO.3|
+                        .build())
+                .withLoggerDepth(2)
+                .withLoggerPattern("logger.%level.%X{logger}:%X{count}|") // logger.WARN.ru.yandex:3|
+                .build();
+        appender.start();
+
+        Map<String, LongAdder> loggerMap = new ConcurrentHashMap<>();
+        MetricReceiver udpServer = new MetricReceiver(Protocol.UDP, HOST, port, message -> {
+            if (message.startsWith("logger.")) {
+                String key = message.substring("logger.".length(), message.indexOf(':'));
+                long count = Long.parseLong(message.substring(message.indexOf(':') + 1, message.length() - 1));
+                loggerMap.computeIfAbsent(key, k -> new LongAdder()).add(count);
+            }
+        });
+        udpServer.start();
+
+        appender.append(new FakeLogEvent(Level.WARN, "slow", "ru.yandex.payments.Processor"));
+        appender.append(new FakeLogEvent(Level.WARN, "slow", "ru.yandex.Gateway"));
+        appender.append(new FakeLogEvent(Level.ERROR, "failed", "ru.yandex.payments.Refunds"));
+        appender.append(new FakeLogEvent(Level.INFO, "started", "app"));
+
+        awaitCount(loggerMap, "WARN.ru.yandex", 2L, AWAIT_TIMEOUT_MS);
+        awaitCount(loggerMap, "ERROR.ru.yandex", 1L, AWAIT_TIMEOUT_MS);
+        awaitCount(loggerMap, "INFO.app", 1L, AWAIT_TIMEOUT_MS);
+        appender.stop(100, TimeUnit.MILLISECONDS);
+        udpServer.stop();
+
+        assertEquals(loggerMap.size(), 3, "logger prefixes: " + loggerMap);
+    }
+
+    @Test(description = "Проверяем обработку событий: 100000 событий в 10 потоков без потери событий",
             invocationCount = 20)
     public void test_highload() throws Exception {
-        double maxLossRate = 0.0001;
         int numberOfThreads = 10;
         int eventsPerThread = 10000;
-        long timeout = 100;
 
         int port = PORT.incrementAndGet();
         SocketLogLevelCountAppender appender = SocketLogLevelCountAppender.createBuilder()
@@ -106,20 +1031,17 @@ public class SocketLogLevelCountAppenderTest {
                         .withPattern("log.%level.%X{count}|") // log.INFO.3|
                         .build())
                 .build();
-        appender.start();
 
         LongAdder counter = new LongAdder();
-        UdpServer udpServer = new UdpServer(HOST, port, message -> {
+        MetricReceiver udpServer = new MetricReceiver(Protocol.UDP, HOST, port, message -> {
             long count = getLevelAndCount(message).getCount();
             counter.add(count);
         });
         udpServer.start();
+        appender.start();
 
         long totalEvents = eventsPerThread * numberOfThreads;
-        long maxPossiblyLostEvents = (long) (totalEvents * maxLossRate);
-
         ExecutorService executorService = Executors.newFixedThreadPool(numberOfThreads);
-        long startTime = System.currentTimeMillis();
         for (long i = 0; i < numberOfThreads; i++) {
             executorService.submit(() -> {
                 for (int j = 0; j < eventsPerThread; j++) {
@@ -127,21 +1049,16 @@ public class SocketLogLevelCountAppenderTest {
                 }
             });
         }
-
-        while (System.currentTimeMillis() - startTime < timeout) {
-            Thread.sleep(10);
-            if (counter.sum() >= totalEvents) {
-                long time = System.currentTimeMillis() - startTime;
-                System.out.println("Time: " + time + "ms, events: " + counter.sum());
-                break;
-            }
-        }
-
         executorService.shutdown();
+        assertTrue(executorService.awaitTermination(10, TimeUnit.SECONDS));
+        // события, не отправленные периодической отправкой, уходят финальной отправкой при остановке аппендера
+        appender.stop(1, TimeUnit.SECONDS);
+
+        // ожидание определяется приходом всех событий, а не скоростью машины
+        await(() -> counter.sum() >= totalEvents, AWAIT_TIMEOUT_MS);
         udpServer.stop();
-        appender.stop(100, TimeUnit.MILLISECONDS);
 
-        assertTrue(totalEvents - counter.sum() <= maxPossiblyLostEvents,
+        assertEquals(counter.sum(), totalEvents,
                 String.format("total: %d, lost: %d", totalEvents, totalEvents - counter.sum()));
     }
 
@@ -149,6 +1066,40 @@ public class SocketLogLevelCountAppenderTest {
         return new FakeLogEvent(level);
     }
 
+    /**
+     * Запустить прием строк вида log.INFO.3| с суммированием количества событий по уровням в {@code counterMap}
+     */
+    @Nonnull
+    private MetricReceiver startCountReceiver(int port, @Nonnull Map<Level, LongAdder> counterMap) {
+        MetricReceiver udpServer = new MetricReceiver(Protocol.UDP, HOST, port, message -> {
+            LevelAndCount levelAndCount = getLevelAndCount(message);
+            counterMap.computeIfAbsent(levelAndCount.getLevel(), level -> new LongAdder())
+                    .add(levelAndCount.getCount());
+        });
+        udpServer.start();
+        return udpServer;
+    }
+
+    /**
+     * Дождаться, пока сумма по ключу дойдет до {@code expected}, и проверить, что она не превысила его
+     */
+    private static <K> void awaitCount(@Nonnull Map<K, LongAdder> counterMap, @Nonnull K key, long expected,
+                                       long timeoutMs) throws InterruptedException {
+        await(() -> counterMap.containsKey(key) && counterMap.get(key).sum() >= expected, timeoutMs);
+        LongAdder counter = counterMap.get(key);
+        assertEquals(counter != null ? counter.sum() : 0L, expected, key + " in " + counterMap);
+    }
+
+    /**
+     * Дождаться выполнения условия, но не дольше {@code timeoutMs}. Проверка результата остается вызывающему.
+     */
+    private static void await(@Nonnull BooleanSupplier condition, long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
     // log.INFO.3|
     @Nonnull
     private LevelAndCount getLevelAndCount(@Nonnull String message) {
@@ -179,63 +1130,23 @@ public class SocketLogLevelCountAppenderTest {
         }
     }
 
-    private static class UdpServer {
-        private final InetAddress host;
-        private final int port;
-        private final AtomicBoolean closed = new AtomicBoolean(false);
-        private DatagramSocket socket;
-        private Thread udpServerThread;
-        private final Consumer<String> messageConsumer;
-
-        public UdpServer(InetAddress host, int port, Consumer<String> messageConsumer) {
-            this.host = host;
-            this.port = port;
-            this.messageConsumer = messageConsumer;
-        }
-
-        public void start() {
-            try {
-                socket = new DatagramSocket(port, host);
-            } catch (SocketException e) {
-                throw new RuntimeException(e);
-            }
-            udpServerThread = new Thread(() -> {
-                try {
-                    while (!closed.get()) {
-                        byte[] buffer = new byte[128];
-                        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-                        socket.receive(packet);
-                        String message = new String(packet.getData(), 0, packet.getLength());
-                        messageConsumer.accept(message);
-                    }
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
-                }
-
-            });
-            udpServerThread.start();
-        }
-
-        public void stop() {
-            closed.set(true);
-            socket.close();
-            try {
-                udpServerThread.join();
-            } catch (InterruptedException e) {
-                throw new RuntimeException(e);
-            }
-        }
-    }
-
     private static class FakeLogEvent extends AbstractLogEvent {
 
         private static final long serialVersionUID = 1L;
 
         @Nonnull
         private final Level level;
+        private final String format;
+        private final String loggerName;
 
         public FakeLogEvent(Level level) {
+            this(level, null, null);
+        }
+
+        public FakeLogEvent(Level level, String format, String loggerName) {
             this.level = level;
+            this.format = format;
+            this.loggerName = loggerName;
         }
 
         @Override
@@ -246,7 +1157,12 @@ public class SocketLogLevelCountAppenderTest {
 
         @Override
         public Message getMessage() {
-            return new SimpleMessage();
+            return format != null ? new ParameterizedMessage(format, "value") : new SimpleMessage();
+        }
+
+        @Override
+        public String getLoggerName() {
+            return loggerName;
         }
 
         @Override